@@ -0,0 +1,157 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authentication.AuthenticationExecutor.RejectionPolicy;
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationConfiguration;
+import org.jboss.aerogear.android.authentication.util.VoidCallback;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public class AuthenticationExecutorTest {
+
+    @Test
+    public void testFailFastRejectsWhenSaturated() throws Exception {
+        AuthenticationExecutor executor = new AuthenticationExecutor(1, 1, 1, RejectionPolicy.FAIL_FAST);
+        CountDownLatch release = saturate(executor);
+        try {
+            executor.execute(new NoOp());
+            Assert.fail("The work should have been rejected");
+        } catch (RejectedExecutionException expected) {
+            Assert.assertEquals(1, executor.getRejectedCount());
+            Assert.assertEquals(1, executor.getQueueDepth());
+            Assert.assertEquals(1, executor.getActiveThreads());
+        } finally {
+            release.countDown();
+            executor.shutdown();
+        }
+    }
+
+    @Test
+    public void testDropOldestNotifiesDroppedWork() throws Exception {
+        AuthenticationExecutor executor = new AuthenticationExecutor(1, 1, 1, RejectionPolicy.DROP_OLDEST);
+        CountDownLatch block = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(new Blocker(started, block));
+        started.await(1, TimeUnit.SECONDS);
+        RejectableNoOp oldest = new RejectableNoOp();
+        executor.execute(oldest);
+
+        executor.execute(new NoOp());
+
+        Assert.assertNotNull(oldest.rejection.get());
+        Assert.assertEquals(1, executor.getDroppedCount());
+        Assert.assertEquals(1, executor.getQueueDepth());
+        block.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testCallerRunsWhenSaturated() throws Exception {
+        AuthenticationExecutor executor = new AuthenticationExecutor(1, 1, 1, RejectionPolicy.CALLER_RUNS);
+        CountDownLatch release = saturate(executor);
+        final AtomicReference<Thread> runner = new AtomicReference<Thread>();
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runner.set(Thread.currentThread());
+            }
+        });
+
+        Assert.assertSame(Thread.currentThread(), runner.get());
+        Assert.assertEquals(1, executor.getCallerRunsCount());
+        release.countDown();
+        executor.shutdown();
+    }
+
+    @Test
+    public void testRejectedCallsFailInTheirCallback() throws Exception {
+        AuthenticationExecutor executor = new AuthenticationExecutor(1, 1, 1, RejectionPolicy.FAIL_FAST);
+        CountDownLatch release = saturate(executor);
+        AuthenticationModule module = new HttpBasicAuthenticationConfiguration()
+                .baseURL(new URL("http://localhost:8080/test")).executor(executor).asModule();
+        VoidCallback callback = new VoidCallback();
+
+        module.login("user", "password", callback);
+
+        Assert.assertTrue(callback.exception instanceof RejectedExecutionException);
+        release.countDown();
+        executor.shutdown();
+    }
+
+    /**
+     * Occupies the only thread and the only queue slot of executor.
+     */
+    private static CountDownLatch saturate(AuthenticationExecutor executor) throws InterruptedException {
+        CountDownLatch release = new CountDownLatch(1);
+        CountDownLatch started = new CountDownLatch(1);
+        executor.execute(new Blocker(started, release));
+        started.await(1, TimeUnit.SECONDS);
+        executor.execute(new NoOp());
+        return release;
+    }
+
+    private static class Blocker implements Runnable {
+
+        private final CountDownLatch started;
+        private final CountDownLatch release;
+
+        Blocker(CountDownLatch started, CountDownLatch release) {
+            this.started = started;
+            this.release = release;
+        }
+
+        @Override
+        public void run() {
+            started.countDown();
+            try {
+                release.await(5, TimeUnit.SECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private static class NoOp implements Runnable {
+
+        @Override
+        public void run() {
+        }
+    }
+
+    private static class RejectableNoOp extends NoOp implements AuthenticationExecutor.Rejectable {
+
+        final AtomicReference<RejectedExecutionException> rejection = new AtomicReference<RejectedExecutionException>();
+
+        @Override
+        public void onRejected(RejectedExecutionException exception) {
+            rejection.set(exception);
+        }
+    }
+
+}
@@ -0,0 +1,164 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationModule;
+import org.jboss.aerogear.android.core.Callback;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public class AuthenticationFutureTest {
+
+    @Test
+    public void testCallbackOfCompletedFutureRunsInline() {
+        final AtomicReference<Thread> thread = new AtomicReference<Thread>();
+        AuthenticationFuture.completed("done").addCallback(new Callback<String>() {
+            @Override
+            public void onSuccess(String data) {
+                thread.set(Thread.currentThread());
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+            }
+        });
+
+        Assert.assertSame(Thread.currentThread(), thread.get());
+    }
+
+    @Test
+    public void testChaining() throws Exception {
+        AuthenticationFuture<String> source = new AuthenticationFuture<String>();
+        AuthenticationFuture<Integer> chained = source.thenApply(new AuthenticationFuture.Function<String, Integer>() {
+            @Override
+            public Integer apply(String value) {
+                return value.length();
+            }
+        }).thenCompose(new AuthenticationFuture.Function<Integer, AuthenticationFuture<Integer>>() {
+            @Override
+            public AuthenticationFuture<Integer> apply(Integer value) {
+                return AuthenticationFuture.completed(value * 2);
+            }
+        });
+
+        Assert.assertFalse(chained.isDone());
+        source.complete("abc");
+
+        Assert.assertEquals(Integer.valueOf(6), chained.get(0, TimeUnit.MILLISECONDS));
+    }
+
+    @Test
+    public void testFailuresArePassedOn() throws Exception {
+        AuthenticationFuture<Integer> chained = AuthenticationFuture.<String>failed(new IllegalStateException())
+                .thenApply(new AuthenticationFuture.Function<String, Integer>() {
+                    @Override
+                    public Integer apply(String value) {
+                        return value.length();
+                    }
+                });
+
+        try {
+            chained.get();
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalStateException);
+        }
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCancel() throws Exception {
+        AuthenticationFuture<String> future = new AuthenticationFuture<String>();
+
+        Assert.assertTrue(future.cancel(true));
+        Assert.assertTrue(future.isCancelled());
+        Assert.assertFalse(future.complete("late"));
+        future.get();
+    }
+
+    @Test(expected = TimeoutException.class)
+    public void testGetTimesOut() throws Exception {
+        new AuthenticationFuture<String>().get(10, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testOrTimeout() throws Exception {
+        AuthenticationFuture<String> future = new AuthenticationFuture<String>().orTimeout(10, TimeUnit.MILLISECONDS);
+        try {
+            future.get(1, TimeUnit.SECONDS);
+            Assert.fail();
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof TimeoutException);
+        }
+    }
+
+    @Test
+    public void testAllOf() throws Exception {
+        AuthenticationFuture<String> first = new AuthenticationFuture<String>();
+        AuthenticationFuture<String> second = new AuthenticationFuture<String>();
+        AuthenticationFuture<List<String>> all = AuthenticationFuture.allOf(Arrays.asList(first, second));
+
+        second.complete("b");
+        Assert.assertFalse(all.isDone());
+        first.complete("a");
+
+        Assert.assertEquals(Arrays.asList("a", "b"), all.get());
+    }
+
+    @Test
+    public void testModuleLoginFuture() throws Exception {
+        AuthenticationModule module = new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"));
+
+        HeaderAndBody response = module.login("user", "password").get(1, TimeUnit.SECONDS);
+
+        Assert.assertNotNull(response);
+        Assert.assertTrue(module.isLoggedIn());
+    }
+
+    @Test
+    public void testFailureLeavesSharedDeadlineAlone() throws Exception {
+        Deadline shared = Deadline.never();
+        AuthenticationFuture<String> failed = new AuthenticationFuture<String>(shared);
+        AuthenticationFuture<String> cancelled = new AuthenticationFuture<String>(shared);
+        AuthenticationFuture<String> running = new AuthenticationFuture<String>(shared);
+
+        failed.completeExceptionally(new IllegalStateException());
+        cancelled.cancel(true);
+
+        Assert.assertTrue(failed.getDeadline().isCancelled());
+        Assert.assertTrue(cancelled.getDeadline().isCancelled());
+        Assert.assertFalse(shared.isCancelled());
+        Assert.assertFalse(running.getDeadline().isCancelled());
+
+        shared.cancel();
+        Assert.assertTrue(running.getDeadline().isCancelled());
+    }
+
+}
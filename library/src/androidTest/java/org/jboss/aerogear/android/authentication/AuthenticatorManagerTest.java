@@ -17,24 +17,40 @@
 package org.jboss.aerogear.android.authentication;
 
 import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
 
 import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationConfiguration;
 import org.jboss.aerogear.android.authentication.digest.HttpDigestAuthenticationConfiguration;
 import org.jboss.aerogear.android.core.ConfigurationProvider;
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationModule;
 import org.junit.Assert;
+import org.junit.Ignore;
 import org.junit.Test;
 import org.junit.runner.RunWith;
 
 import java.net.MalformedURLException;
 import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
 @RunWith(AndroidJUnit4.class)
 public class AuthenticatorManagerTest {
 
+    private static final String TAG = AuthenticatorManagerTest.class.getSimpleName();
     private static final URL SIMPLE_URL;
     private static final String SIMPLE_MODULE_NAME = "simple";
+    private static final int THREADS = 8;
+    private static final int MODULES = 64;
+    private static final long BENCHMARK_MILLIS = 2000;
+    private static final int STARTUP_MODULES = 20;
 
     static {
         try {
@@ -117,6 +133,219 @@ public class AuthenticatorManagerTest {
         Assert.assertNull(AuthenticationManager.getModule("nullModule"));
     }
 
+    @Test
+    public void testRegisterIfAbsentKeepsFirstModule() {
+        AuthenticationModule first = new HttpBasicAuthenticationModule(SIMPLE_URL);
+        AuthenticationModule second = new HttpBasicAuthenticationModule(SIMPLE_URL);
+
+        Assert.assertSame(first, AuthenticationManager.registerModuleIfAbsent("ifAbsent", first));
+        Assert.assertSame(first, AuthenticationManager.registerModuleIfAbsent("ifAbsent", second));
+        Assert.assertSame(first, AuthenticationManager.getModule("ifAbsent"));
+    }
+
+    @Test
+    public void testConcurrentRegistrationLosesNoModules() throws Exception {
+        final AtomicReferenceArray<AuthenticationModule> winners = new AtomicReferenceArray<AuthenticationModule>(MODULES);
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        for (int i = 0; i < THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for (int module = 0; module < MODULES; module++) {
+                            AuthenticationModule registered = AuthenticationManager.registerModuleIfAbsent("concurrent" + module,
+                                    new HttpBasicAuthenticationModule(SIMPLE_URL));
+                            if (!winners.compareAndSet(module, null, registered) && winners.get(module) != registered) {
+                                failures.incrementAndGet();
+                            }
+                            HttpBasicAuthenticationConfiguration config = AuthenticationManager.config(
+                                    "configured" + Thread.currentThread().getId() + "-" + module, HttpBasicAuthenticationConfiguration.class);
+                            config.baseURL(SIMPLE_URL).asModule();
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Assert.assertEquals(0, failures.get());
+        for (int module = 0; module < MODULES; module++) {
+            Assert.assertSame(winners.get(module), AuthenticationManager.getModule("concurrent" + module));
+        }
+    }
+
+    /**
+     * Measures getModule throughput while one thread keeps registering
+     * modules. Run it by hand, the numbers depend on the device.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkGetModuleUnderContention() throws Exception {
+        for (int module = 0; module < MODULES; module++) {
+            AuthenticationManager.registerModuleIfAbsent("benchmark" + module, new HttpBasicAuthenticationModule(SIMPLE_URL));
+        }
+        final AtomicLong lookups = new AtomicLong();
+        final long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(BENCHMARK_MILLIS);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                int registrations = 0;
+                while (System.nanoTime() < end) {
+                    AuthenticationManager.registerModuleIfAbsent("writer" + (registrations++ % 1024), new HttpBasicAuthenticationModule(SIMPLE_URL));
+                }
+            }
+        });
+        for (int i = 1; i < THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    long count = 0;
+                    int module = 0;
+                    while (System.nanoTime() < end) {
+                        AuthenticationManager.getModule("benchmark" + (module++ % MODULES));
+                        count++;
+                    }
+                    lookups.addAndGet(count);
+                    done.countDown();
+                }
+            });
+        }
+        done.countDown();
+
+        Assert.assertTrue(done.await(BENCHMARK_MILLIS + 10000, TimeUnit.MILLISECONDS));
+        executor.shutdown();
+
+        Log.i(TAG, "getModule: " + (lookups.get() * 1000 / BENCHMARK_MILLIS) + " lookups/s with " + (THREADS - 1)
+                + " readers and 1 writer");
+    }
+
+    @Test
+    public void testLazyModuleIsBuiltOnFirstLookup() {
+        AuthenticationManager.registerConfigurationProvider(CountingAuthenticationConfiguration.class, new CountingAuthenticationConfigProvider());
+        CountingAuthenticationConfiguration config = AuthenticationManager.config("lazy", CountingAuthenticationConfiguration.class);
+
+        config.baseURL(SIMPLE_URL).asLazyModule();
+        Assert.assertEquals(0, config.builds.get());
+
+        AuthenticationModule module = AuthenticationManager.getModule("lazy");
+        Assert.assertNotNull(module);
+        Assert.assertSame(module, AuthenticationManager.getModule("lazy"));
+        Assert.assertEquals(1, config.builds.get());
+    }
+
+    @Test
+    public void testLazyModuleNeedsBaseURL() {
+        try {
+            AuthenticationManager.config("lazyNoURL", HttpDigestAuthenticationConfiguration.class).asLazyModule();
+            Assert.fail("Should not pass");
+        } catch (IllegalStateException e) {
+            // ignore
+        }
+        Assert.assertNull(AuthenticationManager.getModule("lazyNoURL"));
+    }
+
+    @Test
+    public void testConcurrentLookupsBuildLazyModuleOnce() throws Exception {
+        AuthenticationManager.registerConfigurationProvider(CountingAuthenticationConfiguration.class, new CountingAuthenticationConfigProvider());
+        CountingAuthenticationConfiguration config = AuthenticationManager.config("lazyConcurrent", CountingAuthenticationConfiguration.class);
+        config.baseURL(SIMPLE_URL).asLazyModule();
+
+        final AtomicReference<AuthenticationModule> first = new AtomicReference<AuthenticationModule>();
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        for (int i = 0; i < THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        AuthenticationModule module = AuthenticationManager.getModule("lazyConcurrent");
+                        if (module == null || (!first.compareAndSet(null, module) && first.get() != module)) {
+                            failures.incrementAndGet();
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Assert.assertEquals(0, failures.get());
+        Assert.assertEquals(1, config.builds.get());
+    }
+
+    /**
+     * Compares the time to configure digest modules eagerly and lazily, as
+     * an application would at startup. Run it by hand, the numbers depend on
+     * the device.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkLazyStartup() {
+        // warm up class loading and the UUID generator
+        AuthenticationManager.config("warmup", HttpDigestAuthenticationConfiguration.class).baseURL(SIMPLE_URL).asModule();
+
+        long eager = System.nanoTime();
+        for (int module = 0; module < STARTUP_MODULES; module++) {
+            AuthenticationManager.config("eager" + module, HttpDigestAuthenticationConfiguration.class)
+                    .loginEndpoint("login").logoutEndpoint("logout").baseURL(SIMPLE_URL).asModule();
+        }
+        eager = System.nanoTime() - eager;
+
+        long lazy = System.nanoTime();
+        for (int module = 0; module < STARTUP_MODULES; module++) {
+            AuthenticationManager.config("lazy" + module, HttpDigestAuthenticationConfiguration.class)
+                    .loginEndpoint("login").logoutEndpoint("logout").baseURL(SIMPLE_URL).asLazyModule();
+        }
+        lazy = System.nanoTime() - lazy;
+
+        Log.i(TAG, STARTUP_MODULES + " modules: eager " + TimeUnit.NANOSECONDS.toMicros(eager) + "us, lazy "
+                + TimeUnit.NANOSECONDS.toMicros(lazy) + "us");
+    }
+
+    private static final class CountingAuthenticationConfigProvider implements ConfigurationProvider<CountingAuthenticationConfiguration> {
+
+        @Override
+        public CountingAuthenticationConfiguration newConfiguration() {
+            return new CountingAuthenticationConfiguration();
+        }
+    }
+
+    private static class CountingAuthenticationConfiguration extends AuthenticationConfiguration<CountingAuthenticationConfiguration> {
+
+        private final AtomicInteger builds = new AtomicInteger();
+
+        @Override
+        protected AuthenticationModule buildModule() {
+            builds.incrementAndGet();
+            return new HttpBasicAuthenticationModule(getBaseUrl());
+        }
+    }
+
     private static final class DummyAuthenticationConfigProvider implements ConfigurationProvider<DummAuthenticationConfiguration> {
 
         @Override
@@ -0,0 +1,144 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.os.Looper;
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationModule;
+import org.jboss.aerogear.android.core.Callback;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public class CallbackExecutorsTest {
+
+    private static final int CALLBACKS = 50;
+
+    @Test
+    public void testBurstIsPostedAsOneMessage() {
+        CallbackExecutors.BatchingLooperExecutor executor = new CallbackExecutors.BatchingLooperExecutor(Looper.getMainLooper());
+        final AtomicInteger runs = new AtomicInteger();
+
+        for (int i = 0; i < CALLBACKS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    runs.incrementAndGet();
+                }
+            });
+        }
+        Assert.assertEquals(1, executor.getMessagesPosted());
+        Assert.assertEquals(0, runs.get());
+
+        executor.drain();
+
+        Assert.assertEquals(CALLBACKS, runs.get());
+        Assert.assertEquals(CALLBACKS, executor.getCallbacksDelivered());
+
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                runs.incrementAndGet();
+            }
+        });
+        Assert.assertEquals(2, executor.getMessagesPosted());
+    }
+
+    @Test
+    public void testDrainYieldsToLaterCallbacks() {
+        final CallbackExecutors.BatchingLooperExecutor executor = new CallbackExecutors.BatchingLooperExecutor(Looper.getMainLooper());
+        final AtomicInteger runs = new AtomicInteger();
+        executor.execute(new Runnable() {
+            @Override
+            public void run() {
+                if (runs.incrementAndGet() < CALLBACKS) {
+                    executor.execute(this);
+                }
+            }
+        });
+
+        executor.drain();
+
+        Assert.assertEquals(1, runs.get());
+        Assert.assertEquals(2, executor.getMessagesPosted());
+        for (int i = 1; i < CALLBACKS; i++) {
+            executor.drain();
+        }
+        Assert.assertEquals(CALLBACKS, runs.get());
+        Assert.assertEquals(CALLBACKS, executor.getMessagesPosted());
+    }
+
+    @Test
+    public void testCallbacksRunOnConfiguredExecutor() throws Exception {
+        final AtomicInteger delivered = new AtomicInteger();
+        final AtomicReference<Thread> deliveryThread = new AtomicReference<Thread>();
+        final CountDownLatch latch = new CountDownLatch(1);
+        Executor executor = new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                delivered.incrementAndGet();
+                command.run();
+            }
+        };
+
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"));
+        ((AbstractAuthenticationModule) module).setCallbackExecutor(executor);
+        module.login("Aladdin", "open sesame", new Callback<HeaderAndBody>() {
+            @Override
+            public void onSuccess(HeaderAndBody data) {
+                deliveryThread.set(Thread.currentThread());
+                latch.countDown();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                latch.countDown();
+            }
+        });
+
+        Assert.assertTrue(latch.await(10, TimeUnit.SECONDS));
+        Assert.assertEquals(1, delivered.get());
+        Assert.assertNotNull(deliveryThread.get());
+    }
+
+    @Test
+    public void testFuturesSkipTheCallbackExecutor() throws Exception {
+        final AtomicInteger delivered = new AtomicInteger();
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"));
+        ((AbstractAuthenticationModule) module).setCallbackExecutor(new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                delivered.incrementAndGet();
+                command.run();
+            }
+        });
+
+        Assert.assertNotNull(module.login("Aladdin", "open sesame").get(10, TimeUnit.SECONDS));
+        Assert.assertEquals(0, delivered.get());
+    }
+
+}
@@ -0,0 +1,167 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.pipe.http.HttpProvider;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.IOException;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public class DeadlineHttpProviderTest {
+
+    private static final int TIMEOUT = 30000;
+
+    private ServerSocket server;
+    private final List<Socket> accepted = new ArrayList<Socket>();
+
+    /**
+     * Starts a server which accepts connections and never answers.
+     */
+    @Before
+    public void setUp() throws Exception {
+        server = new ServerSocket(0);
+        Thread acceptor = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    while (true) {
+                        Socket socket = server.accept();
+                        synchronized (accepted) {
+                            accepted.add(socket);
+                        }
+                    }
+                } catch (IOException closed) {
+                }
+            }
+        });
+        acceptor.setDaemon(true);
+        acceptor.start();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        server.close();
+        synchronized (accepted) {
+            for (Socket socket : accepted) {
+                socket.close();
+            }
+        }
+    }
+
+    @Test
+    public void testCancelDisconnectsRequestInFlight() throws Exception {
+        final Deadline deadline = Deadline.never();
+        final HttpProvider provider = new DeadlineHttpProvider.Factory().get(url(), TIMEOUT, deadline);
+        final AtomicReference<Exception> failure = new AtomicReference<Exception>();
+        Thread request = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    provider.get();
+                } catch (Exception e) {
+                    failure.set(e);
+                }
+            }
+        });
+        request.start();
+        awaitAccepted();
+
+        long start = System.nanoTime();
+        deadline.cancel();
+        request.join(TIMEOUT);
+
+        Assert.assertFalse(request.isAlive());
+        Assert.assertTrue(failure.get() instanceof CancellationException);
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < TIMEOUT / 2);
+    }
+
+    @Test
+    public void testReadTimeoutIsTheRemainingTime() throws Exception {
+        Deadline deadline = Deadline.after(500, TimeUnit.MILLISECONDS);
+        HttpProvider provider = new DeadlineHttpProvider.Factory().get(url(), TIMEOUT, deadline);
+
+        long start = System.nanoTime();
+        try {
+            provider.get();
+            Assert.fail("The server never answers");
+        } catch (RuntimeException expected) {
+        }
+
+        Assert.assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < TIMEOUT / 2);
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCancelledCallDoesNotConnect() throws Exception {
+        Deadline deadline = Deadline.never();
+        deadline.cancel();
+
+        new DeadlineHttpProvider.Factory().get(url(), TIMEOUT, deadline).get();
+    }
+
+    @Test
+    public void testDetachClearsInterruptOfCancel() {
+        Deadline deadline = Deadline.never();
+        deadline.attach();
+        deadline.cancel();
+        deadline.detach();
+
+        Assert.assertFalse(Thread.interrupted());
+    }
+
+    @Test
+    public void testDetachKeepsOtherInterrupts() {
+        Deadline deadline = Deadline.never();
+        deadline.attach();
+        Thread.currentThread().interrupt();
+        deadline.detach();
+
+        Assert.assertTrue(Thread.interrupted());
+    }
+
+    private URL url() throws Exception {
+        return new URL("http://127.0.0.1:" + server.getLocalPort() + "/login");
+    }
+
+    private void awaitAccepted() throws InterruptedException {
+        long end = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(TIMEOUT);
+        while (System.nanoTime() < end) {
+            synchronized (accepted) {
+                if (!accepted.isEmpty()) {
+                    return;
+                }
+            }
+            Thread.sleep(10);
+        }
+        Assert.fail("The request did not connect");
+    }
+
+}
@@ -0,0 +1,199 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationModule;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+@RunWith(AndroidJUnit4.class)
+public class FanOutLoginTest {
+
+    private static final long LATENCY = 200;
+    private static final int BACKENDS = 4;
+
+    @Test
+    public void testLoginsRunInParallel() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Map<String, Map<String, String>> loginData = register("parallel", BACKENDS, running, maxRunning);
+
+        long start = System.nanoTime();
+        FanOutLogin login = AuthenticationManager.loginAll(loginData, BACKENDS, Deadline.after(10, TimeUnit.SECONDS));
+        Map<String, HeaderAndBody> responses = login.getCompletion().get(10, TimeUnit.SECONDS);
+        long elapsed = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+
+        Assert.assertEquals(BACKENDS, responses.size());
+        Assert.assertEquals(BACKENDS, maxRunning.get());
+        Assert.assertTrue("took " + elapsed + "ms", elapsed < (BACKENDS - 1) * LATENCY);
+        for (AuthenticationFuture<HeaderAndBody> result : login.getResults().values()) {
+            Assert.assertTrue(result.isDone());
+            Assert.assertFalse(result.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void testConcurrencyIsBounded() throws Exception {
+        AtomicInteger running = new AtomicInteger();
+        AtomicInteger maxRunning = new AtomicInteger();
+        Map<String, Map<String, String>> loginData = register("bounded", BACKENDS, running, maxRunning);
+
+        FanOutLogin login = AuthenticationManager.loginAll(loginData, 2, Deadline.after(10, TimeUnit.SECONDS));
+
+        Assert.assertEquals(BACKENDS, login.getCompletion().get(10, TimeUnit.SECONDS).size());
+        Assert.assertEquals(2, maxRunning.get());
+    }
+
+    @Test
+    public void testDeadlineEndsAllLogins() throws Exception {
+        Map<String, Map<String, String>> loginData = register("deadline", BACKENDS, new AtomicInteger(), new AtomicInteger());
+
+        FanOutLogin login = AuthenticationManager.loginAll(loginData, 2, Deadline.after(LATENCY / 2, TimeUnit.MILLISECONDS));
+
+        try {
+            login.getCompletion().get(10, TimeUnit.SECONDS);
+            Assert.fail("Should have expired");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof Deadline.ExceededException);
+        }
+        for (AuthenticationFuture<HeaderAndBody> result : login.getResults().values()) {
+            Assert.assertTrue(result.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void testFailedLoginDoesNotAffectOthers() throws Exception {
+        Map<String, Map<String, String>> loginData = register("missing", 2, new AtomicInteger(), new AtomicInteger());
+        loginData.put("missingModule", new HashMap<String, String>());
+
+        FanOutLogin login = AuthenticationManager.loginAll(loginData, BACKENDS, Deadline.after(10, TimeUnit.SECONDS));
+
+        try {
+            login.getCompletion().get(10, TimeUnit.SECONDS);
+            Assert.fail("Should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof IllegalArgumentException);
+        }
+        Assert.assertNotNull(login.getResult("missing0").get());
+        Assert.assertNotNull(login.getResult("missing1").get());
+        Assert.assertTrue(login.getResult("missingModule").isCompletedExceptionally());
+    }
+
+    @Test
+    public void testCancellingTheDeadlineCancelsAllLogins() throws Exception {
+        Map<String, Map<String, String>> loginData = register("cancel", BACKENDS, new AtomicInteger(), new AtomicInteger());
+        Deadline deadline = Deadline.after(10, TimeUnit.SECONDS);
+
+        FanOutLogin login = AuthenticationManager.loginAll(loginData, 2, deadline);
+        deadline.cancel();
+
+        try {
+            login.getCompletion().get(10, TimeUnit.SECONDS);
+            Assert.fail("Should have been cancelled");
+        } catch (CancellationException e) {
+            // expected
+        }
+        for (AuthenticationFuture<HeaderAndBody> result : login.getResults().values()) {
+            Assert.assertTrue(result.isCancelled());
+        }
+    }
+
+    @Test
+    public void testSynchronousLoginsDoNotRecurse() throws Exception {
+        // logins into unknown modules fail on the starting thread
+        Map<String, Map<String, String>> loginData = new LinkedHashMap<String, Map<String, String>>();
+        for (int i = 0; i < 50000; i++) {
+            loginData.put("unknown" + i, new HashMap<String, String>());
+        }
+
+        FanOutLogin login = AuthenticationManager.loginAll(loginData, 1, Deadline.never());
+
+        Assert.assertTrue(login.getCompletion().isCompletedExceptionally());
+        for (AuthenticationFuture<HeaderAndBody> result : login.getResults().values()) {
+            Assert.assertTrue(result.isCompletedExceptionally());
+        }
+    }
+
+    @Test
+    public void testEmptyFanOutCompletes() throws Exception {
+        FanOutLogin login = AuthenticationManager.loginAll(new HashMap<String, Map<String, String>>(), 1, Deadline.never());
+
+        Assert.assertTrue(login.getCompletion().get().isEmpty());
+    }
+
+    private static Map<String, Map<String, String>> register(String prefix, int count, AtomicInteger running,
+            AtomicInteger maxRunning) throws Exception {
+        Map<String, Map<String, String>> loginData = new LinkedHashMap<String, Map<String, String>>();
+        for (int i = 0; i < count; i++) {
+            String name = prefix + i;
+            AuthenticationManager.registerModuleIfAbsent(name, new SlowModule(running, maxRunning));
+            Map<String, String> credentials = new HashMap<String, String>();
+            credentials.put(AbstractAuthenticationModule.USERNAME_PARAMETER_NAME, "agnes");
+            credentials.put(AbstractAuthenticationModule.PASSWORD_PARAMETER_NAME, "123");
+            loginData.put(name, credentials);
+        }
+        return loginData;
+    }
+
+    private static final class SlowModule extends HttpBasicAuthenticationModule {
+
+        private final AtomicInteger running;
+        private final AtomicInteger maxRunning;
+
+        SlowModule(AtomicInteger running, AtomicInteger maxRunning) throws Exception {
+            super(new URL("http://localhost:8080/test"));
+            this.running = running;
+            this.maxRunning = maxRunning;
+        }
+
+        @Override
+        public AuthenticationFuture<HeaderAndBody> login(final Map<String, String> loginData, Deadline deadline) {
+            return submit(deadline, new Call<HeaderAndBody>() {
+                @Override
+                public HeaderAndBody call(Deadline deadline) throws Exception {
+                    int now = running.incrementAndGet();
+                    while (true) {
+                        int max = maxRunning.get();
+                        if (now <= max || maxRunning.compareAndSet(max, now)) {
+                            break;
+                        }
+                    }
+                    try {
+                        Thread.sleep(LATENCY);
+                    } finally {
+                        running.decrementAndGet();
+                    }
+                    return loginSync(loginData.get(USERNAME_PARAMETER_NAME), loginData.get(PASSWORD_PARAMETER_NAME));
+                }
+            });
+        }
+    }
+
+}
@@ -0,0 +1,80 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class HeaderValueBuilderTest {
+
+    @Test
+    public void testBasicCredentials() {
+        // RFC 7617 section 2
+        Assert.assertEquals("Basic QWxhZGRpbjpvcGVuIHNlc2FtZQ==", HeaderValueBuilder.get().append("Basic ")
+                .appendBasicCredentials("Aladdin", "open sesame".toCharArray()).toString());
+    }
+
+    @Test
+    public void testBasicCredentialsAreUtf8() {
+        // RFC 7617 section 2.1
+        Assert.assertEquals("dGVzdDoxMjPCow==",
+                HeaderValueBuilder.get().appendBasicCredentials("test", "123\u00a3".toCharArray()).toString());
+    }
+
+    @Test
+    public void testBase64Padding() {
+        byte[] input = "abcd".getBytes();
+        Assert.assertEquals("YQ==", HeaderValueBuilder.get().appendBase64(input, 0, 1).toString());
+        Assert.assertEquals("YWI=", HeaderValueBuilder.get().appendBase64(input, 0, 2).toString());
+        Assert.assertEquals("YWJj", HeaderValueBuilder.get().appendBase64(input, 0, 3).toString());
+        Assert.assertEquals("YmNk", HeaderValueBuilder.get().appendBase64(input, 1, 3).toString());
+    }
+
+    @Test
+    public void testQuotedValuesAreEscaped() {
+        Assert.assertEquals("realm=\"a \\\"b\\\" \\\\c\"",
+                HeaderValueBuilder.get().appendQuoted("realm", "a \"b\" \\c").toString());
+        Assert.assertEquals("nonce=\"\"", HeaderValueBuilder.get().appendQuoted("nonce", "").toString());
+    }
+
+    @Test
+    public void testBuilderIsReusedAndGrows() {
+        StringBuilder expected = new StringBuilder();
+        HeaderValueBuilder builder = HeaderValueBuilder.get();
+        for (int i = 0; i < 1000; i++) {
+            builder.appendQuoted("k", "v").append(',');
+            expected.append("k=\"v\",");
+        }
+
+        Assert.assertEquals(expected.toString(), builder.toString());
+        Assert.assertSame(builder, HeaderValueBuilder.get());
+        Assert.assertEquals(0, builder.length());
+    }
+
+    @Test
+    public void testWipe() {
+        HeaderValueBuilder builder = HeaderValueBuilder.get().append("secret");
+        builder.wipe();
+
+        Assert.assertEquals("", builder.toString());
+    }
+
+}
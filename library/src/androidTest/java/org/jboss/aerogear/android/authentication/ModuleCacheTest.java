@@ -0,0 +1,252 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationModule;
+import org.jboss.aerogear.android.authentication.util.VoidCallback;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Tests the limits of the module registry. The registry is shared by all
+ * tests, so every test resets the limits.
+ */
+@RunWith(AndroidJUnit4.class)
+public class ModuleCacheTest {
+
+    private static final String TAG = ModuleCacheTest.class.getSimpleName();
+    private static final int BENCHMARK_MODULES = 10000;
+    private static final int BENCHMARK_MAXIMUM = 1000;
+
+    private final List<String> evicted = new ArrayList<String>();
+    private final List<OnModuleEvictedListener.Cause> causes = new ArrayList<OnModuleEvictedListener.Cause>();
+    private final OnModuleEvictedListener listener = new OnModuleEvictedListener() {
+        @Override
+        public void onModuleEvicted(String name, AuthenticationModule module, Cause cause) {
+            synchronized (evicted) {
+                evicted.add(name);
+                causes.add(cause);
+            }
+        }
+    };
+
+    private URL baseURL;
+
+    @Before
+    public void setUp() throws Exception {
+        baseURL = new URL("http://localhost:8080/test");
+        AuthenticationManager.setMaximumModules(0);
+        AuthenticationManager.setModuleIdleTimeout(0, TimeUnit.MILLISECONDS);
+        AuthenticationManager.addOnModuleEvictedListener(listener);
+    }
+
+    @After
+    public void tearDown() {
+        AuthenticationManager.removeOnModuleEvictedListener(listener);
+        AuthenticationManager.setMaximumModules(0);
+        AuthenticationManager.setModuleIdleTimeout(0, TimeUnit.MILLISECONDS);
+    }
+
+    @Test
+    public void testLeastRecentlyUsedModuleIsEvicted() throws Exception {
+        AuthenticationManager.setMaximumModules(2);
+        HttpBasicAuthenticationModule first = register("lruFirst");
+        HttpBasicAuthenticationModule second = register("lruSecond");
+        Thread.sleep(1);
+        Assert.assertSame(first, AuthenticationManager.getModule("lruFirst"));
+        evicted.clear();
+        causes.clear();
+
+        HttpBasicAuthenticationModule third = register("lruThird");
+
+        Assert.assertEquals(2, AuthenticationManager.getModuleCount());
+        Assert.assertSame(first, AuthenticationManager.getModule("lruFirst"));
+        Assert.assertSame(third, AuthenticationManager.getModule("lruThird"));
+        Assert.assertNull(AuthenticationManager.getModule("lruSecond"));
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertEquals("lruSecond", evicted.get(0));
+        Assert.assertEquals(OnModuleEvictedListener.Cause.SIZE, causes.get(0));
+        Assert.assertFalse(second.isLoggedIn());
+        Assert.assertEquals("Basic Og==", second.loadModule(new URI("/test"), "GET", new byte[] {}).getHeaders().get(0).second);
+    }
+
+    @Test
+    public void testModuleUsedWithoutLookupIsKept() throws Exception {
+        AuthenticationManager.setMaximumModules(2);
+        HttpBasicAuthenticationModule first = register("usedFirst");
+        HttpBasicAuthenticationModule second = register("usedSecond");
+        Thread.sleep(1);
+        // a Pipe signs its requests without looking the module up
+        first.loadModule(new URI("/test"), "GET", new byte[] {});
+        evicted.clear();
+
+        register("usedThird");
+
+        Assert.assertEquals(1, evicted.size());
+        Assert.assertEquals("usedSecond", evicted.get(0));
+        Assert.assertFalse(second.isLoggedIn());
+        Assert.assertTrue(first.isLoggedIn());
+        Assert.assertSame(first, AuthenticationManager.getModule("usedFirst"));
+    }
+
+    @Test
+    public void testModuleUsedWithoutLookupIsNotIdle() throws Exception {
+        AuthenticationManager.setModuleIdleTimeout(50, TimeUnit.MILLISECONDS);
+        HttpBasicAuthenticationModule module = register("usedIdle");
+
+        for (int i = 0; i < 5; i++) {
+            Thread.sleep(20);
+            module.loadModule(new URI("/test"), "GET", new byte[] {});
+        }
+        AuthenticationManager.cleanUpModules();
+
+        Assert.assertFalse(evicted.contains("usedIdle"));
+        Assert.assertTrue(module.isLoggedIn());
+        Assert.assertSame(module, AuthenticationManager.getModule("usedIdle"));
+    }
+
+    @Test
+    public void testIdleModuleIsNotReturned() throws Exception {
+        AuthenticationManager.setModuleIdleTimeout(20, TimeUnit.MILLISECONDS);
+        HttpBasicAuthenticationModule module = register("idleLookup");
+        long misses = AuthenticationManager.getModuleCacheStatistics().getMisses();
+        long idleEvictions = AuthenticationManager.getModuleCacheStatistics().getIdleEvictions();
+
+        Thread.sleep(50);
+
+        Assert.assertNull(AuthenticationManager.getModule("idleLookup"));
+        Assert.assertFalse(module.isLoggedIn());
+        Assert.assertEquals(misses + 1, AuthenticationManager.getModuleCacheStatistics().getMisses());
+        Assert.assertEquals(idleEvictions + 1, AuthenticationManager.getModuleCacheStatistics().getIdleEvictions());
+        Assert.assertTrue(evicted.contains("idleLookup"));
+    }
+
+    @Test
+    public void testCleanUpEvictsIdleModules() throws Exception {
+        AuthenticationManager.setModuleIdleTimeout(20, TimeUnit.MILLISECONDS);
+        register("idleCleanUp");
+
+        Thread.sleep(50);
+        AuthenticationManager.cleanUpModules();
+
+        int index = evicted.indexOf("idleCleanUp");
+        Assert.assertTrue(index >= 0);
+        Assert.assertEquals(OnModuleEvictedListener.Cause.IDLE, causes.get(index));
+    }
+
+    @Test
+    public void testLookupsAreCounted() throws Exception {
+        register("counted");
+        long hits = AuthenticationManager.getModuleCacheStatistics().getHits();
+        long misses = AuthenticationManager.getModuleCacheStatistics().getMisses();
+
+        AuthenticationManager.getModule("counted");
+        AuthenticationManager.getModule("notCounted");
+
+        Assert.assertEquals(hits + 1, AuthenticationManager.getModuleCacheStatistics().getHits());
+        Assert.assertEquals(misses + 1, AuthenticationManager.getModuleCacheStatistics().getMisses());
+    }
+
+    @Test
+    public void testEvictionCallbacksRunOutsideTheRegistryLock() throws Exception {
+        AuthenticationManager.setMaximumModules(1);
+        HttpBasicAuthenticationModule eldest = register("unlockedFirst");
+        final List<Boolean> lookedUp = new ArrayList<Boolean>();
+        OnModuleEvictedListener blocking = new OnModuleEvictedListener() {
+            @Override
+            public void onModuleEvicted(String name, AuthenticationModule module, Cause cause) {
+                Thread lookup = new Thread(new Runnable() {
+                    @Override
+                    public void run() {
+                        AuthenticationManager.getModule("unlockedSecond");
+                    }
+                });
+                lookup.start();
+                try {
+                    lookup.join(2000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lookedUp.add(!lookup.isAlive());
+            }
+        };
+        AuthenticationManager.addOnModuleEvictedListener(blocking);
+        try {
+            register("unlockedSecond");
+        } finally {
+            AuthenticationManager.removeOnModuleEvictedListener(blocking);
+        }
+
+        Assert.assertEquals(1, lookedUp.size());
+        Assert.assertTrue(lookedUp.get(0));
+        Assert.assertFalse(eldest.isLoggedIn());
+    }
+
+    /**
+     * Registers 10k logged in modules with and without a maximum and prints
+     * the retained heap. Run it by hand, the numbers depend on the device.
+     */
+    @Ignore("benchmark")
+    @Test
+    public void benchmarkMemoryOfTenThousandModules() throws Exception {
+        long baseline = usedMemory();
+        for (int i = 0; i < BENCHMARK_MODULES; i++) {
+            register("unbounded" + i);
+        }
+        long unbounded = usedMemory() - baseline;
+
+        AuthenticationManager.setMaximumModules(BENCHMARK_MAXIMUM);
+        baseline = usedMemory();
+        for (int i = 0; i < BENCHMARK_MODULES; i++) {
+            register("bounded" + i);
+        }
+        long bounded = usedMemory() - baseline;
+
+        Log.i(TAG, BENCHMARK_MODULES + " modules: unbounded " + unbounded / 1024 + "KB, bounded to "
+                + BENCHMARK_MAXIMUM + " " + bounded / 1024 + "KB, " + AuthenticationManager.getModuleCacheStatistics());
+    }
+
+    private HttpBasicAuthenticationModule register(String name) {
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(baseURL);
+        module.login("agnes", "123", new VoidCallback());
+        Assert.assertSame(module, AuthenticationManager.registerModuleIfAbsent(name, module));
+        return module;
+    }
+
+    private static long usedMemory() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(100);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+
+}
@@ -0,0 +1,526 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+import android.util.Pair;
+
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationModule;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.module.ModuleFields;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+@RunWith(AndroidJUnit4.class)
+public class ModuleCookieStoreTest {
+
+    private static final String TAG = ModuleCookieStoreTest.class.getSimpleName();
+    private static final int BENCHMARK_HOSTS = 100;
+    private static final int BENCHMARK_COOKIES = 20000;
+
+    private File file;
+    private SecretKey key;
+
+    @Before
+    public void setUp() throws Exception {
+        file = File.createTempFile("module", ".cookies");
+        file.delete();
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        key = generator.generateKey();
+        if (CookieHandler.getDefault() == null) {
+            CookieHandler.setDefault(new CookieManager());
+        }
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testMatchesDomainPathAndScheme() throws Exception {
+        ModuleCookieStore store = new ModuleCookieStore();
+        URI origin = new URI("https://www.example.com/app/login");
+
+        store.add(origin, cookie("hostOnly", null, null));
+        store.add(origin, cookie("shared", ".example.com", "/"));
+        store.add(origin, cookie("app", null, "/app"));
+        HttpCookie secure = cookie("secure", null, "/");
+        secure.setSecure(true);
+        store.add(origin, secure);
+
+        Assert.assertEquals(names("app", "hostOnly", "secure", "shared"),
+                names(store.get(new URI("https://www.example.com/app/data"))));
+        Assert.assertEquals(names("app", "hostOnly", "shared"), names(store.get(new URI("http://www.example.com/app"))));
+        Assert.assertEquals(names("shared"), names(store.get(new URI("https://api.example.com/"))));
+        Assert.assertEquals(names("secure", "shared"), names(store.get(new URI("https://www.example.com/application"))));
+        Assert.assertTrue(store.get(new URI("https://example.org/app")).isEmpty());
+    }
+
+    @Test
+    public void testMaxAgeZeroRemovesCookie() throws Exception {
+        ModuleCookieStore store = new ModuleCookieStore();
+        URI origin = new URI("http://example.com/");
+        store.add(origin, cookie("session", null, "/"));
+
+        HttpCookie expired = cookie("session", null, "/");
+        expired.setMaxAge(0);
+        store.add(origin, expired);
+
+        Assert.assertTrue(store.get(origin).isEmpty());
+        Assert.assertTrue(store.getCookies().isEmpty());
+    }
+
+    @Test
+    public void testRemoveAll() throws Exception {
+        ModuleCookieStore store = new ModuleCookieStore();
+        URI origin = new URI("http://example.com/");
+        store.add(origin, cookie("a", null, "/"));
+        store.add(origin, cookie("b", null, "/"));
+
+        Assert.assertTrue(store.remove(origin, cookie("a", null, "/")));
+        Assert.assertFalse(store.remove(origin, cookie("a", null, "/")));
+        Assert.assertTrue(store.removeAll());
+        Assert.assertFalse(store.removeAll());
+        Assert.assertTrue(store.get(origin).isEmpty());
+    }
+
+    @Test
+    public void testRouterIsolatesModuleCookies() throws Exception {
+        CookieHandler previous = CookieHandler.getDefault();
+        CookieRouter router = CookieRouter.install();
+        try {
+            Assert.assertSame(router, CookieHandler.getDefault());
+            Assert.assertSame(router, CookieRouter.install());
+
+            ModuleCookieStore store = new ModuleCookieStore();
+            router.route(new URL("http://router.example.com/app/"), store);
+
+            router.put(new URI("http://router.example.com/app/login"), setCookie("JSESSIONID=module; Path=/"));
+            router.put(new URI("http://router.example.com/other"), setCookie("other=global; Path=/"));
+
+            Assert.assertEquals(names("JSESSIONID"), names(store.getCookies()));
+            Assert.assertEquals(Collections.singletonList("JSESSIONID=module"),
+                    router.get(new URI("http://router.example.com/app/data"), new HashMap<String, List<String>>()).get("Cookie"));
+            Assert.assertEquals(Collections.singletonList("other=global"),
+                    router.get(new URI("http://router.example.com/other"), new HashMap<String, List<String>>()).get("Cookie"));
+
+            router.unroute(store);
+            Assert.assertNull(router.storeFor(new URI("http://router.example.com/app/data")));
+            router.getCookieStore().removeAll();
+        } finally {
+            CookieRouter.uninstall();
+        }
+        Assert.assertSame(previous, CookieHandler.getDefault());
+    }
+
+    @Test
+    public void testRouterPrefersLongestBaseURL() throws Exception {
+        CookieRouter router = CookieRouter.install();
+        try {
+            ModuleCookieStore app = new ModuleCookieStore();
+            ModuleCookieStore admin = new ModuleCookieStore();
+            router.route(new URL("http://router.example.com/app"), app);
+            router.route(new URL("http://router.example.com:80/app/admin/"), admin);
+
+            Assert.assertSame(app, router.storeFor(new URI("http://router.example.com/app/login")));
+            Assert.assertSame(admin, router.storeFor(new URI("http://router.example.com/app/admin/login")));
+            Assert.assertSame(app, router.storeFor(new URI("http://router.example.com/app/administration")));
+            Assert.assertNull(router.storeFor(new URI("http://router.example.com/application")));
+            Assert.assertNull(router.storeFor(new URI("https://router.example.com/app/login")));
+            Assert.assertNull(router.storeFor(new URI("http://router.example.com:8080/app/login")));
+
+            router.unroute(app);
+            router.unroute(admin);
+        } finally {
+            CookieRouter.uninstall();
+        }
+    }
+
+    @Test
+    public void testModuleAttachesCookiesFromOneSource() throws Exception {
+        CookieHandler previous = CookieHandler.getDefault();
+        URL baseURL = new URL("http://logout.example.com/app");
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(baseURL);
+        Assert.assertSame(previous, CookieHandler.getDefault());
+        module.getCookieStore().storeCookies(new URI("http://logout.example.com/app/login"), response("session=1; Path=/"));
+        module.loginSync("user", "password");
+
+        Assert.assertNull(cookieHeader(module.loadModule(new URI("data"), "GET", new byte[] {})));
+        CookieHandler.setDefault(null);
+        try {
+            Assert.assertEquals("session=1", cookieHeader(module.loadModule(new URI("data"), "GET", new byte[] {})));
+        } finally {
+            CookieHandler.setDefault(previous);
+        }
+    }
+
+    @Test
+    public void testLogoutRemovesSessionFromDefaultHandler() throws Exception {
+        URL baseURL = new URL("http://logout.example.com/app");
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(baseURL);
+        CookieHandler global = CookieHandler.getDefault();
+
+        module.getCookieStore().storeCookies(new URI("http://logout.example.com/app/login"), response("session=1; Path=/app"));
+        global.put(new URI("http://logout.example.com/app/data"), setCookie("JSESSIONID=pipe; Path=/app"));
+        global.put(new URI("http://logout.example.com/other"), setCookie("unrelated=1; Path=/other"));
+
+        module.loginSync("user", "password");
+        module.logoutSync();
+
+        Assert.assertTrue(module.getCookieStore().getCookies().isEmpty());
+        Assert.assertEquals(names("unrelated"),
+                names(((CookieManager) global).getCookieStore().get(new URI("http://logout.example.com/"))));
+        ((CookieManager) global).getCookieStore().removeAll();
+    }
+
+    @Test
+    public void testPersistence() throws Exception {
+        URI origin = new URI("http://example.com/app");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        HttpCookie lasting = cookie("lasting", ".example.com", "/app");
+        lasting.setMaxAge(3600);
+        store.add(origin, lasting);
+        store.add(origin, cookie("session", null, null));
+        Assert.assertTrue(file.isFile());
+
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        List<HttpCookie> cookies = restarted.get(origin);
+        Assert.assertEquals(names("lasting", "session"), names(cookies));
+        for (HttpCookie cookie : cookies) {
+            if (cookie.getName().equals("lasting")) {
+                Assert.assertTrue(cookie.getMaxAge() > 3500);
+            }
+        }
+
+        restarted.removeAll();
+        Assert.assertFalse(file.exists());
+        ModuleCookieStore empty = new ModuleCookieStore();
+        empty.persistTo(file, key);
+        Assert.assertTrue(empty.getCookies().isEmpty());
+    }
+
+    @Test
+    public void testJournalIsReplayedOnFirstUse() throws Exception {
+        URI origin = new URI("http://example.com/app");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        store.add(origin, cookie("a", null, "/"));
+        store.add(origin, cookie("b", null, "/"));
+        store.add(origin, cookie("c", null, "/"));
+        store.remove(origin, cookie("b", null, "/"));
+
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        Assert.assertFalse(restarted.isLoaded());
+
+        Assert.assertEquals(names("a", "c"), names(restarted.get(origin)));
+        Assert.assertTrue(restarted.isLoaded());
+    }
+
+    @Test
+    public void testJournalIsCompacted() throws Exception {
+        URI origin = new URI("http://example.com/");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        store.add(origin, cookie("a", null, "/"));
+        long single = file.length();
+        for (int i = 0; i < 1000; i++) {
+            store.add(origin, cookie("session", null, "/"));
+        }
+
+        long deadline = System.currentTimeMillis() + 5000;
+        while (file.length() > 200 * single && System.currentTimeMillis() < deadline) {
+            Thread.sleep(10);
+        }
+        Assert.assertTrue(file.length() < 200 * single);
+
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        Assert.assertEquals(names("a", "session"), names(restarted.getCookies()));
+    }
+
+    @Test
+    public void testPartialRecordIsDropped() throws Exception {
+        URI origin = new URI("http://example.com/");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        store.add(origin, cookie("a", null, "/"));
+        store.persistTo(null, null);
+
+        RandomAccessFile journal = new RandomAccessFile(file, "rw");
+        try {
+            journal.seek(journal.length());
+            journal.write(new byte[] { 1, 0, 11, 'e' });
+        } finally {
+            journal.close();
+        }
+
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        Assert.assertEquals(names("a"), names(restarted.getCookies()));
+        restarted.add(origin, cookie("b", null, "/"));
+
+        ModuleCookieStore again = new ModuleCookieStore();
+        again.persistTo(file, key);
+        Assert.assertEquals(names("a", "b"), names(again.getCookies()));
+    }
+
+    @Test
+    public void testJournalIsEncrypted() throws Exception {
+        URI origin = new URI("http://example.com/");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.add(origin, new HttpCookie("JSESSIONID", "secret-session-value"));
+        // the cookie of the memory store is written by a compaction
+        store.persistTo(file, key);
+        store.add(origin, new HttpCookie("token", "secret-token-value"));
+        Assert.assertEquals(names("JSESSIONID", "token"), names(store.getCookies()));
+
+        String content = new String(readFile(), "ISO-8859-1");
+        Assert.assertFalse(content.contains("secret"));
+        Assert.assertFalse(content.contains("JSESSIONID"));
+
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        ModuleCookieStore otherKey = new ModuleCookieStore();
+        otherKey.persistTo(file, generator.generateKey());
+        Assert.assertTrue(otherKey.getCookies().isEmpty());
+    }
+
+    @Test
+    public void testModifiedRecordIsRejected() throws Exception {
+        URI origin = new URI("http://example.com/");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        store.add(origin, cookie("a", null, "/"));
+        long first = file.length();
+        store.add(origin, cookie("b", null, "/"));
+        store.persistTo(null, null);
+
+        RandomAccessFile journal = new RandomAccessFile(file, "rw");
+        try {
+            journal.seek(first + 4 + 20);
+            int value = journal.read();
+            journal.seek(first + 4 + 20);
+            journal.write(value ^ 1);
+        } finally {
+            journal.close();
+        }
+
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        Assert.assertEquals(names("a"), names(restarted.getCookies()));
+    }
+
+    @Test
+    public void testRemoveAllIsOrderedWithAdds() throws Exception {
+        final URI origin = new URI("http://example.com/");
+        final ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        final AtomicBoolean done = new AtomicBoolean();
+        Thread[] writers = new Thread[4];
+        for (int t = 0; t < writers.length; t++) {
+            final int thread = t;
+            writers[t] = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    for (int i = 0; !done.get(); i++) {
+                        store.add(origin, cookie("c" + thread + "-" + (i % 50), null, "/"));
+                    }
+                }
+            });
+            writers[t].start();
+        }
+        for (int i = 0; i < 200; i++) {
+            store.removeAll();
+        }
+        done.set(true);
+        for (Thread writer : writers) {
+            writer.join();
+        }
+
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        Assert.assertEquals(names(store.getCookies()), names(restarted.getCookies()));
+    }
+
+    @Test
+    public void testExpiredCookiesAreSwept() throws Exception {
+        URI origin = new URI("http://example.com/");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        HttpCookie shortLived = cookie("short", null, "/");
+        shortLived.setMaxAge(1);
+        store.add(origin, shortLived);
+        store.add(origin, cookie("session", null, "/"));
+
+        Thread.sleep(1100);
+        store.expire();
+
+        Assert.assertEquals(names("session"), names(store.getCookies()));
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        Assert.assertEquals(names("session"), names(restarted.getCookies()));
+    }
+
+    @Test
+    public void testRemoveAllDoesNotReadJournal() throws Exception {
+        URI origin = new URI("http://example.com/");
+        ModuleCookieStore store = new ModuleCookieStore();
+        store.persistTo(file, key);
+        store.add(origin, cookie("a", null, "/"));
+
+        ModuleCookieStore restarted = new ModuleCookieStore();
+        restarted.persistTo(file, key);
+        Assert.assertTrue(restarted.removeAll());
+
+        Assert.assertFalse(file.exists());
+        Assert.assertTrue(restarted.isLoaded());
+        Assert.assertTrue(restarted.getCookies().isEmpty());
+    }
+
+    /**
+     * Compares lookups and logout of a module store with the default cookie
+     * store, for many cookies spread over many hosts.
+     */
+    @Test
+    @Ignore("benchmark")
+    public void benchmarkLargeCookieCounts() throws Exception {
+        ModuleCookieStore module = new ModuleCookieStore();
+        CookieStore global = new CookieManager().getCookieStore();
+        URI[] hosts = new URI[BENCHMARK_HOSTS];
+        for (int i = 0; i < BENCHMARK_HOSTS; i++) {
+            hosts[i] = new URI("http://host" + i + ".example.com/app");
+        }
+        for (int i = 0; i < BENCHMARK_COOKIES; i++) {
+            URI host = hosts[i % BENCHMARK_HOSTS];
+            module.add(host, cookie("c" + i, null, "/app"));
+            global.add(host, cookie("c" + i, null, "/app"));
+        }
+
+        URI lookup = hosts[0];
+        for (int i = 0; i < 100; i++) {
+            module.get(lookup);
+            global.get(lookup);
+        }
+        long start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            module.get(lookup);
+        }
+        long moduleGet = (System.nanoTime() - start) / 100;
+        start = System.nanoTime();
+        for (int i = 0; i < 100; i++) {
+            global.get(lookup);
+        }
+        long globalGet = (System.nanoTime() - start) / 100;
+
+        start = System.nanoTime();
+        module.removeAll();
+        long moduleLogout = System.nanoTime() - start;
+        start = System.nanoTime();
+        for (URI host : hosts) {
+            for (HttpCookie cookie : global.get(host)) {
+                global.remove(host, cookie);
+            }
+        }
+        long globalLogout = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("%d cookies on %d hosts: get %dus module vs %dus default store,"
+                + " logout %dus module vs %dus default store", BENCHMARK_COOKIES, BENCHMARK_HOSTS,
+                moduleGet / 1000, globalGet / 1000, moduleLogout / 1000, globalLogout / 1000));
+    }
+
+    private byte[] readFile() throws Exception {
+        RandomAccessFile in = new RandomAccessFile(file, "r");
+        try {
+            byte[] content = new byte[(int) in.length()];
+            in.readFully(content);
+            return content;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static HttpCookie cookie(String name, String domain, String path) {
+        HttpCookie cookie = new HttpCookie(name, "value");
+        cookie.setDomain(domain);
+        cookie.setPath(path);
+        cookie.setVersion(0);
+        return cookie;
+    }
+
+    private static Map<String, List<String>> setCookie(String value) {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>();
+        headers.put("Set-Cookie", Collections.singletonList(value));
+        return headers;
+    }
+
+    private static HeaderAndBody response(String setCookie) {
+        HashMap<String, Object> headers = new HashMap<String, Object>();
+        headers.put("Set-Cookie", setCookie);
+        return new HeaderAndBody(new byte[] {}, headers);
+    }
+
+    private static String cookieHeader(ModuleFields fields) {
+        for (Pair<String, String> header : fields.getHeaders()) {
+            if ("Cookie".equals(header.first)) {
+                return header.second;
+            }
+        }
+        return null;
+    }
+
+    private static List<String> names(String... names) {
+        return Arrays.asList(names);
+    }
+
+    private static List<String> names(List<HttpCookie> cookies) {
+        List<String> names = new ArrayList<String>();
+        for (HttpCookie cookie : cookies) {
+            names.add(cookie.getName());
+        }
+        Collections.sort(names);
+        return names;
+    }
+}
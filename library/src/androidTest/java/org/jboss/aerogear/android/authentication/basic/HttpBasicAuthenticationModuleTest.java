@@ -0,0 +1,103 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.basic;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Pair;
+
+import org.jboss.aerogear.android.authentication.util.VoidCallback;
+import org.jboss.aerogear.android.pipe.module.ModuleFields;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.URI;
+import java.net.URL;
+import java.util.HashMap;
+
+@RunWith(AndroidJUnit4.class)
+public class HttpBasicAuthenticationModuleTest {
+
+    @Test
+    public void testHeaderIsEncodedOnceAndShared() throws Exception {
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"));
+        module.login("Aladdin", "open sesame", new VoidCallback());
+
+        ModuleFields first = module.loadModule(new URI("/test/autobots"), "GET", new byte[] {});
+        ModuleFields second = module.loadModule(new URI("/test/decepticons"), "POST", new byte[] { 1 });
+
+        Assert.assertSame(first.getHeaders().get(0), second.getHeaders().get(0));
+        Assert.assertEquals(1, first.getHeaders().size());
+        Assert.assertEquals("Authorization", first.getHeaders().get(0).first);
+        Assert.assertEquals("Basic QWxhZGRpbjpvcGVuIHNlc2FtZQ==", first.getHeaders().get(0).second);
+    }
+
+    @Test
+    public void testFieldsBelongToTheCaller() throws Exception {
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"));
+        module.login("Aladdin", "open sesame", new VoidCallback());
+
+        ModuleFields first = module.loadModule(new URI("/test/autobots"), "GET", new byte[] {});
+        first.getHeaders().add(new Pair<String, String>("Accept", "application/json"));
+        first.getQueryParameters().add(new Pair<String, String>("page", "1"));
+
+        ModuleFields second = module.loadModule(new URI("/test/autobots"), "GET", new byte[] {});
+        Assert.assertEquals(2, first.getHeaders().size());
+        Assert.assertEquals(1, second.getHeaders().size());
+        Assert.assertTrue(second.getQueryParameters().isEmpty());
+    }
+
+    @Test
+    public void testLogoutDropsCredentials() throws Exception {
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"));
+        if (CookieHandler.getDefault() == null) {
+            CookieHandler.setDefault(new CookieManager());
+        }
+        module.login("Aladdin", "open sesame", new VoidCallback());
+        module.logout(new VoidCallback());
+
+        ModuleFields fields = module.loadModule(new URI("/test/autobots"), "GET", new byte[] {});
+
+        Assert.assertFalse(module.isLoggedIn());
+        Assert.assertEquals("Basic Og==", fields.getHeaders().get(0).second);
+    }
+
+    @Test
+    public void testSyncLoginAndLogout() throws Exception {
+        if (CookieHandler.getDefault() == null) {
+            CookieHandler.setDefault(new CookieManager());
+        }
+        HttpBasicAuthenticationModule module = new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"));
+
+        Assert.assertNotNull(module.loginSync("Aladdin", "open sesame"));
+        Assert.assertTrue(module.isLoggedIn());
+        Assert.assertEquals("Basic QWxhZGRpbjpvcGVuIHNlc2FtZQ==",
+                module.loadModule(new URI("/test/autobots"), "GET", new byte[] {}).getHeaders().get(0).second);
+
+        module.logoutSync();
+        Assert.assertFalse(module.isLoggedIn());
+    }
+
+    @Test(expected = UnsupportedOperationException.class)
+    public void testEnrollSyncIsNotSupported() throws Exception {
+        new HttpBasicAuthenticationModule(new URL("http://localhost:8080/test"))
+                .enrollSync(new HashMap<String, String>());
+    }
+
+}
@@ -0,0 +1,65 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+@RunWith(AndroidJUnit4.class)
+public class DigestAlgorithmTest {
+
+    @Test
+    public void testFromToken() {
+        Assert.assertEquals(DigestAlgorithm.MD5_SESS, DigestAlgorithm.fromToken("md5-SESS"));
+        Assert.assertEquals(DigestAlgorithm.SHA_512_256, DigestAlgorithm.fromToken(" SHA-512-256 "));
+        Assert.assertNull(DigestAlgorithm.fromToken("SHA-1"));
+        Assert.assertNull(DigestAlgorithm.fromToken(null));
+    }
+
+    @Test
+    public void testMissingAlgorithmMeansMD5() {
+        Assert.assertEquals(DigestAlgorithm.MD5, DigestAlgorithm.strongest(null));
+    }
+
+    @Test
+    public void testStrongestOfList() {
+        Assert.assertEquals(DigestAlgorithm.SHA_256, DigestAlgorithm.strongest("MD5,SHA-256,MD5-sess"));
+        Assert.assertNull(DigestAlgorithm.strongest("SHA-1,token"));
+    }
+
+    @Test
+    public void testEnginesAreShared() {
+        Assert.assertSame(DigestAlgorithm.SHA_256.getEngine(), DigestAlgorithm.SHA_256_SESS.getEngine());
+        Assert.assertSame(DigestHashEngine.getInstance("SHA-256"), DigestAlgorithm.SHA_256.getEngine());
+        Assert.assertEquals(64, DigestAlgorithm.SHA_256.getEngine().getHexLength());
+    }
+
+    @Test
+    public void testSelectChallengePrefersStrongestAlgorithm() {
+        DigestChallenge challenge = DigestAuthenticationModuleRunner.selectChallenge(
+                "Digest realm=\"a\", nonce=\"1\", algorithm=MD5, "
+                        + "Digest realm=\"b\", nonce=\"2\", algorithm=SHA-256, "
+                        + "Digest realm=\"c\", nonce=\"3\", algorithm=UNKNOWN");
+
+        Assert.assertEquals("b", challenge.getRealm());
+        Assert.assertNull(DigestAuthenticationModuleRunner.selectChallenge("Basic realm=\"a\""));
+    }
+
+}
@@ -0,0 +1,469 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authentication.AuthenticationException;
+import org.jboss.aerogear.android.authentication.Deadline;
+import org.jboss.aerogear.android.authentication.ModuleCookieStore;
+import org.jboss.aerogear.android.authentication.util.UnitTestUtils;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+@RunWith(AndroidJUnit4.class)
+public class DigestAuthenticationModuleRunnerTest {
+
+    private static final String USERNAME = "agnes";
+    private static final String PASSWORD = "123";
+    private static final int THREADS = 8;
+    private static final int REQUESTS_PER_THREAD = 500;
+
+    private DigestStubServer server;
+    private DigestAuthenticationModuleRunner runner;
+    private CookieHandler defaultHandler;
+
+    @Before
+    public void setUp() throws Exception {
+        defaultHandler = CookieHandler.getDefault();
+        CookieHandler.setDefault(null);
+        server = new DigestStubServer(USERNAME, PASSWORD);
+        runner = new DigestAuthenticationModuleRunner(new URL("http://localhost:8080/test"), "/login", "/logout", 1000);
+        UnitTestUtils.setPrivateField(runner, "httpProviderFactory", server);
+    }
+
+    @After
+    public void tearDown() {
+        CookieHandler.setDefault(defaultHandler);
+    }
+
+    @Test
+    public void testLogin() {
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertEquals(1, server.getRejectedCount());
+    }
+
+    @Test
+    public void testLoginKeepsCookiesOfTheChallenge() throws Exception {
+        ModuleCookieStore cookies = new ModuleCookieStore();
+        runner.setCookieStore(cookies);
+        server.setCookie("JSESSIONID=server; Path=/test");
+
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertEquals("JSESSIONID=server", server.getLastCookie());
+        Assert.assertEquals("JSESSIONID=server", cookies.getCookieHeader(new URI("http://localhost:8080/test/autobots")));
+        Assert.assertNull(cookies.getCookieHeader(new URI("http://localhost:8080/other")));
+    }
+
+    @Test
+    public void testLogoutSendsCookiesAndDropsThem() throws Exception {
+        ModuleCookieStore cookies = new ModuleCookieStore();
+        runner.setCookieStore(cookies);
+        server.setCookie("JSESSIONID=server; Path=/test");
+        runner.onLogin(USERNAME, PASSWORD);
+        server.setCookie(null);
+
+        try {
+            runner.onLogout(Deadline.never());
+        } catch (HttpException expected) {
+            // the stub rejects the unsigned logout
+        }
+
+        Assert.assertEquals("JSESSIONID=server", server.getLastCookie());
+        Assert.assertTrue(cookies.getCookies().isEmpty());
+    }
+
+    @Test
+    public void testDefaultHandlerIsTheOnlyCookieSource() throws Exception {
+        CookieManager global = new CookieManager();
+        CookieHandler.setDefault(global);
+        ModuleCookieStore cookies = new ModuleCookieStore();
+        runner.setCookieStore(cookies);
+        server.setCookie("JSESSIONID=server; Path=/test");
+
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertNull(server.getLastCookie());
+        Assert.assertEquals(1, cookies.getCookies().size());
+
+        URI base = new URI("http://localhost:8080/test");
+        global.getCookieStore().add(base, HttpCookie.parse("Set-Cookie: JSESSIONID=pipe; Path=/test").get(0));
+        try {
+            runner.onLogout(Deadline.never());
+        } catch (HttpException expected) {
+            // the stub rejects the unsigned logout
+        }
+
+        Assert.assertTrue(cookies.getCookies().isEmpty());
+        Assert.assertTrue(global.getCookieStore().get(base).isEmpty());
+    }
+
+    @Test
+    public void testPreemptiveLoginSkipsChallenge() {
+        runner.setPreemptive(true, 60000);
+        runner.onLogin(USERNAME, PASSWORD);
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertEquals(3, server.getRequestCount());
+        Assert.assertEquals(1, server.getRejectedCount());
+        Assert.assertEquals(1, runner.getStatistics().getRoundTripsSaved());
+    }
+
+    @Test
+    public void testPreemptiveLoginFallsBackToChallenge() {
+        runner.setPreemptive(true, 60000);
+        runner.onLogin(USERNAME, PASSWORD);
+        server.setNonce("0a4f113b");
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertEquals(4, server.getRequestCount());
+        Assert.assertEquals(2, server.getRejectedCount());
+        Assert.assertEquals(1, runner.getStatistics().getPreemptiveFallbacks());
+        Assert.assertEquals(0, runner.getStatistics().getRoundTripsSaved());
+    }
+
+    @Test
+    public void testExpiredChallengeIsNotReused() throws Exception {
+        runner.setPreemptive(true, 0);
+        runner.onLogin(USERNAME, PASSWORD);
+        Thread.sleep(5);
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertEquals(4, server.getRequestCount());
+        Assert.assertEquals(0, runner.getStatistics().getPreemptiveAttempts());
+    }
+
+    @Test
+    public void testStaleNonceIsRenewedWithoutRequests() throws Exception {
+        runner.onLogin(USERNAME, PASSWORD);
+        server.setNonce("0a4f113b");
+
+        Assert.assertTrue(runner.onError(new HttpException(new byte[] {}, 401, server.challengeHeaders(true))));
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertEquals(1, runner.getStatistics().getStaleNonces());
+
+        String header = runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {});
+        Assert.assertEquals("00000001", DigestStubServer.parameters(header).get("nc"));
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testUnauthorizedCausesNewHandshake() {
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertTrue(runner.onError(new HttpException(new byte[] {}, 401, server.challengeHeaders(false))));
+        Assert.assertEquals(4, server.getRequestCount());
+        Assert.assertEquals(0, runner.getStatistics().getStaleNonces());
+    }
+
+    @Test
+    public void testOtherErrorsAreNotRetried() {
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertFalse(runner.onError(new HttpException(new byte[] {}, 500)));
+        Assert.assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testNextnonceRotatesNonce() throws Exception {
+        runner.onLogin(USERNAME, PASSWORD);
+        URI uri = new URI("/test/autobots");
+        String header = runner.getAuthorizationHeader(uri, "GET", new byte[] {});
+
+        Assert.assertTrue(runner.onAuthenticationInfo(uri, server.authenticationInfo(header, "0a4f113b")));
+        Assert.assertEquals(1, runner.getStatistics().getNonceRotations());
+
+        server.setNonce("0a4f113b");
+        header = runner.getAuthorizationHeader(uri, "GET", new byte[] {});
+        Assert.assertEquals("00000001", DigestStubServer.parameters(header).get("nc"));
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testWrongRspauthIsDetected() throws Exception {
+        runner.onLogin(USERNAME, PASSWORD);
+        URI uri = new URI("/test/autobots");
+        String header = runner.getAuthorizationHeader(uri, "GET", new byte[] {});
+        String info = server.authenticationInfo(header, server.getNonce()).replace("rspauth=\"", "rspauth=\"0");
+
+        Assert.assertFalse(runner.onAuthenticationInfo(uri, info));
+        Assert.assertEquals(1, runner.getStatistics().getRspauthMismatches());
+        Assert.assertEquals(0, runner.getStatistics().getNonceRotations());
+    }
+
+    @Test
+    public void testHA1IsCachedByRealmAndAlgorithm() throws Exception {
+        DigestHA1Cache cache = (DigestHA1Cache) UnitTestUtils.getPrivateField(runner, "ha1Cache");
+        runner.onLogin(USERNAME, PASSWORD);
+        char[] md5 = cache.get("MD5", DigestStubServer.REALM);
+        Assert.assertNotNull(md5);
+
+        server.setNonce("0a4f113b");
+        Assert.assertTrue(runner.onError(new HttpException(new byte[] {}, 401, server.challengeHeaders(false))));
+        Assert.assertSame(md5, cache.get("MD5", DigestStubServer.REALM));
+        URI uri = new URI("/test/autobots");
+        Assert.assertTrue(server.verify(runner.getAuthorizationHeader(uri, "GET", new byte[] {}), "GET"));
+
+        server.setRealm("other@aerogear.org");
+        server.setNonce("5ccc069c");
+        Assert.assertFalse(runner.onError(new HttpException(new byte[] {}, 401, server.challengeHeaders(false))));
+
+        runner.onLogin(USERNAME, PASSWORD);
+        Assert.assertNotNull(cache.get("MD5", "other@aerogear.org"));
+        Assert.assertNull(cache.get("MD5", DigestStubServer.REALM));
+        Assert.assertEquals(new String(new char[md5.length]).replace('\0', '0'), new String(md5));
+        Assert.assertTrue(server.verify(runner.getAuthorizationHeader(uri, "GET", new byte[] {}), "GET"));
+
+        server.setAlgorithms("SHA-256");
+        server.setNonce("7a4f113c");
+        Assert.assertFalse(runner.onError(new HttpException(new byte[] {}, 401, server.challengeHeaders(true))));
+        Assert.assertNull(cache.get("SHA-256", "other@aerogear.org"));
+    }
+
+    @Test
+    @SuppressWarnings("unchecked")
+    public void testWipeKeepsSessionsInUse() throws Exception {
+        DigestHA1Cache cache = (DigestHA1Cache) UnitTestUtils.getPrivateField(runner, "ha1Cache");
+        runner.onLogin(USERNAME, PASSWORD);
+        DigestSession inUse = ((AtomicReference<DigestSession>) UnitTestUtils.getPrivateField(runner, "session")).get();
+        char[] cached = cache.get("MD5", DigestStubServer.REALM);
+        String ha1 = new String(inUse.ha1);
+        Assert.assertNotSame(cached, inUse.ha1);
+
+        runner.wipe();
+
+        Assert.assertTrue(cache.isEmpty());
+        Assert.assertEquals(new String(new char[cached.length]).replace('\0', '0'), new String(cached));
+        Assert.assertEquals(ha1, new String(inUse.ha1));
+    }
+
+    @Test
+    public void testLoginChecksRspauth() throws Exception {
+        server.sendAuthenticationInfo(false);
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertEquals(0, runner.getStatistics().getRspauthMismatches());
+        Assert.assertNotNull(runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {}));
+    }
+
+    @Test
+    public void testLoginChecksRspauthOfAuthInt() throws Exception {
+        server.setQop("auth-int");
+        server.setResponseBody("{\"user\":\"agnes\"}".getBytes("UTF-8"));
+        server.sendAuthenticationInfo(false);
+        runner.onLogin(USERNAME, PASSWORD);
+
+        Assert.assertEquals(0, runner.getStatistics().getRspauthMismatches());
+        Assert.assertNotNull(runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {}));
+    }
+
+    @Test
+    public void testForgedRspauthOfAuthIntFailsLogin() throws Exception {
+        server.setQop("auth-int");
+        server.setResponseBody("{\"user\":\"agnes\"}".getBytes("UTF-8"));
+        server.sendAuthenticationInfo(true);
+        try {
+            runner.onLogin(USERNAME, PASSWORD);
+            Assert.fail("A forged rspauth must fail the login");
+        } catch (AuthenticationException expected) {
+        }
+
+        Assert.assertEquals(1, runner.getStatistics().getRspauthMismatches());
+    }
+
+    @Test
+    public void testRspauthOfAuthIntWithoutBodyIsSkipped() throws Exception {
+        server.setQop("auth-int");
+        runner.onLogin(USERNAME, PASSWORD);
+        String authorization = runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {});
+        String forged = server.authenticationInfo(authorization, server.getNonce()).replace("rspauth=\"", "rspauth=\"0");
+
+        Assert.assertTrue(runner.onAuthenticationInfo(new URI("/test/autobots"), forged));
+        Assert.assertFalse(runner.onAuthenticationInfo(new URI("/test/autobots"), forged, new byte[] {}));
+    }
+
+    @Test
+    public void testForgedRspauthFailsLogin() throws Exception {
+        server.sendAuthenticationInfo(true);
+        try {
+            runner.onLogin(USERNAME, PASSWORD);
+            Assert.fail("A forged rspauth must fail the login");
+        } catch (AuthenticationException expected) {
+        }
+
+        Assert.assertEquals(1, runner.getStatistics().getRspauthMismatches());
+        Assert.assertNull(runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {}));
+    }
+
+    @Test
+    public void testChallengeWithoutOpaque() throws Exception {
+        server.setOpaque(null);
+        runner.onLogin(USERNAME, PASSWORD);
+
+        String header = runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {});
+        Assert.assertFalse(header.contains("opaque"));
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testNoHeaderWithoutSession() throws Exception {
+        Assert.assertNull(runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {}));
+    }
+
+    @Test
+    public void testNonceCountsAreFormatted() throws Exception {
+        runner.onLogin(USERNAME, PASSWORD);
+
+        String header = runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {});
+
+        // the login request used 00000001
+        Assert.assertEquals("00000002", DigestStubServer.parameters(header).get("nc"));
+    }
+
+    @Test
+    public void testAuthIntBodiesAreHashed() throws Exception {
+        server.setQop("auth-int");
+        runner.onLogin(USERNAME, PASSWORD);
+        byte[] body = new byte[100000];
+        for (int i = 0; i < body.length; i++) {
+            body[i] = (byte) i;
+        }
+        URI uri = new URI("/test/autobots");
+
+        Assert.assertTrue(server.verify(runner.getAuthorizationHeader(uri, "POST", body), "POST", body));
+        Assert.assertTrue(server.verify(runner.getAuthorizationHeader(uri, "POST", new ByteArrayInputStream(body)), "POST", body));
+        ByteBuffer buffer = ByteBuffer.wrap(body);
+        Assert.assertTrue(server.verify(runner.getAuthorizationHeader(uri, "POST", buffer), "POST", body));
+        Assert.assertEquals(0, buffer.position());
+
+        File file = File.createTempFile("auth-int", ".bin");
+        try {
+            FileOutputStream output = new FileOutputStream(file);
+            try {
+                output.write(body);
+            } finally {
+                output.close();
+            }
+            Assert.assertTrue(server.verify(runner.getAuthorizationHeader(uri, "POST", file), "POST", body));
+        } finally {
+            file.delete();
+        }
+    }
+
+    @Test
+    public void testAuthIsPreferredOverAuthInt() throws Exception {
+        runner.onLogin(USERNAME, PASSWORD);
+
+        String header = runner.getAuthorizationHeader(new URI("/test/autobots"), "POST", new ByteArrayInputStream(new byte[] { 1 }));
+
+        Assert.assertEquals("auth", DigestStubServer.parameters(header).get("qop"));
+    }
+
+    @Test
+    public void testStrongestAlgorithmIsNegotiated() throws Exception {
+        server.setAlgorithms("MD5", "SHA-256", "MD5-sess");
+        runner.onLogin(USERNAME, PASSWORD);
+
+        String header = runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {});
+
+        Assert.assertEquals("SHA-256", DigestStubServer.parameters(header).get("algorithm"));
+        Assert.assertEquals(64, DigestStubServer.parameters(header).get("response").length());
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testSessionAlgorithms() throws Exception {
+        for (DigestAlgorithm algorithm : DigestAlgorithm.values()) {
+            if (!algorithm.isSupported()) {
+                continue;
+            }
+            server.setAlgorithms(algorithm.getToken());
+            server.setNonce("nonce-" + algorithm.getToken());
+            runner.onLogin(USERNAME, PASSWORD);
+
+            String header = runner.getAuthorizationHeader(new URI("/test/autobots"), "GET", new byte[] {});
+
+            Assert.assertEquals(algorithm.getToken(), DigestStubServer.parameters(header).get("algorithm"));
+            Assert.assertTrue(algorithm.getToken(), server.verify(header, "GET"));
+        }
+    }
+
+    @Test
+    public void testConcurrentHeadersAreValidAndUnique() throws Exception {
+        runner.onLogin(USERNAME, PASSWORD);
+
+        final URI uri = new URI("/test/autobots");
+        final AtomicInteger failures = new AtomicInteger();
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        ExecutorService executor = Executors.newFixedThreadPool(THREADS);
+
+        for (int i = 0; i < THREADS; i++) {
+            executor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        int lastNonceCount = 0;
+                        for (int request = 0; request < REQUESTS_PER_THREAD; request++) {
+                            String header = runner.getAuthorizationHeader(uri, "GET", new byte[] {});
+                            int nonceCount = Integer.parseInt(DigestStubServer.parameters(header).get("nc"), 16);
+                            if (!server.verify(header, "GET") || nonceCount <= lastNonceCount) {
+                                failures.incrementAndGet();
+                            }
+                            lastNonceCount = nonceCount;
+                        }
+                    } catch (InterruptedException e) {
+                        failures.incrementAndGet();
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(30, TimeUnit.SECONDS));
+        executor.shutdown();
+
+        Assert.assertEquals(0, failures.get());
+    }
+
+}
@@ -0,0 +1,97 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authentication.util.UnitTestUtils;
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.nio.ByteBuffer;
+
+@RunWith(AndroidJUnit4.class)
+public class DigestHashEngineTest {
+
+    private static final String ABC_MD5 = "900150983cd24fb0d6963f7d28e17f72";
+
+    private final DigestHashEngine md5 = DigestHashEngine.getInstance("MD5");
+
+    @Test
+    public void testEngineIsShared() {
+        Assert.assertSame(md5, DigestHashEngine.getInstance("MD5"));
+        Assert.assertEquals(32, md5.getHexLength());
+    }
+
+    @Test
+    public void testComputeMD5Hash() {
+        Assert.assertEquals("d41d8cd98f00b204e9800998ecf8427e", DigestHeaderUtils.computeMD5Hash(new byte[] {}));
+        Assert.assertEquals(ABC_MD5, DigestHeaderUtils.computeMD5Hash("abc".getBytes()));
+    }
+
+    @Test
+    public void testPasswordIsWipedFromHasher() throws Exception {
+        char[] password = "Circle Of Life".toCharArray();
+        DigestHashEngine.Hasher hasher = md5.hasher();
+        hasher.update("Mufasa:testrealm@host.com:").update(password, 0, password.length).finishToHex();
+
+        for (byte b : (byte[]) UnitTestUtils.getPrivateField(hasher, "scratch")) {
+            Assert.assertEquals(0, b);
+        }
+        for (byte b : (byte[]) UnitTestUtils.getPrivateField(hasher, "result")) {
+            Assert.assertEquals(0, b);
+        }
+    }
+
+    @Test
+    public void testHashSliceIntoCharBuffer() {
+        char[] out = new char[40];
+        int written = md5.hash("xxabcxx".getBytes(), 2, 3, out, 4);
+
+        Assert.assertEquals(32, written);
+        Assert.assertEquals(ABC_MD5, new String(out, 4, written));
+    }
+
+    @Test
+    public void testHashByteBufferIntoByteBuffer() throws Exception {
+        byte[] out = new byte[32];
+        ByteBuffer input = ByteBuffer.allocateDirect(3);
+        input.put("abc".getBytes()).flip();
+
+        md5.hash(input, out, 0);
+
+        Assert.assertEquals(ABC_MD5, new String(out, "US-ASCII"));
+        Assert.assertFalse(input.hasRemaining());
+    }
+
+    @Test
+    public void testHasherEncodesUtf8() throws Exception {
+        String value = "j\u00f6rg:\u4e16\u754c:\ud83d\ude00";
+
+        Assert.assertEquals(DigestHeaderUtils.computeMD5Hash(value.getBytes("UTF-8")),
+                md5.hasher().update(value).finishToHex());
+    }
+
+    @Test
+    public void testHasherIsResetBetweenUses() {
+        md5.hasher().update("unfinished");
+
+        Assert.assertEquals(ABC_MD5, md5.hasher().update('a').update("bc").finishToHex());
+    }
+
+}
@@ -0,0 +1,120 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Log;
+
+import org.junit.Ignore;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Compares the index based challenge parser with the regex based parser it
+ * replaced. Run it manually on a device, the results are logged.
+ */
+@Ignore
+@RunWith(AndroidJUnit4.class)
+public class DigestHeaderUtilsBenchmark {
+
+    private static final String TAG = DigestHeaderUtilsBenchmark.class.getSimpleName();
+
+    private static final String CHALLENGE = "Digest realm=\"testrealm@host.com\",qop=\"auth,auth-int\","
+            + "nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\",opaque=\"5ccc069c403ebaf9f0171e9517f40e41\"";
+
+    private static final int WARM_UP = 2000;
+    private static final int ITERATIONS = 20000;
+
+    @Test
+    public void compareParsers() {
+        DigestChallenge challenge = new DigestChallenge();
+
+        for (int i = 0; i < WARM_UP; i++) {
+            legacyExtractValues(CHALLENGE);
+            DigestHeaderUtils.parseChallenge(CHALLENGE, challenge);
+        }
+
+        long start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            legacyExtractValues(CHALLENGE);
+        }
+        long legacy = System.nanoTime() - start;
+
+        start = System.nanoTime();
+        for (int i = 0; i < ITERATIONS; i++) {
+            DigestHeaderUtils.parseChallenge(CHALLENGE, challenge);
+        }
+        long scanner = System.nanoTime() - start;
+
+        Log.i(TAG, String.format("legacy parser: %d ns/op, scanner: %d ns/op", legacy / ITERATIONS, scanner / ITERATIONS));
+    }
+
+    /**
+     * The parser as it was before the scanner was introduced.
+     */
+    private static Map<String, String> legacyExtractValues(String authenticateHeader) {
+        int state = 0;
+        StringBuilder word = new StringBuilder();
+        String key = "";
+        String valueTerminator = ",";
+
+        Map<String, String> values = new HashMap<String, String>();
+        authenticateHeader = authenticateHeader.trim();
+
+        for (Character character : authenticateHeader.toCharArray()) {
+            if (character.toString().matches("\\s")) {
+                continue;
+            }
+            switch (state) {
+            case 0:
+                word.append(character);
+                if (word.lastIndexOf("Digest") != -1) {
+                    word = new StringBuilder();
+                    state = 1;
+                }
+                break;
+            case 1:
+                if (character.toString().matches("=")) {
+                    key = word.toString();
+                    word = new StringBuilder();
+                    state = 2;
+                } else if (!character.toString().matches(",")) {
+                    word.append(character);
+                }
+                break;
+            default:
+                if (character.toString().matches(valueTerminator)) {
+                    values.put(key, word.toString());
+                    word = new StringBuilder();
+                    valueTerminator = ",";
+                    state = 1;
+                } else if (character.toString().matches("\"")) {
+                    valueTerminator = "\"";
+                } else {
+                    word.append(character);
+                }
+                break;
+            }
+        }
+
+        return values;
+    }
+
+}
@@ -0,0 +1,144 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.junit.Assert;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.util.List;
+import java.util.Map;
+
+@RunWith(AndroidJUnit4.class)
+public class DigestHeaderUtilsTest {
+
+    private static final String RFC_7616_CHALLENGES = "Digest realm=\"http-auth@example.org\", qop=\"auth, auth-int\", "
+            + "algorithm=SHA-256, nonce=\"7ypf/xlj9XXwfDPEoM4URrv/xwf94BcCAzFZH4GiTo0v\", "
+            + "opaque=\"FQhe/qaU925kfnzjCev0ciny7QMkPqMAFRtzCUYo5tdS\", "
+            + "Digest realm=\"http-auth@example.org\", qop=\"auth, auth-int\", algorithm=MD5, "
+            + "nonce=\"7ypf/xlj9XXwfDPEoM4URrv/xwf94BcCAzFZH4GiTo0v\", "
+            + "opaque=\"FQhe/qaU925kfnzjCev0ciny7QMkPqMAFRtzCUYo5tdS\"";
+
+    @Test
+    public void testParseSingleChallenge() {
+        DigestChallenge challenge = new DigestChallenge();
+        Assert.assertTrue(DigestHeaderUtils.parseChallenge(
+                "Digest realm=\"testrealm@host.com\",qop=\"auth,auth-int\",nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\","
+                        + "opaque=\"5ccc069c403ebaf9f0171e9517f40e41\"", challenge));
+
+        Assert.assertEquals("testrealm@host.com", challenge.getRealm());
+        Assert.assertEquals("dcd98b7102dd2f0e8b11d0f600bfb0c093", challenge.getNonce());
+        Assert.assertEquals("5ccc069c403ebaf9f0171e9517f40e41", challenge.getOpaque());
+        Assert.assertTrue(challenge.supportsQop("auth"));
+        Assert.assertTrue(challenge.supportsQop("auth-int"));
+        Assert.assertNull(challenge.getAlgorithm());
+        Assert.assertFalse(challenge.isStale());
+    }
+
+    @Test
+    public void testParseMultipleChallenges() {
+        List<DigestChallenge> challenges = DigestHeaderUtils.parseChallenges(RFC_7616_CHALLENGES);
+
+        Assert.assertEquals(2, challenges.size());
+        Assert.assertEquals("SHA-256", challenges.get(0).getAlgorithm());
+        Assert.assertEquals("MD5", challenges.get(1).getAlgorithm());
+        Assert.assertEquals("FQhe/qaU925kfnzjCev0ciny7QMkPqMAFRtzCUYo5tdS", challenges.get(1).getOpaque());
+    }
+
+    @Test
+    public void testSkipsOtherSchemes() {
+        List<DigestChallenge> challenges = DigestHeaderUtils.parseChallenges(
+                "Basic realm=\"basic\", Negotiate dG9rZW4=, Digest realm=\"digest\", nonce=abc, stale=TRUE");
+
+        Assert.assertEquals(1, challenges.size());
+        Assert.assertEquals("digest", challenges.get(0).getRealm());
+        Assert.assertEquals("abc", challenges.get(0).getNonce());
+        Assert.assertTrue(challenges.get(0).isStale());
+    }
+
+    @Test
+    public void testSkipsToken68Challenges() {
+        List<DigestChallenge> challenges = DigestHeaderUtils.parseChallenges(
+                "Negotiate YIIB+gYGKwYBBQUCoIIB/jCCAfqgMDAuBgkqhkiC9xIBAgIGCSqGSIb3EgECAgYKKwYBBAGCNwICHg==, "
+                        + "Digest realm=\"digest\", nonce=abc, Bearer a/b+c~d.e_f-, Digest realm=\"second\", nonce=def");
+
+        Assert.assertEquals(2, challenges.size());
+        Assert.assertEquals("digest", challenges.get(0).getRealm());
+        Assert.assertEquals("abc", challenges.get(0).getNonce());
+        Assert.assertEquals("second", challenges.get(1).getRealm());
+
+        DigestChallenge challenge = new DigestChallenge();
+        Assert.assertTrue(DigestHeaderUtils.parseChallenge("Bearer x/y==, Digest realm=\"r\", nonce=n", challenge));
+        Assert.assertEquals("n", challenge.getNonce());
+    }
+
+    @Test
+    public void testQuotedStringEscapes() {
+        DigestChallenge challenge = new DigestChallenge();
+        DigestHeaderUtils.parseChallenge("Digest realm=\"a \\\"quoted\\\" realm, with comma\", nonce=\"n\"", challenge);
+
+        Assert.assertEquals("a \"quoted\" realm, with comma", challenge.getRealm());
+        Assert.assertEquals("n", challenge.getNonce());
+    }
+
+    @Test
+    public void testChallengeIsReset() {
+        DigestChallenge challenge = new DigestChallenge();
+        DigestHeaderUtils.parseChallenge("Digest realm=\"first\", opaque=\"o\", stale=true", challenge);
+        DigestHeaderUtils.parseChallenge("Digest realm=\"second\"", challenge);
+
+        Assert.assertEquals("second", challenge.getRealm());
+        Assert.assertNull(challenge.getOpaque());
+        Assert.assertFalse(challenge.isStale());
+    }
+
+    @Test
+    public void testNoDigestChallenge() {
+        Assert.assertFalse(DigestHeaderUtils.parseChallenge("Basic realm=\"basic\"", new DigestChallenge()));
+        Assert.assertTrue(DigestHeaderUtils.parseChallenges(null).isEmpty());
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testUnterminatedQuotedString() {
+        DigestHeaderUtils.parseChallenge("Digest realm=\"unterminated", new DigestChallenge());
+    }
+
+    @Test
+    public void testParseAuthenticationInfo() {
+        DigestAuthenticationInfo info = new DigestAuthenticationInfo();
+        DigestHeaderUtils.parseAuthenticationInfo("nextnonce=\"abc\", qop=auth, rspauth=\"6629fae49393a05397450978507c4ef1\", "
+                + "cnonce=\"0a4f113b\", nc=00000001", info);
+
+        Assert.assertEquals("abc", info.getNextnonce());
+        Assert.assertEquals("auth", info.getQop());
+        Assert.assertEquals("6629fae49393a05397450978507c4ef1", info.getRspauth());
+        Assert.assertEquals("0a4f113b", info.getCnonce());
+        Assert.assertEquals("00000001", info.getNc());
+    }
+
+    @Test
+    public void testExtractValues() {
+        Map<String, String> values = DigestHeaderUtils.extractValues("Digest realm=\"r\", nonce=\"n\", qop=auth");
+
+        Assert.assertEquals("r", values.get("realm"));
+        Assert.assertEquals("n", values.get("nonce"));
+        Assert.assertEquals("auth", values.get("qop"));
+    }
+
+}
@@ -0,0 +1,305 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.support.test.runner.AndroidJUnit4;
+import android.util.Pair;
+
+import org.jboss.aerogear.android.authentication.util.UnitTestUtils;
+import org.junit.After;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.net.CookieHandler;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import javax.crypto.KeyGenerator;
+import javax.crypto.SecretKey;
+
+@RunWith(AndroidJUnit4.class)
+public class DigestSessionStoreTest {
+
+    private static final String USERNAME = "agnes";
+    private static final String PASSWORD = "123";
+
+    private DigestStubServer server;
+    private File file;
+    private SecretKey key;
+    private URI uri;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DigestStubServer(USERNAME, PASSWORD);
+        file = File.createTempFile("digest", ".session");
+        file.delete();
+        key = newKey();
+        uri = new URI("/test/autobots");
+    }
+
+    @After
+    public void tearDown() {
+        file.delete();
+    }
+
+    @Test
+    public void testRestoredSessionSignsWithoutHandshake() throws Exception {
+        DigestSessionStore store = new DigestSessionStore(file, key, 1, TimeUnit.HOURS);
+        DigestAuthenticationModuleRunner first = newRunner(store);
+        first.onLogin(USERNAME, PASSWORD);
+        String last = first.getAuthorizationHeader(uri, "GET", new byte[] {});
+        store.flush();
+        Assert.assertTrue(file.isFile());
+
+        DigestAuthenticationModuleRunner restarted = newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        Assert.assertTrue(restarted.restore());
+        String header = restarted.getAuthorizationHeader(uri, "GET", new byte[] {});
+
+        Assert.assertTrue(server.verify(header, "GET"));
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertEquals(1, restarted.getStatistics().getRestoredSessions());
+        Assert.assertTrue(nonceCount(header) > nonceCount(last));
+    }
+
+    @Test
+    public void testSessionAlgorithmIsRestored() throws Exception {
+        server.setAlgorithms("SHA-256-sess");
+        newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS)).onLogin(USERNAME, PASSWORD);
+
+        DigestAuthenticationModuleRunner restarted = newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        Assert.assertTrue(restarted.restore());
+        String header = restarted.getAuthorizationHeader(uri, "GET", new byte[] {});
+
+        Assert.assertEquals("SHA-256-sess", DigestStubServer.parameters(header).get("algorithm"));
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testNonceCountsAreNeverReused() throws Exception {
+        DigestAuthenticationModuleRunner first = newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        first.onLogin(USERNAME, PASSWORD);
+        String last = null;
+        for (int i = 0; i < 600; i++) {
+            last = first.getAuthorizationHeader(uri, "GET", new byte[] {});
+        }
+
+        DigestAuthenticationModuleRunner restarted = newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        Assert.assertTrue(restarted.restore());
+        String header = restarted.getAuthorizationHeader(uri, "GET", new byte[] {});
+
+        Assert.assertTrue(nonceCount(header) > nonceCount(last));
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testExpiredSnapshotIsDeleted() throws Exception {
+        newRunner(new DigestSessionStore(file, key, 1, TimeUnit.MILLISECONDS)).onLogin(USERNAME, PASSWORD);
+        Thread.sleep(10);
+
+        DigestAuthenticationModuleRunner restarted = newRunner(new DigestSessionStore(file, key, 1, TimeUnit.MILLISECONDS));
+
+        Assert.assertFalse(restarted.restore());
+        Assert.assertFalse(file.exists());
+        Assert.assertNull(restarted.getAuthorizationHeader(uri, "GET", new byte[] {}));
+    }
+
+    @Test
+    public void testWrongKeyIsRejected() throws Exception {
+        newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS)).onLogin(USERNAME, PASSWORD);
+
+        DigestAuthenticationModuleRunner restarted = newRunner(new DigestSessionStore(file, newKey(), 1, TimeUnit.HOURS));
+
+        Assert.assertFalse(restarted.restore());
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testDamagedSnapshotIsRejected() throws Exception {
+        writeSnapshot();
+        flip(file.length() - 20);
+
+        Assert.assertFalse(newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS)).restore());
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testModifiedCiphertextIsRejected() throws Exception {
+        writeSnapshot();
+        // the first byte after magic, version, IV and length
+        flip(4 + 1 + 16 + 4);
+
+        Assert.assertFalse(newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS)).restore());
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testLargeSessionIsRestored() throws Exception {
+        StringBuilder username = new StringBuilder();
+        for (int i = 0; i < 1000; i++) {
+            username.append('a');
+        }
+        server = new DigestStubServer(username.toString(), PASSWORD);
+        newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS)).onLogin(username.toString(), PASSWORD);
+
+        DigestAuthenticationModuleRunner restarted = newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+
+        Assert.assertTrue(restarted.restore());
+        Assert.assertTrue(server.verify(restarted.getAuthorizationHeader(uri, "GET", new byte[] {}), "GET"));
+    }
+
+    @Test
+    public void testWipeDeletesSnapshot() throws Exception {
+        DigestAuthenticationModuleRunner runner = newRunner(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        runner.onLogin(USERNAME, PASSWORD);
+
+        runner.wipe();
+
+        Assert.assertFalse(file.exists());
+    }
+
+    @Test
+    public void testModuleIsLoggedInAfterRestore() throws Exception {
+        HttpDigestAuthenticationConfiguration configuration = new HttpDigestAuthenticationConfiguration()
+                .sessionStore(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        configuration.baseURL(new URL("http://localhost:8080/test"));
+
+        HttpDigestAuthenticationModule first = new HttpDigestAuthenticationModule(configuration);
+        Assert.assertFalse(first.isLoggedIn());
+        UnitTestUtils.setPrivateField(UnitTestUtils.getPrivateField(first, "runner"), "httpProviderFactory", server);
+        first.loginSync(USERNAME, PASSWORD);
+
+        HttpDigestAuthenticationModule restarted = new HttpDigestAuthenticationModule(configuration);
+
+        Assert.assertTrue(restarted.isLoggedIn());
+        String header = restarted.loadModule(uri, "GET", new byte[] {}).getHeaders().get(0).second;
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testModuleRestoresOnFirstUse() throws Exception {
+        HttpDigestAuthenticationConfiguration configuration = new HttpDigestAuthenticationConfiguration()
+                .sessionStore(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        configuration.baseURL(new URL("http://localhost:8080/test"));
+        HttpDigestAuthenticationModule first = new HttpDigestAuthenticationModule(configuration);
+        UnitTestUtils.setPrivateField(UnitTestUtils.getPrivateField(first, "runner"), "httpProviderFactory", server);
+        first.loginSync(USERNAME, PASSWORD);
+
+        HttpDigestAuthenticationModule restarted = new HttpDigestAuthenticationModule(configuration);
+        Assert.assertEquals(0, restarted.getStatistics().getRestoredSessions());
+
+        String header = restarted.loadModule(uri, "GET", new byte[] {}).getHeaders().get(0).second;
+        Assert.assertEquals(1, restarted.getStatistics().getRestoredSessions());
+        Assert.assertTrue(server.verify(header, "GET"));
+        Assert.assertTrue(restarted.isLoggedIn());
+    }
+
+    @Test
+    public void testLoginBeforeFirstUseIsNotOverwrittenByRestore() throws Exception {
+        HttpDigestAuthenticationConfiguration configuration = new HttpDigestAuthenticationConfiguration()
+                .sessionStore(new DigestSessionStore(file, key, 1, TimeUnit.HOURS));
+        configuration.baseURL(new URL("http://localhost:8080/test"));
+        HttpDigestAuthenticationModule first = new HttpDigestAuthenticationModule(configuration);
+        UnitTestUtils.setPrivateField(UnitTestUtils.getPrivateField(first, "runner"), "httpProviderFactory", server);
+        first.loginSync(USERNAME, PASSWORD);
+
+        HttpDigestAuthenticationModule restarted = new HttpDigestAuthenticationModule(configuration);
+        UnitTestUtils.setPrivateField(UnitTestUtils.getPrivateField(restarted, "runner"), "httpProviderFactory", server);
+        server.setNonce("dcd98b7102dd2f0e8b11d0f600bfb0c093");
+        restarted.loginSync(USERNAME, PASSWORD);
+
+        String header = restarted.loadModule(uri, "GET", new byte[] {}).getHeaders().get(0).second;
+        Assert.assertTrue(header.contains("nonce=\"dcd98b7102dd2f0e8b11d0f600bfb0c093\""));
+        Assert.assertTrue(server.verify(header, "GET"));
+    }
+
+    @Test
+    public void testModuleResumesWithoutRequest() throws Exception {
+        File cookies = File.createTempFile("digest", ".cookies");
+        cookies.delete();
+        // without a default cookie handler the module sends its own cookies
+        CookieHandler previous = CookieHandler.getDefault();
+        CookieHandler.setDefault(null);
+        try {
+            HttpDigestAuthenticationConfiguration configuration = new HttpDigestAuthenticationConfiguration()
+                    .sessionStore(new DigestSessionStore(file, key, 1, TimeUnit.HOURS))
+                    .cookieFile(cookies, key);
+            configuration.baseURL(new URL("http://localhost:8080/test"));
+
+            HttpDigestAuthenticationModule first = (HttpDigestAuthenticationModule) configuration.asModule();
+            UnitTestUtils.setPrivateField(UnitTestUtils.getPrivateField(first, "runner"), "httpProviderFactory", server);
+            server.setCookie("JSESSIONID=server; Path=/test");
+            first.loginSync(USERNAME, PASSWORD);
+            int requests = server.getRequestCount();
+
+            HttpDigestAuthenticationModule restarted = (HttpDigestAuthenticationModule) configuration.asModule();
+
+            Assert.assertTrue(restarted.isLoggedIn());
+            List<Pair<String, String>> headers = restarted.loadModule(uri, "GET", new byte[] {}).getHeaders();
+            Assert.assertTrue(server.verify(headers.get(0).second, "GET"));
+            Assert.assertEquals("Cookie", headers.get(1).first);
+            Assert.assertEquals("JSESSIONID=server", headers.get(1).second);
+            Assert.assertEquals(requests, server.getRequestCount());
+            restarted.getCookieStore().removeAll();
+        } finally {
+            CookieHandler.setDefault(previous);
+            cookies.delete();
+        }
+    }
+
+    private void writeSnapshot() throws Exception {
+        DigestSessionStore store = new DigestSessionStore(file, key, 1, TimeUnit.HOURS);
+        newRunner(store).onLogin(USERNAME, PASSWORD);
+        store.flush();
+    }
+
+    private void flip(long position) throws Exception {
+        RandomAccessFile damaged = new RandomAccessFile(file, "rw");
+        try {
+            damaged.seek(position);
+            int value = damaged.read();
+            damaged.seek(position);
+            damaged.write(value ^ 0xff);
+        } finally {
+            damaged.close();
+        }
+    }
+
+    private DigestAuthenticationModuleRunner newRunner(DigestSessionStore store) throws Exception {
+        DigestAuthenticationModuleRunner runner = new DigestAuthenticationModuleRunner(new URL("http://localhost:8080/test"), "/login",
+                "/logout", 1000);
+        UnitTestUtils.setPrivateField(runner, "httpProviderFactory", server);
+        runner.setSessionStore(store);
+        return runner;
+    }
+
+    private static int nonceCount(String header) {
+        return Integer.parseInt(DigestStubServer.parameters(header).get("nc"), 16);
+    }
+
+    private static SecretKey newKey() throws Exception {
+        KeyGenerator generator = KeyGenerator.getInstance("AES");
+        generator.init(128);
+        return generator.generateKey();
+    }
+
+}
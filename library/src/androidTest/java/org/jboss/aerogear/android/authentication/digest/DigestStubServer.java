@@ -0,0 +1,366 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import org.jboss.aerogear.android.core.Provider;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+import org.jboss.aerogear.android.pipe.http.HttpProvider;
+
+import java.io.UnsupportedEncodingException;
+import java.net.URL;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An in memory digest server. It is installed as the httpProviderFactory of a
+ * runner and answers every request without an Authorization header, or with
+ * an invalid one, with a 401 challenge. It rejects reused nonce counts.
+ */
+public class DigestStubServer implements Provider<HttpProvider> {
+
+    public static final String REALM = "stub@aerogear.org";
+    public static final String OPAQUE = "5ccc069c403ebaf9f0171e9517f40e41";
+
+    private final String username;
+    private final String password;
+    private final ConcurrentHashMap<String, Boolean> usedNonceCounts = new ConcurrentHashMap<String, Boolean>();
+    private final AtomicInteger requests = new AtomicInteger();
+    private final AtomicInteger rejected = new AtomicInteger();
+    private volatile String nonce = "dcd98b7102dd2f0e8b11d0f600bfb0c093";
+    private volatile String realm = REALM;
+    private volatile String opaque = OPAQUE;
+    private volatile boolean authenticationInfo = false;
+    private volatile boolean forgedRspauth = false;
+    private volatile String qop = "auth,auth-int";
+    private volatile String[] algorithms = new String[] { null };
+    private volatile long latency = 0;
+    private volatile String setCookie;
+    private volatile String lastCookie;
+    private volatile byte[] responseBody = new byte[] {};
+
+    public DigestStubServer(String username, String password) {
+        this.username = username;
+        this.password = password;
+    }
+
+    @Override
+    public HttpProvider get(Object... in) {
+        return new StubConnection((URL) in[0]);
+    }
+
+    public void setNonce(String nonce) {
+        this.nonce = nonce;
+    }
+
+    public String getNonce() {
+        return nonce;
+    }
+
+    /**
+     * Makes successful responses carry an Authentication-Info header, whose
+     * rspauth is wrong if forged is true.
+     */
+    public void sendAuthenticationInfo(boolean forged) {
+        this.authenticationInfo = true;
+        this.forgedRspauth = forged;
+    }
+
+    /**
+     * @param opaque the opaque of the challenges, null to send none
+     */
+    public void setOpaque(String opaque) {
+        this.opaque = opaque;
+    }
+
+    public void setRealm(String realm) {
+        this.realm = realm;
+    }
+
+    public void setQop(String qop) {
+        this.qop = qop;
+    }
+
+    /**
+     * Delays every response, so concurrent clients overlap.
+     */
+    public void setLatency(long latency) {
+        this.latency = latency;
+    }
+
+    /**
+     * Sets the body of successful responses, an rspauth for qop=auth-int
+     * covers it.
+     */
+    public void setResponseBody(byte[] responseBody) {
+        this.responseBody = responseBody;
+    }
+
+    /**
+     * Makes every response, challenges included, carry a Set-Cookie header.
+     */
+    public void setCookie(String setCookie) {
+        this.setCookie = setCookie;
+    }
+
+    /**
+     * @return the Cookie header of the last request or null
+     */
+    public String getLastCookie() {
+        return lastCookie;
+    }
+
+    /**
+     * Sends one challenge per algorithm, in the given order. A null
+     * algorithm sends a challenge without an algorithm parameter.
+     */
+    public void setAlgorithms(String... algorithms) {
+        this.algorithms = algorithms;
+    }
+
+    /**
+     * @return the number of requests which reached the server
+     */
+    public int getRequestCount() {
+        return requests.get();
+    }
+
+    /**
+     * @return the number of requests which were answered with a 401
+     */
+    public int getRejectedCount() {
+        return rejected.get();
+    }
+
+    public Map<String, String> challengeHeaders(boolean stale) {
+        Map<String, String> headers = new HashMap<String, String>();
+        StringBuilder challenges = new StringBuilder();
+        for (String algorithm : algorithms) {
+            if (challenges.length() > 0) {
+                challenges.append(", ");
+            }
+            challenges.append("Digest realm=\"").append(realm).append("\", qop=\"").append(qop)
+                    .append("\", nonce=\"").append(nonce).append('"');
+            if (opaque != null) {
+                challenges.append(", opaque=\"").append(opaque).append('"');
+            }
+            if (algorithm != null) {
+                challenges.append(", algorithm=").append(algorithm);
+            }
+            if (stale) {
+                challenges.append(", stale=true");
+            }
+        }
+        headers.put("WWW-Authenticate", challenges.toString());
+        return headers;
+    }
+
+    /**
+     * Checks an Authorization header like a server would.
+     *
+     * @return true if the response is valid and the nonce count was not
+     *         used before
+     */
+    public boolean verify(String authorization, String method) {
+        return verify(authorization, method, new byte[0]);
+    }
+
+    /**
+     * Checks an Authorization header which may protect the entity body with
+     * qop=auth-int.
+     */
+    public boolean verify(String authorization, String method, byte[] body) {
+        if (authorization == null) {
+            return false;
+        }
+        Map<String, String> parameters = parameters(authorization);
+        if (!nonce.equals(parameters.get("nonce")) || !username.equals(parameters.get("username"))
+                || !realm.equals(parameters.get("realm"))
+                || (opaque == null ? parameters.containsKey("opaque") : !opaque.equals(parameters.get("opaque")))) {
+            return false;
+        }
+
+        String algorithm = parameters.get("algorithm");
+        String ha2 = "auth-int".equals(parameters.get("qop"))
+                ? hash(algorithm, method + ":" + parameters.get("uri") + ":" + hash(algorithm, body))
+                : hash(algorithm, method + ":" + parameters.get("uri"));
+        String expected = hash(algorithm, ha1(parameters) + ":" + parameters.get("nonce") + ":" + parameters.get("nc")
+                + ":" + parameters.get("cnonce") + ":" + parameters.get("qop") + ":" + ha2);
+
+        return expected.equals(parameters.get("response"))
+                && usedNonceCounts.putIfAbsent(parameters.get("nonce") + parameters.get("nc"), Boolean.TRUE) == null;
+    }
+
+    /**
+     * Builds the Authentication-Info header the server sends for a valid
+     * Authorization header and a response with the current response body.
+     */
+    public String authenticationInfo(String authorization, String nextnonce) {
+        Map<String, String> parameters = parameters(authorization);
+        String algorithm = parameters.get("algorithm");
+        String ha2 = "auth-int".equals(parameters.get("qop"))
+                ? hash(algorithm, ":" + parameters.get("uri") + ":" + hash(algorithm, responseBody))
+                : hash(algorithm, ":" + parameters.get("uri"));
+        String rspauth = hash(algorithm, ha1(parameters) + ":" + parameters.get("nonce") + ":" + parameters.get("nc")
+                + ":" + parameters.get("cnonce") + ":" + parameters.get("qop") + ":" + ha2);
+        return "nextnonce=\"" + nextnonce + "\", qop=" + parameters.get("qop") + ", rspauth=\"" + rspauth
+                + "\", cnonce=\"" + parameters.get("cnonce") + "\", nc=" + parameters.get("nc");
+    }
+
+    /**
+     * Splits the parameters of an Authorization header.
+     */
+    public static Map<String, String> parameters(String authorization) {
+        Map<String, String> parameters = new HashMap<String, String>();
+        String[] parts = authorization.substring("Digest ".length()).split(",(?=(?:[^\"]*\"[^\"]*\")*[^\"]*$)");
+        for (String part : parts) {
+            int separator = part.indexOf('=');
+            String value = part.substring(separator + 1).trim();
+            if (value.startsWith("\"")) {
+                value = value.substring(1, value.length() - 1);
+            }
+            parameters.put(part.substring(0, separator).trim(), value);
+        }
+        return parameters;
+    }
+
+    private String ha1(Map<String, String> parameters) {
+        String algorithm = parameters.get("algorithm");
+        String ha1 = hash(algorithm, username + ":" + parameters.get("realm") + ":" + password);
+        if (algorithm != null && algorithm.endsWith("-sess")) {
+            ha1 = hash(algorithm, ha1 + ":" + parameters.get("nonce") + ":" + parameters.get("cnonce"));
+        }
+        return ha1;
+    }
+
+    private static String hash(String algorithm, String value) {
+        try {
+            return hash(algorithm, value.getBytes("UTF-8"));
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Hashes with the MessageDigest of a digest algorithm token, independent
+     * of the engine under test.
+     */
+    private static String hash(String algorithm, byte[] value) {
+        String name = algorithm == null ? "MD5" : algorithm.replace("-sess", "");
+        if ("SHA-512-256".equals(name)) {
+            name = "SHA-512/256";
+        }
+        try {
+            byte[] digest = MessageDigest.getInstance(name).digest(value);
+            StringBuilder hex = new StringBuilder();
+            for (byte b : digest) {
+                hex.append(String.format("%02x", b));
+            }
+            return hex.toString();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private class StubConnection implements HttpProvider {
+
+        private final URL url;
+        private final Map<String, String> headers = new HashMap<String, String>();
+
+        StubConnection(URL url) {
+            this.url = url;
+        }
+
+        @Override
+        public URL getUrl() {
+            return url;
+        }
+
+        @Override
+        public HeaderAndBody get() throws HttpException {
+            return respond("GET");
+        }
+
+        @Override
+        public HeaderAndBody post(String data) throws HttpException {
+            return respond("POST");
+        }
+
+        @Override
+        public HeaderAndBody post(byte[] data) throws HttpException {
+            return respond("POST");
+        }
+
+        @Override
+        public HeaderAndBody put(String id, String data) throws HttpException {
+            return respond("PUT");
+        }
+
+        @Override
+        public HeaderAndBody put(String id, byte[] data) throws HttpException {
+            return respond("PUT");
+        }
+
+        @Override
+        public HeaderAndBody delete(String id) throws HttpException {
+            return respond("DELETE");
+        }
+
+        @Override
+        public void setDefaultHeader(String headerName, String headerValue) {
+            headers.put(headerName, headerValue);
+        }
+
+        private HeaderAndBody respond(String method) {
+            requests.incrementAndGet();
+            if (latency > 0) {
+                try {
+                    Thread.sleep(latency);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+            lastCookie = headers.get("Cookie");
+            String authorization = headers.get("Authorization");
+            if (!verify(authorization, method)) {
+                rejected.incrementAndGet();
+                Map<String, String> challenge = challengeHeaders(false);
+                if (setCookie != null) {
+                    challenge.put("Set-Cookie", setCookie);
+                }
+                throw new HttpException(new byte[] {}, 401, challenge);
+            }
+            HashMap<String, Object> responseHeaders = new HashMap<String, Object>();
+            if (setCookie != null) {
+                responseHeaders.put("Set-Cookie", setCookie);
+            }
+            if (authenticationInfo) {
+                String info = authenticationInfo(authorization, nonce);
+                if (forgedRspauth) {
+                    info = info.replace("rspauth=\"", "rspauth=\"0");
+                }
+                responseHeaders.put("Authentication-Info", info);
+            }
+            return new HeaderAndBody(responseBody, responseHeaders);
+        }
+    }
+
+}
@@ -0,0 +1,242 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ * <p>
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ * <p>
+ * http://www.apache.org/licenses/LICENSE-2.0
+ * <p>
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.support.test.runner.AndroidJUnit4;
+
+import org.jboss.aerogear.android.authentication.AuthenticationFuture;
+import org.jboss.aerogear.android.authentication.AuthenticationManager;
+import org.jboss.aerogear.android.authentication.Deadline;
+import org.jboss.aerogear.android.authentication.util.UnitTestUtils;
+import org.jboss.aerogear.android.authentication.util.VoidCallback;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+import org.junit.Assert;
+import org.junit.Before;
+import org.junit.Test;
+import org.junit.runner.RunWith;
+
+import java.net.URI;
+import java.net.URL;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Stress tests for concurrent callers of one module. The stub server counts
+ * the requests which reach it.
+ */
+@RunWith(AndroidJUnit4.class)
+public class HttpDigestAuthenticationModuleTest {
+
+    private static final String USERNAME = "agnes";
+    private static final String PASSWORD = "123";
+    private static final int CALLERS = 100;
+
+    private DigestStubServer server;
+    private HttpDigestAuthenticationModule module;
+
+    @Before
+    public void setUp() throws Exception {
+        server = new DigestStubServer(USERNAME, PASSWORD);
+        server.setLatency(50);
+        module = new HttpDigestAuthenticationModule(new URL("http://localhost:8080/test"), "/login", "/logout", 1000);
+        Object runner = UnitTestUtils.getPrivateField(module, "runner");
+        UnitTestUtils.setPrivateField(runner, "httpProviderFactory", server);
+    }
+
+    @Test
+    public void testConcurrentLoginsShareOneHandshake() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(CALLERS);
+        final List<VoidCallback> callbacks = new ArrayList<VoidCallback>();
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        for (int i = 0; i < CALLERS; i++) {
+            final VoidCallback callback = new VoidCallback(done);
+            callbacks.add(callback);
+            callers.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    module.login(USERNAME, PASSWORD, callback);
+                }
+            });
+        }
+
+        start.countDown();
+        Assert.assertTrue(done.await(10, TimeUnit.SECONDS));
+        callers.shutdown();
+
+        for (VoidCallback callback : callbacks) {
+            Assert.assertNull(callback.exception);
+        }
+        // the challenge and the authenticated request, instead of 200
+        Assert.assertEquals(2, server.getRequestCount());
+        Assert.assertEquals(CALLERS - 1, module.getStatistics().getCoalescedLogins());
+        Assert.assertTrue(module.isLoggedIn());
+    }
+
+    @Test
+    public void testConcurrentReloginsShareOneHandshake() throws Exception {
+        CountDownLatch loggedIn = new CountDownLatch(1);
+        module.login(USERNAME, PASSWORD, new VoidCallback(loggedIn));
+        Assert.assertTrue(loggedIn.await(10, TimeUnit.SECONDS));
+        server.setNonce("0a4f113b");
+        final HttpException unauthorized = new HttpException(new byte[] {}, 401, server.challengeHeaders(false));
+
+        final CountDownLatch start = new CountDownLatch(1);
+        ExecutorService callers = Executors.newFixedThreadPool(CALLERS);
+        List<Future<Boolean>> retries = new ArrayList<Future<Boolean>>();
+        for (int i = 0; i < CALLERS; i++) {
+            retries.add(callers.submit(new Callable<Boolean>() {
+                @Override
+                public Boolean call() throws Exception {
+                    start.await();
+                    return module.handleError(unauthorized);
+                }
+            }));
+        }
+
+        start.countDown();
+        for (Future<Boolean> retry : retries) {
+            Assert.assertTrue(retry.get(10, TimeUnit.SECONDS));
+        }
+        callers.shutdown();
+
+        Assert.assertEquals(4, server.getRequestCount());
+        Assert.assertEquals(2, module.getStatistics().getHandshakes());
+    }
+
+    @Test
+    public void testDeadlineAbortsHandshake() throws Exception {
+        server.setLatency(300);
+
+        AuthenticationFuture<HeaderAndBody> login = module.login(USERNAME, PASSWORD,
+                Deadline.after(100, TimeUnit.MILLISECONDS));
+
+        try {
+            login.get(1, TimeUnit.SECONDS);
+            Assert.fail("The login should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof Deadline.ExceededException);
+        }
+        Thread.sleep(400);
+        // the challenge was requested, the authenticated request never sent
+        Assert.assertEquals(1, server.getRequestCount());
+        Assert.assertFalse(module.isLoggedIn());
+    }
+
+    @Test(expected = CancellationException.class)
+    public void testCancelledLoginFails() throws Exception {
+        Deadline deadline = Deadline.never();
+        AuthenticationFuture<HeaderAndBody> login = module.login(USERNAME, PASSWORD, deadline);
+
+        login.cancel(true);
+
+        Assert.assertTrue(login.getDeadline().isCancelled());
+        Assert.assertFalse(deadline.isCancelled());
+        login.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testFailedLoginKeepsSharedDeadline() throws Exception {
+        server.setLatency(0);
+        Deadline shared = Deadline.after(5, TimeUnit.SECONDS);
+
+        AuthenticationFuture<HeaderAndBody> failed = module.login(USERNAME, "wrong", shared);
+        try {
+            failed.get(1, TimeUnit.SECONDS);
+            Assert.fail("The login should have failed");
+        } catch (ExecutionException e) {
+            Assert.assertTrue(e.getCause() instanceof HttpException);
+        }
+
+        Assert.assertFalse(shared.isCancelled());
+        Assert.assertNotNull(module.login(USERNAME, PASSWORD, shared).get(1, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void testExpiredDeadlineSendsNoRequest() throws Exception {
+        Deadline deadline = Deadline.after(0, TimeUnit.MILLISECONDS);
+
+        AuthenticationFuture<HeaderAndBody> login = module.login(USERNAME, PASSWORD, deadline);
+
+        Assert.assertTrue(login.isCompletedExceptionally());
+        Assert.assertEquals(0, server.getRequestCount());
+    }
+
+    @Test
+    public void testLoginSyncRunsOnCallingThread() throws Exception {
+        server.setLatency(0);
+
+        HeaderAndBody response = module.loginSync(USERNAME, PASSWORD);
+
+        Assert.assertNotNull(response);
+        Assert.assertTrue(module.isLoggedIn());
+        Assert.assertEquals(2, server.getRequestCount());
+    }
+
+    @Test
+    public void testLoginSyncPropagatesErrors() throws Exception {
+        server.setLatency(0);
+        try {
+            module.loginSync(USERNAME, "wrong");
+            Assert.fail("The login should have failed");
+        } catch (HttpException e) {
+            Assert.assertEquals(401, e.getStatusCode());
+        }
+        Assert.assertFalse(module.isLoggedIn());
+    }
+
+    @Test
+    public void testEvictionWipesSession() throws Exception {
+        module.loginSync(USERNAME, PASSWORD);
+        DigestAuthenticationModuleRunner runner = (DigestAuthenticationModuleRunner) UnitTestUtils.getPrivateField(module, "runner");
+        URI uri = new URI("/test/autobots");
+        Assert.assertNotNull(runner.getAuthorizationHeader(uri, "GET", new byte[] {}));
+
+        AuthenticationManager.registerModuleIfAbsent("evictedDigest", module);
+        AuthenticationManager.setModuleIdleTimeout(1, TimeUnit.MILLISECONDS);
+        try {
+            Thread.sleep(10);
+            AuthenticationManager.cleanUpModules();
+        } finally {
+            AuthenticationManager.setModuleIdleTimeout(0, TimeUnit.MILLISECONDS);
+        }
+
+        Assert.assertFalse(module.isLoggedIn());
+        Assert.assertNull(runner.getAuthorizationHeader(uri, "GET", new byte[] {}));
+        Assert.assertNull(AuthenticationManager.getModule("evictedDigest"));
+    }
+
+    @Test(expected = IllegalArgumentException.class)
+    public void testNegativeChallengeLifetimeIsRejected() {
+        new HttpDigestAuthenticationConfiguration().challengeLifetime(-1);
+    }
+
+}
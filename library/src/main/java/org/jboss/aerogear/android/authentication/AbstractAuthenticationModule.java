@@ -16,15 +16,21 @@
  */
 package org.jboss.aerogear.android.authentication;
 
+import java.net.URI;
+import java.net.URISyntaxException;
 import java.util.Map;
 import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
 import java.util.concurrent.Executor;
 import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 
 import org.jboss.aerogear.android.core.Callback;
 import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.module.ModuleFields;
 
 /**
  * This class stubs out the enroll, login, and logout methods. If you call these
@@ -34,6 +40,22 @@ import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
 public abstract class AbstractAuthenticationModule implements
         AuthenticationModule {
 
+    /**
+     * A call run by {@link AbstractAuthenticationModule#submit(Deadline, Call) }.
+     *
+     * @param <T> the type of the result
+     */
+    protected interface Call<T> {
+
+        /**
+         * @param deadline the deadline of this call, a child of the deadline
+         *            of the caller which is cancelled with the future
+         * @return the result of the call
+         */
+        T call(Deadline deadline) throws Exception;
+
+    }
+
     public static final String USERNAME_PARAMETER_NAME = "loginName";
     public static final String PASSWORD_PARAMETER_NAME = "password";
 
@@ -43,9 +65,162 @@ public abstract class AbstractAuthenticationModule implements
     private static final BlockingQueue<Runnable> WORK_QUEUE =
             new LinkedBlockingQueue<Runnable>(10);
 
+    /**
+     * @deprecated modules run their calls with {@link #execute(Callback, Runnable)
+     *             } on the executor of their configuration
+     */
+    @Deprecated
     protected static final Executor THREAD_POOL_EXECUTOR = new ThreadPoolExecutor(CORE_POOL_SIZE, MAX_POOL_SIZE, KEEP_ALIVE,
             TimeUnit.SECONDS, WORK_QUEUE);
 
+    private static final int DEFAULT_MAX_POOL_SIZE = 16;
+    private static final int DEFAULT_QUEUE_CAPACITY = 128;
+
+    /**
+     * Used by modules whose configuration does not provide an executor.
+     */
+    private static final AuthenticationExecutor DEFAULT_EXECUTOR = new AuthenticationExecutor(CORE_POOL_SIZE,
+            DEFAULT_MAX_POOL_SIZE, DEFAULT_QUEUE_CAPACITY, AuthenticationExecutor.RejectionPolicy.CALLER_RUNS);
+
+    private volatile Executor executor = DEFAULT_EXECUTOR;
+    private volatile Executor callbackExecutor;
+    private final ModuleCookieStore cookieStore = new ModuleCookieStore();
+    private volatile long lastUsed = System.nanoTime();
+
+    /**
+     * The cookies of this module. They are kept apart from the cookies of
+     * other modules and of other HTTP clients. Without a default cookie
+     * handler the module sends them with its own requests and adds them to
+     * the fields of loadModule, with one the app routes them with
+     * {@link CookieRouter}.
+     *
+     * @return the cookie store of this module
+     */
+    public ModuleCookieStore getCookieStore() {
+        return cookieStore;
+    }
+
+    /**
+     * Adds a Cookie header with the cookies of this module which match a
+     * request to fields, unless the default cookie handler of the process
+     * attaches cookies, see {@link ModuleCookieStore#getRequestCookieHeader(URI) }.
+     *
+     * @param relativeURI the URI of the request, relative to the base URL of
+     *            this module
+     * @param fields the fields of the request
+     */
+    protected final void addCookies(URI relativeURI, ModuleFields fields) {
+        String cookies = cookieStore.getRequestCookieHeader(resolve(relativeURI));
+        if (cookies != null) {
+            fields.addHeader("Cookie", cookies);
+        }
+    }
+
+    /**
+     * Removes the cookies of this module from its store and from the
+     * default cookie manager, see {@link ModuleCookieStore#removeSession(URI) }.
+     */
+    protected final void removeCookies() {
+        try {
+            cookieStore.removeSession(getBaseURL().toURI());
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @param relativeURI a URI relative to the base URL of this module
+     * @return the absolute URI
+     */
+    protected final URI resolve(URI relativeURI) {
+        try {
+            return getBaseURL().toURI().resolve(relativeURI);
+        } catch (URISyntaxException e) {
+            throw new IllegalArgumentException(e);
+        }
+    }
+
+    /**
+     * @return the executor which runs the calls of this module
+     */
+    protected Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * @param executor the executor for the calls of this module, null
+     *            restores the shared default
+     */
+    void setExecutor(Executor executor) {
+        this.executor = executor == null ? DEFAULT_EXECUTOR : executor;
+    }
+
+    /**
+     * Drops the credentials and session state this module keeps in memory,
+     * without a request to the server. {@link AuthenticationManager} calls it
+     * when it evicts the module, modules which keep credentials override it.
+     */
+    protected void wipeCredentials() {
+    }
+
+    /**
+     * Records that this module served a call or signed a request. Modules
+     * call it from every call and loadModule, so {@link AuthenticationManager}
+     * does not evict a module which a Pipe keeps using without looking it
+     * up again.
+     */
+    protected final void markUsed() {
+        lastUsed = System.nanoTime();
+    }
+
+    /**
+     * @return the System.nanoTime() of the last {@link #markUsed() }
+     */
+    long getLastUsed() {
+        return lastUsed;
+    }
+
+    /**
+     * @param callbackExecutor the executor for the callbacks of this module,
+     *            null runs them on the thread which finished the call
+     */
+    void setCallbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+    }
+
+    /**
+     * Wraps a callback so its methods run on the callback executor of this
+     * module. Callbacks which complete futures are not wrapped, futures run
+     * their own callbacks without a hop.
+     *
+     * @param callback the callback of a call
+     * @return the callback to pass the result to
+     */
+    protected <T> Callback<T> deliver(Callback<T> callback) {
+        Executor delivery = callbackExecutor;
+        if (delivery == null || callback instanceof FutureCallback) {
+            return callback;
+        }
+        return new DeliveringCallback<T>(delivery, callback);
+    }
+
+    /**
+     * Runs a call on the executor of this module. If the executor rejects
+     * the call, or drops it later, the exception is passed to the callback.
+     * The module counts as used.
+     *
+     * @param callback the callback of the call
+     * @param call the work, it has to report its own result to callback
+     */
+    protected void execute(Callback<?> callback, Runnable call) {
+        markUsed();
+        try {
+            executor.execute(new CallbackTask(callback, call));
+        } catch (RejectedExecutionException e) {
+            callback.onFailure(e);
+        }
+    }
+
     @Override
     public void enroll(Map<String, String> userData,
             final Callback<HeaderAndBody> callback) {
@@ -64,4 +239,287 @@ public abstract class AbstractAuthenticationModule implements
         callback.onFailure(new IllegalStateException("Not implemented"));
     }
 
+    /**
+     * Runs {@link #enroll(Map, Callback) } and completes the returned future
+     * with its result.
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> enroll(Map<String, String> userData) {
+        AuthenticationFuture<HeaderAndBody> future = new AuthenticationFuture<HeaderAndBody>();
+        enroll(userData, new FutureCallback<HeaderAndBody>(future));
+        return future;
+    }
+
+    /**
+     * Runs {@link #login(String, String, Callback) } and completes the
+     * returned future with its result.
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> login(String username, String password) {
+        AuthenticationFuture<HeaderAndBody> future = new AuthenticationFuture<HeaderAndBody>();
+        login(username, password, new FutureCallback<HeaderAndBody>(future));
+        return future;
+    }
+
+    /**
+     * Runs {@link #login(Map, Callback) } and completes the returned future
+     * with its result.
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> login(Map<String, String> loginData) {
+        AuthenticationFuture<HeaderAndBody> future = new AuthenticationFuture<HeaderAndBody>();
+        login(loginData, new FutureCallback<HeaderAndBody>(future));
+        return future;
+    }
+
+    /**
+     * Runs {@link #logout(Callback) } and completes the returned future with
+     * its result.
+     */
+    @Override
+    public AuthenticationFuture<Void> logout() {
+        AuthenticationFuture<Void> future = new AuthenticationFuture<Void>();
+        logout(new FutureCallback<Void>(future));
+        return future;
+    }
+
+    /**
+     * Runs {@link #login(String, String, Callback) } if the deadline did not
+     * pass yet. The returned future fails when the deadline expires, the
+     * call itself is not interrupted. Modules which can abort their calls
+     * override this method.
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> login(String username, String password, Deadline deadline) {
+        AuthenticationFuture<HeaderAndBody> future = withDeadline(new AuthenticationFuture<HeaderAndBody>(deadline));
+        if (!future.isDone()) {
+            login(username, password, new FutureCallback<HeaderAndBody>(future));
+        }
+        return future;
+    }
+
+    /**
+     * Runs {@link #login(Map, Callback) } if the deadline did not pass yet,
+     * like {@link #login(String, String, Deadline) }.
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> login(Map<String, String> loginData, Deadline deadline) {
+        AuthenticationFuture<HeaderAndBody> future = withDeadline(new AuthenticationFuture<HeaderAndBody>(deadline));
+        if (!future.isDone()) {
+            login(loginData, new FutureCallback<HeaderAndBody>(future));
+        }
+        return future;
+    }
+
+    /**
+     * Runs {@link #logout(Callback) } if the deadline did not pass yet, like
+     * {@link #login(String, String, Deadline) }.
+     */
+    @Override
+    public AuthenticationFuture<Void> logout(Deadline deadline) {
+        AuthenticationFuture<Void> future = withDeadline(new AuthenticationFuture<Void>(deadline));
+        if (!future.isDone()) {
+            logout(new FutureCallback<Void>(future));
+        }
+        return future;
+    }
+
+    /**
+     * Runs {@link #enroll(Map, Callback) } if the deadline did not pass yet,
+     * like {@link #login(String, String, Deadline) }.
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> enroll(Map<String, String> userData, Deadline deadline) {
+        AuthenticationFuture<HeaderAndBody> future = withDeadline(new AuthenticationFuture<HeaderAndBody>(deadline));
+        if (!future.isDone()) {
+            enroll(userData, new FutureCallback<HeaderAndBody>(future));
+        }
+        return future;
+    }
+
+    /**
+     * Waits for {@link #login(String, String) }. Modules which can log in on
+     * the calling thread override this method.
+     */
+    @Override
+    public HeaderAndBody loginSync(String username, String password) {
+        return await(login(username, password));
+    }
+
+    /**
+     * Waits for {@link #logout() }. Modules which can log out on the calling
+     * thread override this method.
+     */
+    @Override
+    public void logoutSync() {
+        await(logout());
+    }
+
+    /**
+     * Waits for {@link #enroll(Map) }. Modules which can enroll on the
+     * calling thread override this method.
+     */
+    @Override
+    public HeaderAndBody enrollSync(Map<String, String> userData) {
+        return await(enroll(userData));
+    }
+
+    /**
+     * Waits for a future and rethrows its failure. Checked exceptions are
+     * wrapped in an IllegalStateException, an interrupt cancels the future.
+     */
+    private static <T> T await(AuthenticationFuture<T> future) {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            future.cancel(true);
+            Thread.currentThread().interrupt();
+            throw new CancellationException("Interrupted while waiting for the call");
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
+            }
+            throw new IllegalStateException(cause);
+        }
+    }
+
+    /**
+     * Runs a call on the executor of this module and returns its future. The
+     * call is skipped if the future was cancelled while it was queued. While
+     * it runs, cancelling the future or passing the deadline interrupts the
+     * executing thread.
+     *
+     * The call gets the deadline of the future, which is a child of
+     * deadline. A failed or cancelled call only cancels that child, other
+     * calls sharing deadline go on.
+     *
+     * @param deadline the deadline of the caller
+     * @param call the work, it should check its deadline before blocking
+     * @return the future of the result of call
+     */
+    protected <T> AuthenticationFuture<T> submit(Deadline deadline, final Call<T> call) {
+        final AuthenticationFuture<T> future = withDeadline(new AuthenticationFuture<T>(deadline));
+        if (future.isDone()) {
+            return future;
+        }
+        final Deadline own = future.getDeadline();
+        execute(new FutureCallback<T>(future), new Runnable() {
+            @Override
+            public void run() {
+                if (future.isDone()) {
+                    return;
+                }
+                try {
+                    own.attach();
+                    future.complete(call.call(own));
+                } catch (Exception e) {
+                    if (own.isCancelled()) {
+                        // the call failed because cancel() interrupted it
+                        future.cancel(false);
+                    } else {
+                        future.completeExceptionally(e);
+                    }
+                } finally {
+                    own.detach();
+                }
+            }
+        });
+        return future;
+    }
+
+    /**
+     * Fails future when its deadline passes, or immediately if it already
+     * passed or was cancelled.
+     */
+    private static <T> AuthenticationFuture<T> withDeadline(AuthenticationFuture<T> future) {
+        Deadline deadline = future.getDeadline();
+        try {
+            deadline.check();
+        } catch (RuntimeException e) {
+            future.completeExceptionally(e);
+            return future;
+        }
+        long remaining = deadline.remainingMillis();
+        if (remaining != Long.MAX_VALUE) {
+            future.failAfter(remaining, TimeUnit.MILLISECONDS, new Deadline.ExceededException());
+        }
+        return future;
+    }
+
+    /**
+     * Completes a future from a callback. A future which was cancelled in the
+     * meantime ignores the result.
+     */
+    private static final class FutureCallback<T> implements Callback<T> {
+
+        private final AuthenticationFuture<T> future;
+
+        FutureCallback(AuthenticationFuture<T> future) {
+            this.future = future;
+        }
+
+        @Override
+        public void onSuccess(T data) {
+            future.complete(data);
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            future.completeExceptionally(e);
+        }
+    }
+
+    private static final class DeliveringCallback<T> implements Callback<T> {
+
+        private final Executor delivery;
+        private final Callback<T> callback;
+
+        DeliveringCallback(Executor delivery, Callback<T> callback) {
+            this.delivery = delivery;
+            this.callback = callback;
+        }
+
+        @Override
+        public void onSuccess(final T data) {
+            delivery.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onSuccess(data);
+                }
+            });
+        }
+
+        @Override
+        public void onFailure(final Exception e) {
+            delivery.execute(new Runnable() {
+                @Override
+                public void run() {
+                    callback.onFailure(e);
+                }
+            });
+        }
+    }
+
+    private static final class CallbackTask implements Runnable, AuthenticationExecutor.Rejectable {
+
+        private final Callback<?> callback;
+        private final Runnable call;
+
+        CallbackTask(Callback<?> callback, Runnable call) {
+            this.callback = callback;
+            this.call = call;
+        }
+
+        @Override
+        public void run() {
+            call.run();
+        }
+
+        @Override
+        public void onRejected(RejectedExecutionException exception) {
+            callback.onFailure(exception);
+        }
+    }
+
 }
@@ -23,7 +23,6 @@ import java.util.Map;
 import org.jboss.aerogear.android.core.Provider;
 import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
 import org.jboss.aerogear.android.pipe.http.HttpProvider;
-import org.jboss.aerogear.android.pipe.http.HttpProviderFactory;
 import org.jboss.aerogear.android.pipe.util.UrlUtils;
 
 import android.util.Log;
@@ -34,7 +33,7 @@ public abstract class AbstractAuthenticationModuleRunner {
     protected final URL baseURL;
     protected final String enrollEndpoint;
     protected final URL enrollURL;
-    protected final Provider<HttpProvider> httpProviderFactory = new HttpProviderFactory();
+    protected final Provider<HttpProvider> httpProviderFactory = new DeadlineHttpProvider.Factory();
     protected final String loginEndpoint;
     protected final URL loginURL;
     protected final String logoutEndpoint;
@@ -91,6 +90,22 @@ public abstract class AbstractAuthenticationModuleRunner {
         return logoutEndpoint;
     }
 
+    /**
+     * Creates the provider for the next request of a call.
+     *
+     * @param url the URL of the request
+     * @param deadline the deadline of the call
+     * @return a provider whose timeouts do not exceed the deadline and whose
+     *         requests are disconnected when the call is cancelled
+     *
+     * @throws java.util.concurrent.CancellationException if the call was
+     *             cancelled
+     * @throws Deadline.ExceededException if the deadline expired
+     */
+    protected HttpProvider getHttpProvider(URL url, Deadline deadline) {
+        return httpProviderFactory.get(url, deadline.timeout(timeout), deadline);
+    }
+
     public abstract HeaderAndBody onEnroll(final Map<String, String> userData);
 
     public abstract HeaderAndBody onLogin(final String username, final String password);
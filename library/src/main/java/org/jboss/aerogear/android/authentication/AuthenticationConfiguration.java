@@ -16,9 +16,14 @@
  */
 package org.jboss.aerogear.android.authentication;
 
+import java.io.File;
 import java.net.URL;
 import java.util.Collection;
 import java.util.HashSet;
+import java.util.concurrent.Executor;
+
+import javax.crypto.SecretKey;
+
 import org.jboss.aerogear.android.core.Config;
 
 /**
@@ -30,6 +35,10 @@ public abstract class AuthenticationConfiguration<CONFIGURATION extends Authenti
 
     private String name;
     private URL baseURL;
+    private Executor executor;
+    private Executor callbackExecutor;
+    private File cookieFile;
+    private SecretKey cookieKey;
 
     private Collection<OnAuthenticationCreatedListener> listeners = new HashSet<OnAuthenticationCreatedListener>();
 
@@ -113,12 +122,38 @@ public abstract class AuthenticationConfiguration<CONFIGURATION extends Authenti
             throw new IllegalStateException("baseURL may not be null");
         }
         AuthenticationModule newModule = buildModule();
+        if (newModule instanceof AbstractAuthenticationModule) {
+            AbstractAuthenticationModule module = (AbstractAuthenticationModule) newModule;
+            if (executor != null) {
+                module.setExecutor(executor);
+            }
+            module.setCallbackExecutor(callbackExecutor);
+            if (cookieFile != null) {
+                module.getCookieStore().persistTo(cookieFile, cookieKey);
+            }
+        }
         for (OnAuthenticationCreatedListener listener : getOnAuthenticationCreatedListeners()) {
             listener.onAuthenticationCreated(this, newModule);
         }
         return newModule;
     }
 
+    /**
+     * Registers this configuration with {@link AuthenticationManager} without
+     * building its module. The first {@link AuthenticationManager#getModule(String)
+     * } call for the name of this configuration builds the module and
+     * notifies all listeners.
+     * 
+     * @throws IllegalStateException if baseURL is null
+     * @throws IllegalArgumentException if the name is null
+     */
+    public final void asLazyModule() {
+        if (baseURL == null) {
+            throw new IllegalStateException("baseURL may not be null");
+        }
+        AuthenticationManager.registerLazyModule(this);
+    }
+
     /**
      * 
      * Validates configuration parameters and returns a AuthenticationModule
@@ -153,4 +188,84 @@ public abstract class AuthenticationConfiguration<CONFIGURATION extends Authenti
         return (CONFIGURATION) this;
     }
 
+    /**
+     * The executor runs the login, logout and enroll calls of the module. If
+     * it is not set the module uses a shared, bounded default.
+     *
+     * @return the executor or null if the default is used
+     */
+    public Executor getExecutor() {
+        return executor;
+    }
+
+    /**
+     * The executor runs the login, logout and enroll calls of the module. An
+     * {@link AuthenticationExecutor} provides a bounded queue, a rejection
+     * policy and metrics. Calls it rejects fail with a
+     * RejectedExecutionException in their callback.
+     *
+     * @param executor a new executor, null for the shared default
+     * @return the configuration objects
+     */
+    public CONFIGURATION executor(Executor executor) {
+        this.executor = executor;
+        return (CONFIGURATION) this;
+    }
+
+    /**
+     * The callback executor runs the callbacks of login, logout and enroll.
+     * If it is not set they run on the thread which finished the call.
+     *
+     * @return the callback executor or null
+     */
+    public Executor getCallbackExecutor() {
+        return callbackExecutor;
+    }
+
+    /**
+     * The callback executor runs the callbacks of login, logout and enroll.
+     * {@link CallbackExecutors#mainThread() } delivers them on the main
+     * thread and batches bursts into one message.
+     *
+     * @param callbackExecutor a new callback executor, null to run callbacks
+     *            on the thread which finished the call
+     * @return the configuration objects
+     */
+    public CONFIGURATION callbackExecutor(Executor callbackExecutor) {
+        this.callbackExecutor = callbackExecutor;
+        return (CONFIGURATION) this;
+    }
+
+    /**
+     * The cookie file persists the cookies of the module, see
+     * {@link ModuleCookieStore#persistTo(File, SecretKey) }.
+     *
+     * @return the cookie file or null if cookies are kept in memory
+     */
+    public File getCookieFile() {
+        return cookieFile;
+    }
+
+    /**
+     * The cookie file persists the cookies of the module, so a session
+     * cookie survives a restart of the process. The cookies are encrypted
+     * with keys derived from key, the file should still be private to the
+     * application.
+     *
+     * @param cookieFile a file, null to keep cookies in memory
+     * @param key an AES key whose encoding is available, required if
+     *            cookieFile is set
+     * @return the configuration objects
+     *
+     * @throws IllegalArgumentException if cookieFile is set and key is null
+     */
+    public CONFIGURATION cookieFile(File cookieFile, SecretKey key) {
+        if (cookieFile != null && key == null) {
+            throw new IllegalArgumentException("key may not be null");
+        }
+        this.cookieFile = cookieFile;
+        this.cookieKey = key;
+        return (CONFIGURATION) this;
+    }
+
 }
@@ -0,0 +1,195 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.os.Looper;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.RejectedExecutionHandler;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A bounded executor for the login, logout and enroll calls of
+ * authentication modules. The queue has a fixed capacity, once it and the
+ * pool are full the {@link RejectionPolicy} decides what happens with new
+ * work.
+ *
+ * Rejected work causes a {@link RejectedExecutionException} for the
+ * submitter. Queued work which is dropped later is told so if it implements
+ * {@link Rejectable}. The modules pass both to the callback of the call.
+ */
+public class AuthenticationExecutor extends ThreadPoolExecutor {
+
+    /**
+     * What happens with new work if the pool and the queue are full.
+     */
+    public enum RejectionPolicy {
+
+        /**
+         * The submitting thread runs the work itself, which slows down the
+         * producer. The main thread of the application never runs work, it
+         * fails fast instead.
+         */
+        CALLER_RUNS,
+
+        /**
+         * The oldest queued work is dropped to make room for the new work.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The new work is rejected immediately.
+         */
+        FAIL_FAST
+    }
+
+    /**
+     * Work which wants to know that it will not be run.
+     */
+    public interface Rejectable {
+
+        void onRejected(RejectedExecutionException exception);
+
+    }
+
+    private static final long KEEP_ALIVE_SECONDS = 1;
+
+    private final RejectionPolicy rejectionPolicy;
+    private final AtomicLong rejected = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final AtomicLong callerRuns = new AtomicLong();
+
+    /**
+     * @param corePoolSize the number of threads kept alive
+     * @param maximumPoolSize the number of threads used once the queue is
+     *            full
+     * @param queueCapacity the number of calls which may wait for a thread
+     * @param rejectionPolicy what happens if the pool and the queue are full
+     */
+    public AuthenticationExecutor(int corePoolSize, int maximumPoolSize, int queueCapacity,
+            RejectionPolicy rejectionPolicy) {
+        super(corePoolSize, maximumPoolSize, KEEP_ALIVE_SECONDS, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(queueCapacity), new AuthenticationThreadFactory());
+        if (rejectionPolicy == null) {
+            throw new IllegalArgumentException("rejectionPolicy may not be null");
+        }
+        this.rejectionPolicy = rejectionPolicy;
+        setRejectedExecutionHandler(new PolicyHandler());
+    }
+
+    public RejectionPolicy getRejectionPolicy() {
+        return rejectionPolicy;
+    }
+
+    /**
+     * @return the number of calls waiting for a thread
+     */
+    public int getQueueDepth() {
+        return getQueue().size();
+    }
+
+    /**
+     * @return the approximate number of threads running calls
+     */
+    public int getActiveThreads() {
+        return getActiveCount();
+    }
+
+    /**
+     * @return how often new work was rejected
+     */
+    public long getRejectedCount() {
+        return rejected.get();
+    }
+
+    /**
+     * @return how often queued work was dropped for newer work
+     */
+    public long getDroppedCount() {
+        return dropped.get();
+    }
+
+    /**
+     * @return how often a submitting thread had to run its work itself
+     */
+    public long getCallerRunsCount() {
+        return callerRuns.get();
+    }
+
+    private static boolean isMainThread() {
+        Looper mainLooper = Looper.getMainLooper();
+        return mainLooper != null && mainLooper == Looper.myLooper();
+    }
+
+    private final class PolicyHandler implements RejectedExecutionHandler {
+
+        @Override
+        public void rejectedExecution(Runnable work, ThreadPoolExecutor executor) {
+            if (executor.isShutdown()) {
+                reject("The executor was shut down");
+            }
+            switch (rejectionPolicy) {
+            case CALLER_RUNS:
+                if (isMainThread()) {
+                    reject("The executor is saturated, the main thread does not run authentication calls");
+                }
+                callerRuns.incrementAndGet();
+                work.run();
+                break;
+            case DROP_OLDEST:
+                Runnable oldest = executor.getQueue().poll();
+                if (oldest != null) {
+                    dropped.incrementAndGet();
+                    if (oldest instanceof Rejectable) {
+                        ((Rejectable) oldest).onRejected(new RejectedExecutionException(
+                                "The call was dropped for newer work"));
+                    }
+                }
+                executor.execute(work);
+                break;
+            default:
+                reject("The executor is saturated");
+            }
+        }
+
+        private void reject(String message) {
+            rejected.incrementAndGet();
+            throw new RejectedExecutionException(message);
+        }
+    }
+
+    private static final class AuthenticationThreadFactory implements ThreadFactory {
+
+        private static final AtomicInteger POOL_COUNT = new AtomicInteger();
+
+        private final int pool = POOL_COUNT.incrementAndGet();
+        private final AtomicInteger threads = new AtomicInteger();
+
+        @Override
+        public Thread newThread(Runnable work) {
+            Thread thread = new Thread(work, "aerogear-auth-" + pool + "-" + threads.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        }
+    }
+
+}
@@ -0,0 +1,380 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jboss.aerogear.android.core.Callback;
+
+/**
+ * The result of an asynchronous authentication call, a small backport of
+ * the parts of CompletableFuture the modules need.
+ *
+ * Callbacks and chained stages run on the thread which completes the future,
+ * or inline on the calling thread if the future is already complete, there
+ * is no executor hop in between. They should not block.
+ *
+ * @param <T> the type of the result
+ */
+public class AuthenticationFuture<T> implements Future<T> {
+
+    /**
+     * Maps the result of a future.
+     *
+     * @param <T> the type of the input
+     * @param <U> the type of the output
+     */
+    public interface Function<T, U> {
+
+        U apply(T value) throws Exception;
+
+    }
+
+    private static final ScheduledExecutorService TIMER = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable work) {
+            Thread thread = new Thread(work, "aerogear-auth-timeout");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private final CountDownLatch done = new CountDownLatch(1);
+    private final List<Callback<? super T>> callbacks = new ArrayList<Callback<? super T>>(1);
+    private boolean completed = false;
+    private volatile T result;
+    private volatile Exception exception;
+    private final Deadline deadline;
+
+    public AuthenticationFuture() {
+        this(null);
+    }
+
+    /**
+     * The call behind this future runs under a child of deadline. The child
+     * is cancelled if the future is cancelled or fails, deadline itself is
+     * left alone, so other calls may share it.
+     *
+     * @param deadline the deadline of the caller or null
+     */
+    public AuthenticationFuture(Deadline deadline) {
+        this.deadline = deadline == null ? null : deadline.child();
+    }
+
+    /**
+     * @return the deadline the call behind this future runs under, a child
+     *         of the deadline the future was created with, or null
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    /**
+     * @return a future which completed with value
+     */
+    public static <T> AuthenticationFuture<T> completed(T value) {
+        AuthenticationFuture<T> future = new AuthenticationFuture<T>();
+        future.complete(value);
+        return future;
+    }
+
+    /**
+     * @return a future which failed with exception
+     */
+    public static <T> AuthenticationFuture<T> failed(Exception exception) {
+        AuthenticationFuture<T> future = new AuthenticationFuture<T>();
+        future.completeExceptionally(exception);
+        return future;
+    }
+
+    /**
+     * Waits for several futures, for instance the logins of several modules.
+     *
+     * @param futures the futures to wait for
+     * @return a future of the results in the order of futures, it fails with
+     *         the first failure
+     */
+    public static <T> AuthenticationFuture<List<T>> allOf(final List<AuthenticationFuture<T>> futures) {
+        final AuthenticationFuture<List<T>> all = new AuthenticationFuture<List<T>>();
+        if (futures.isEmpty()) {
+            all.complete(Collections.<T>emptyList());
+            return all;
+        }
+        final AtomicInteger remaining = new AtomicInteger(futures.size());
+        for (AuthenticationFuture<T> future : futures) {
+            future.addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T data) {
+                    if (remaining.decrementAndGet() == 0) {
+                        List<T> results = new ArrayList<T>(futures.size());
+                        for (AuthenticationFuture<T> completed : futures) {
+                            results.add(completed.result);
+                        }
+                        all.complete(results);
+                    }
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    all.completeExceptionally(e);
+                }
+            });
+        }
+        return all;
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    public boolean complete(T value) {
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            result = value;
+            pending = finish();
+        }
+        if (deadline != null) {
+            deadline.release();
+        }
+        for (Callback<? super T> callback : pending) {
+            callback.onSuccess(value);
+        }
+        return true;
+    }
+
+    /**
+     * @return false if the future was already complete
+     */
+    public boolean completeExceptionally(Exception failure) {
+        List<Callback<? super T>> pending;
+        synchronized (this) {
+            if (completed) {
+                return false;
+            }
+            exception = failure;
+            pending = finish();
+        }
+        if (deadline != null) {
+            deadline.cancel();
+            deadline.release();
+        }
+        for (Callback<? super T> callback : pending) {
+            callback.onFailure(failure);
+        }
+        return true;
+    }
+
+    /**
+     * Completes the future with a CancellationException. If the future has a
+     * deadline the call behind it is cancelled, otherwise its result is
+     * ignored. The deadline of the caller is not cancelled.
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        return completeExceptionally(new CancellationException());
+    }
+
+    @Override
+    public boolean isCancelled() {
+        return exception instanceof CancellationException;
+    }
+
+    @Override
+    public boolean isDone() {
+        return done.getCount() == 0;
+    }
+
+    public boolean isCompletedExceptionally() {
+        return isDone() && exception != null;
+    }
+
+    @Override
+    public T get() throws InterruptedException, ExecutionException {
+        done.await();
+        return report();
+    }
+
+    @Override
+    public T get(long timeout, TimeUnit unit) throws InterruptedException, ExecutionException, TimeoutException {
+        if (!done.await(timeout, unit)) {
+            throw new TimeoutException();
+        }
+        return report();
+    }
+
+    /**
+     * Calls callback once the future completed, inline if it already did.
+     *
+     * @param callback the callback
+     * @return this future
+     */
+    public AuthenticationFuture<T> addCallback(Callback<? super T> callback) {
+        synchronized (this) {
+            if (!completed) {
+                callbacks.add(callback);
+                return this;
+            }
+        }
+        if (exception == null) {
+            callback.onSuccess(result);
+        } else {
+            callback.onFailure(exception);
+        }
+        return this;
+    }
+
+    /**
+     * @param function maps the result, an exception it throws fails the
+     *            returned future
+     * @return a future of the mapped result, failures are passed on
+     */
+    public <U> AuthenticationFuture<U> thenApply(final Function<? super T, ? extends U> function) {
+        final AuthenticationFuture<U> next = new AuthenticationFuture<U>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T data) {
+                U mapped;
+                try {
+                    mapped = function.apply(data);
+                } catch (Exception e) {
+                    next.completeExceptionally(e);
+                    return;
+                }
+                next.complete(mapped);
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                next.completeExceptionally(e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * @param function starts the next asynchronous call with the result
+     * @return a future of the result of the next call, failures are passed on
+     */
+    public <U> AuthenticationFuture<U> thenCompose(
+            final Function<? super T, ? extends AuthenticationFuture<U>> function) {
+        final AuthenticationFuture<U> next = new AuthenticationFuture<U>();
+        addCallback(new Callback<T>() {
+            @Override
+            public void onSuccess(T data) {
+                AuthenticationFuture<U> stage;
+                try {
+                    stage = function.apply(data);
+                } catch (Exception e) {
+                    next.completeExceptionally(e);
+                    return;
+                }
+                stage.addCallback(new Callback<U>() {
+                    @Override
+                    public void onSuccess(U data) {
+                        next.complete(data);
+                    }
+
+                    @Override
+                    public void onFailure(Exception e) {
+                        next.completeExceptionally(e);
+                    }
+                });
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                next.completeExceptionally(e);
+            }
+        });
+        return next;
+    }
+
+    /**
+     * Fails this future with a TimeoutException if it is not complete after
+     * timeout.
+     *
+     * @return this future
+     */
+    public AuthenticationFuture<T> orTimeout(long timeout, TimeUnit unit) {
+        return failAfter(timeout, unit, new TimeoutException());
+    }
+
+    /**
+     * Fails this future with failure if it is not complete after timeout.
+     *
+     * @return this future
+     */
+    AuthenticationFuture<T> failAfter(long timeout, TimeUnit unit, final Exception failure) {
+        if (!isDone()) {
+            final ScheduledFuture<?> timer = TIMER.schedule(new Runnable() {
+                @Override
+                public void run() {
+                    completeExceptionally(failure);
+                }
+            }, timeout, unit);
+            addCallback(new Callback<T>() {
+                @Override
+                public void onSuccess(T data) {
+                    timer.cancel(false);
+                }
+
+                @Override
+                public void onFailure(Exception e) {
+                    timer.cancel(false);
+                }
+            });
+        }
+        return this;
+    }
+
+    /**
+     * Must be called while holding the monitor.
+     */
+    private List<Callback<? super T>> finish() {
+        completed = true;
+        done.countDown();
+        List<Callback<? super T>> pending = new ArrayList<Callback<? super T>>(callbacks);
+        callbacks.clear();
+        return pending;
+    }
+
+    private T report() throws ExecutionException {
+        if (exception instanceof CancellationException) {
+            throw (CancellationException) exception;
+        }
+        if (exception != null) {
+            throw new ExecutionException(exception);
+        }
+        return result;
+    }
+
+}
@@ -16,33 +16,76 @@
  */
 package org.jboss.aerogear.android.authentication;
 
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
 import org.jboss.aerogear.android.core.ConfigurationProvider;
-import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationConfiguration;
-import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationConfigurationProvider;
-import org.jboss.aerogear.android.authentication.digest.HttpDigestAuthenticationConfiguration;
-import org.jboss.aerogear.android.authentication.digest.HttpDigestAuthenticationConfigurationProvider;
 
+/**
+ * Registry of authentication modules and configuration providers.
+ *
+ * Modules may be configured and fetched from any thread. Lookups do not
+ * lock unless a maximum is set, then each lookup moves its module to the
+ * most recently used end of the registry under the registry lock.
+ * Registration is atomic per name.
+ * Configurations registered with
+ * {@link AuthenticationConfiguration#asLazyModule() } build their module on
+ * the first lookup.
+ *
+ * The registry is unbounded by default. With {@link #setMaximumModules(int)
+ * } it evicts the least recently used modules, with
+ * {@link #setModuleIdleTimeout(long, TimeUnit) } the modules which were not
+ * used for a while. A module counts as used when it is looked up and when it
+ * serves a call or signs a request, so a module held by a Pipe stays
+ * registered while the Pipe uses it. Evicted modules have their credentials
+ * wiped.
+ */
 public class AuthenticationManager {
-    private static Map<String, AuthenticationModule> modules = new HashMap<String, AuthenticationModule>();
+    private static final ConcurrentMap<String, ModuleHolder> modules = new ConcurrentHashMap<String, ModuleHolder>();
+
+    /**
+     * The modules from least to most recently looked up, guarded by
+     * registryLock. Every change of modules is made under that lock too.
+     */
+    private static final LinkedHashMap<String, ModuleHolder> recency = new LinkedHashMap<String, ModuleHolder>(16, 0.75f, true);
+
+    private static final ModuleCacheStatistics statistics = new ModuleCacheStatistics();
+    private static final List<OnModuleEvictedListener> evictionListeners = new CopyOnWriteArrayList<OnModuleEvictedListener>();
+    private static final Object registryLock = new Object();
+    private static volatile int maximumModules = 0;
+    private static volatile long idleTimeoutNanos = 0;
+    private static long lastIdleSweep = System.nanoTime();
 
-    private static Map<Class<? extends AuthenticationConfiguration<?>>, ConfigurationProvider<?>> configurationProviderMap = new HashMap<Class<? extends AuthenticationConfiguration<?>>, ConfigurationProvider<?>>();
+    private static final ConcurrentMap<Class<? extends AuthenticationConfiguration<?>>, ConfigurationProvider<?>> configurationProviderMap = new ConcurrentHashMap<Class<? extends AuthenticationConfiguration<?>>, ConfigurationProvider<?>>();
 
-    private static OnAuthenticationCreatedListener onAuthenticationCreatedListener = new OnAuthenticationCreatedListener() {
+    private static final OnAuthenticationCreatedListener onAuthenticationCreatedListener = new OnAuthenticationCreatedListener() {
         @Override
         public void onAuthenticationCreated(AuthenticationConfiguration<?> configuration, AuthenticationModule module) {
-            modules.put(configuration.getName(), module);
+            String name = configuration.getName();
+            if (name == null) {
+                return;
+            }
+            ModuleHolder current = modules.get(name);
+            if (current != null && current.isBuilding(configuration)) {
+                return;
+            }
+            if (module == null) {
+                synchronized (registryLock) {
+                    modules.remove(name);
+                    recency.remove(name);
+                }
+            } else {
+                register(name, new ModuleHolder(module));
+            }
         }
     };
 
-    static {
-        HttpBasicAuthenticationConfigurationProvider basicConfigurationProvider = new HttpBasicAuthenticationConfigurationProvider();
-        AuthenticationManager.registerConfigurationProvider(HttpBasicAuthenticationConfiguration.class, basicConfigurationProvider);
-        HttpDigestAuthenticationConfigurationProvider digestConfigurationProvider = new HttpDigestAuthenticationConfigurationProvider();
-        AuthenticationManager.registerConfigurationProvider(HttpDigestAuthenticationConfiguration.class, digestConfigurationProvider);
-    }
-
     private AuthenticationManager() {
     }
 
@@ -72,10 +115,14 @@ public class AuthenticationManager {
      */
     public static <CFG extends AuthenticationConfiguration<CFG>> CFG config(String name, Class<CFG> authenticationConfigurationClass) {
 
+        if (authenticationConfigurationClass == null) {
+            throw new IllegalArgumentException("Configuration not registered!");
+        }
+
         @SuppressWarnings("unchecked")
         ConfigurationProvider<? extends AuthenticationConfiguration<CFG>> provider =
                 (ConfigurationProvider<? extends AuthenticationConfiguration<CFG>>)
-                configurationProviderMap.get(authenticationConfigurationClass);
+                getConfigurationProvider(authenticationConfigurationClass);
 
         if (provider == null) {
             throw new IllegalArgumentException("Configuration not registered!");
@@ -87,15 +134,408 @@ public class AuthenticationManager {
 
     }
 
+    /**
+     * Returns the registered provider of a configuration class. Providers
+     * shipped with this library are resolved from
+     * {@link ConfigurationProviderIndex} and registered the first time they
+     * are asked for.
+     */
+    private static ConfigurationProvider<?> getConfigurationProvider(Class<? extends AuthenticationConfiguration<?>> configurationClass) {
+        ConfigurationProvider<?> provider = configurationProviderMap.get(configurationClass);
+        if (provider != null) {
+            return provider;
+        }
+        provider = ConfigurationProviderIndex.newProvider(configurationClass);
+        if (provider == null) {
+            return null;
+        }
+        ConfigurationProvider<?> registered = configurationProviderMap.putIfAbsent(configurationClass, provider);
+        return registered == null ? provider : registered;
+    }
+
     /**
      * Fetches a named module
      * 
      * @param name the name of the AuthenticationModule given in {@link AuthenticationManager#config(String, Class) }
      * 
+     * If the module was registered with {@link AuthenticationConfiguration#asLazyModule()
+     * } the first call builds it, concurrent calls wait for that module. A
+     * module which was not used for longer than the idle timeout is evicted
+     * instead of returned. With a maximum set the lookup takes the registry
+     * lock briefly to keep the recency order, eviction callbacks never run
+     * under it.
+     * 
      * @return the named AuthenticationModule or null
+     * 
+     * @throws IllegalStateException if a lazy module can not be constructed
      */
     public static AuthenticationModule getModule(String name) {
-        return modules.get(name);
+        if (name == null) {
+            return null;
+        }
+        ModuleHolder holder = modules.get(name);
+        if (holder == null) {
+            statistics.miss();
+            return null;
+        }
+        long now = System.nanoTime();
+        long idleTimeout = idleTimeoutNanos;
+        if (idleTimeout > 0 && holder.isIdle(now, idleTimeout)) {
+            if (unregister(name, holder)) {
+                evict(name, holder, OnModuleEvictedListener.Cause.IDLE);
+            }
+            statistics.miss();
+            return null;
+        }
+        holder.touch(now);
+        if (maximumModules > 0) {
+            synchronized (registryLock) {
+                // moves the module to the most recently used end
+                recency.get(name);
+            }
+        }
+        statistics.hit();
+        return holder.get();
+    }
+
+    /**
+     * Registers a module under a name unless another module already has it.
+     * Of several threads registering the same name only one wins, all of
+     * them get the winning module back.
+     *
+     * Modules built with {@link AuthenticationConfiguration#asModule() }
+     * are registered already and replace older modules of the same name.
+     *
+     * @param name the name to fetch the module with
+     * @param module the module to register
+     *
+     * @return the module which is registered under name after this call
+     *
+     * @throws IllegalArgumentException if name or module is null
+     */
+    public static AuthenticationModule registerModuleIfAbsent(String name, AuthenticationModule module) {
+        if (name == null || module == null) {
+            throw new IllegalArgumentException("name and module may not be null");
+        }
+        ModuleHolder registered;
+        synchronized (registryLock) {
+            ModuleHolder holder = new ModuleHolder(module);
+            registered = modules.putIfAbsent(name, holder);
+            if (registered == null) {
+                recency.put(name, holder);
+            }
+        }
+        if (registered != null) {
+            return registered.get();
+        }
+        enforceLimits(false);
+        return module;
+    }
+
+    /**
+     * Limits the number of registered modules. When a registration exceeds
+     * it, the least recently used modules are evicted.
+     *
+     * @param maximum the maximum number of modules, 0 for no limit
+     *
+     * @throws IllegalArgumentException if maximum is negative
+     */
+    public static void setMaximumModules(int maximum) {
+        if (maximum < 0) {
+            throw new IllegalArgumentException("maximum may not be negative");
+        }
+        maximumModules = maximum;
+        enforceLimits(false);
+    }
+
+    /**
+     * Evicts modules which were not used for a given time. Lookups
+     * never return an idle module, registrations and
+     * {@link #cleanUpModules() } remove idle modules in the background of
+     * the registry.
+     *
+     * @param timeout the idle time after which a module is evicted, 0 to
+     *            keep idle modules
+     * @param unit the unit of timeout
+     *
+     * @throws IllegalArgumentException if timeout is negative
+     */
+    public static void setModuleIdleTimeout(long timeout, TimeUnit unit) {
+        if (timeout < 0) {
+            throw new IllegalArgumentException("timeout may not be negative");
+        }
+        idleTimeoutNanos = unit.toNanos(timeout);
+        enforceLimits(true);
+    }
+
+    /**
+     * Evicts all idle modules and the least recently used modules above the
+     * maximum now.
+     */
+    public static void cleanUpModules() {
+        enforceLimits(true);
+    }
+
+    /**
+     * @return the number of registered modules, including lazy ones which
+     *         were not built yet
+     */
+    public static int getModuleCount() {
+        return modules.size();
+    }
+
+    /**
+     * @return the counters of the module registry
+     */
+    public static ModuleCacheStatistics getModuleCacheStatistics() {
+        return statistics;
+    }
+
+    /**
+     * @param listener a listener to notify about evicted modules
+     */
+    public static void addOnModuleEvictedListener(OnModuleEvictedListener listener) {
+        evictionListeners.add(listener);
+    }
+
+    /**
+     * @param listener a listener which was added before
+     */
+    public static void removeOnModuleEvictedListener(OnModuleEvictedListener listener) {
+        evictionListeners.remove(listener);
+    }
+
+    /**
+     * Logs into several named modules in parallel. Logins start in the
+     * iteration order of loginData, at most maxConcurrency of them run at
+     * the same time and all of them run under one deadline. A startup
+     * login into several backends then takes about as long as the slowest
+     * backend.
+     *
+     * Logins into names without a module fail with an
+     * IllegalArgumentException, the other logins are not affected.
+     *
+     * @param loginData the login data of each module keyed by module name,
+     *            see {@link AuthenticationModule#login(Map, Deadline) }
+     * @param maxConcurrency the maximum number of logins which run at the
+     *            same time
+     * @param deadline the deadline of all logins
+     *
+     * @return the results of the logins and their aggregated completion
+     *
+     * @throws IllegalArgumentException if maxConcurrency is less than 1
+     */
+    public static FanOutLogin loginAll(Map<String, Map<String, String>> loginData, int maxConcurrency, Deadline deadline) {
+        if (maxConcurrency < 1) {
+            throw new IllegalArgumentException("maxConcurrency must be at least 1");
+        }
+        FanOutLogin login = new FanOutLogin(new LinkedHashMap<String, Map<String, String>>(loginData), deadline);
+        login.start(maxConcurrency);
+        return login;
+    }
+
+    /**
+     * Registers a configuration whose module is built by the first
+     * {@link #getModule(String) } call for its name. It replaces older
+     * modules of the same name.
+     *
+     * @param configuration a configuration with a name
+     *
+     * @throws IllegalArgumentException if the configuration has no name
+     */
+    static void registerLazyModule(AuthenticationConfiguration<?> configuration) {
+        if (configuration.getName() == null) {
+            throw new IllegalArgumentException("name may not be null");
+        }
+        register(configuration.getName(), new ModuleHolder(configuration));
+    }
+
+    private static void register(String name, ModuleHolder holder) {
+        synchronized (registryLock) {
+            modules.put(name, holder);
+            recency.put(name, holder);
+        }
+        enforceLimits(false);
+    }
+
+    /**
+     * @return false if name is no longer registered with holder
+     */
+    private static boolean unregister(String name, ModuleHolder holder) {
+        synchronized (registryLock) {
+            if (!modules.remove(name, holder)) {
+                return false;
+            }
+            recency.remove(name);
+            return true;
+        }
+    }
+
+    /**
+     * Evicts idle modules and, while there are more modules than the
+     * maximum, the least recently used one. Idle modules are swept at most
+     * every half idle timeout unless the sweep is forced, lookups check
+     * idleness of their own module anyway.
+     *
+     * Lookups keep recency in order, modules used without a lookup are only
+     * marked. A marked module at the eldest end gets a second chance and
+     * moves to the most recently used end instead of being evicted.
+     *
+     * The modules are unregistered under the registry lock, their
+     * credentials are wiped and the listeners are notified after it is
+     * released, so a slow wipe or listener does not block lookups.
+     */
+    private static void enforceLimits(boolean forceIdleSweep) {
+        int maximum = maximumModules;
+        long idleTimeout = idleTimeoutNanos;
+        if (idleTimeout == 0 && (maximum == 0 || modules.size() <= maximum)) {
+            return;
+        }
+        List<Eviction> evictions = new ArrayList<Eviction>();
+        synchronized (registryLock) {
+            long now = System.nanoTime();
+            if (idleTimeout > 0 && (forceIdleSweep || now - lastIdleSweep >= idleTimeout / 2)) {
+                lastIdleSweep = now;
+                Iterator<Map.Entry<String, ModuleHolder>> entries = recency.entrySet().iterator();
+                while (entries.hasNext()) {
+                    Map.Entry<String, ModuleHolder> entry = entries.next();
+                    if (entry.getValue().isIdle(now, idleTimeout)) {
+                        entries.remove();
+                        modules.remove(entry.getKey(), entry.getValue());
+                        evictions.add(new Eviction(entry.getKey(), entry.getValue(), OnModuleEvictedListener.Cause.IDLE));
+                    }
+                }
+            }
+            int secondChances = recency.size();
+            while (maximum > 0 && recency.size() > maximum) {
+                Map.Entry<String, ModuleHolder> eldest = recency.entrySet().iterator().next();
+                ModuleHolder holder = eldest.getValue();
+                if (secondChances-- > 0 && holder.usedSinceTouch()) {
+                    holder.touch(holder.lastUse());
+                    recency.get(eldest.getKey());
+                    continue;
+                }
+                recency.remove(eldest.getKey());
+                modules.remove(eldest.getKey(), holder);
+                evictions.add(new Eviction(eldest.getKey(), holder, OnModuleEvictedListener.Cause.SIZE));
+            }
+        }
+        for (Eviction eviction : evictions) {
+            evict(eviction.name, eviction.holder, eviction.cause);
+        }
+    }
+
+    private static void evict(String name, ModuleHolder holder, OnModuleEvictedListener.Cause cause) {
+        AuthenticationModule module = holder.built();
+        if (module instanceof AbstractAuthenticationModule) {
+            ((AbstractAuthenticationModule) module).wipeCredentials();
+        }
+        statistics.evicted(cause);
+        for (OnModuleEvictedListener listener : evictionListeners) {
+            listener.onModuleEvicted(name, module, cause);
+        }
+    }
+
+    /**
+     * A module which was unregistered and still has to be wiped and reported.
+     */
+    private static final class Eviction {
+
+        final String name;
+        final ModuleHolder holder;
+        final OnModuleEvictedListener.Cause cause;
+
+        Eviction(String name, ModuleHolder holder, OnModuleEvictedListener.Cause cause) {
+            this.name = name;
+            this.holder = holder;
+            this.cause = cause;
+        }
+    }
+
+    /**
+     * A registered module, or the configuration to build it from. The module
+     * is built once, under the lock of the holder.
+     */
+    private static final class ModuleHolder {
+
+        private final AuthenticationConfiguration<?> configuration;
+        private volatile AuthenticationModule module;
+        private volatile Thread builder;
+        private volatile long lastAccess = System.nanoTime();
+
+        ModuleHolder(AuthenticationModule module) {
+            this.configuration = null;
+            this.module = module;
+        }
+
+        ModuleHolder(AuthenticationConfiguration<?> configuration) {
+            this.configuration = configuration;
+        }
+
+        AuthenticationModule get() {
+            AuthenticationModule built = module;
+            if (built == null && configuration != null) {
+                synchronized (this) {
+                    built = module;
+                    if (built == null) {
+                        builder = Thread.currentThread();
+                        try {
+                            built = configuration.asModule();
+                        } finally {
+                            builder = null;
+                        }
+                        module = built;
+                    }
+                }
+            }
+            return built;
+        }
+
+        /**
+         * @return the module if it was built, without building it
+         */
+        AuthenticationModule built() {
+            return module;
+        }
+
+        void touch(long now) {
+            lastAccess = now;
+        }
+
+        /**
+         * @return the time of the last lookup or of the last use the module
+         *         recorded itself, whichever is later
+         */
+        long lastUse() {
+            long last = lastAccess;
+            AuthenticationModule built = module;
+            if (built instanceof AbstractAuthenticationModule) {
+                long used = ((AbstractAuthenticationModule) built).getLastUsed();
+                if (used - last > 0) {
+                    last = used;
+                }
+            }
+            return last;
+        }
+
+        /**
+         * @return true if the module was used since the last touch
+         */
+        boolean usedSinceTouch() {
+            return lastUse() != lastAccess;
+        }
+
+        boolean isIdle(long now, long idleTimeout) {
+            return now - lastUse() > idleTimeout;
+        }
+
+        /**
+         * @return true if this holder is building its module from
+         *         configuration on the calling thread
+         */
+        boolean isBuilding(AuthenticationConfiguration<?> configuration) {
+            return this.configuration == configuration && builder == Thread.currentThread();
+        }
     }
 
 }
@@ -85,6 +85,109 @@ public interface AuthenticationModule extends PipeModule {
      */
     public void logout(Callback<Void> callback);
 
+    /**
+     * Will try to register a user with a service using userData.
+     *
+     * @param userData a collection of data to be passed to the server.
+     * @return a future of the server response
+     */
+    public AuthenticationFuture<HeaderAndBody> enroll(Map<String, String> userData);
+
+    /**
+     * Will try to log in a user using username and password.
+     *
+     * @param username the users userName
+     * @param password the users Password
+     * @return a future of the server response
+     */
+    public AuthenticationFuture<HeaderAndBody> login(String username, String password);
+
+    /**
+     * Will try to log in a user
+     *
+     * @param loginData a map of data which will be passed to the server
+     * @return a future of the server response
+     */
+    public AuthenticationFuture<HeaderAndBody> login(Map<String, String> loginData);
+
+    /**
+     * Performs a logout of the current user.
+     *
+     * @return a future which completes with null once the user is logged out
+     */
+    public AuthenticationFuture<Void> logout();
+
+    /**
+     * Will try to log in a user using username and password before a
+     * deadline. Cancelling the returned future or the deadline aborts the
+     * login.
+     *
+     * @param username the users userName
+     * @param password the users Password
+     * @param deadline the deadline of the login
+     * @return a future of the server response, it fails with a
+     *         {@link Deadline.ExceededException} if the deadline expires
+     */
+    public AuthenticationFuture<HeaderAndBody> login(String username, String password, Deadline deadline);
+
+    /**
+     * Will try to log in a user using a map of login data before a
+     * deadline.
+     *
+     * @param loginData the login data, see {@link #login(Map, Callback) }
+     * @param deadline the deadline of the login
+     * @return a future of the server response, it fails with a
+     *         {@link Deadline.ExceededException} if the deadline expires
+     */
+    public AuthenticationFuture<HeaderAndBody> login(Map<String, String> loginData, Deadline deadline);
+
+    /**
+     * Performs a logout of the current user before a deadline.
+     *
+     * @param deadline the deadline of the logout
+     * @return a future which completes with null once the user is logged out
+     */
+    public AuthenticationFuture<Void> logout(Deadline deadline);
+
+    /**
+     * Will try to register a user before a deadline.
+     *
+     * @param userData a collection of data to be passed to the server.
+     * @param deadline the deadline of the enrollment
+     * @return a future of the server response
+     */
+    public AuthenticationFuture<HeaderAndBody> enroll(Map<String, String> userData, Deadline deadline);
+
+    /**
+     * Logs in on the calling thread and blocks until the server answered.
+     * It must not be called on the main thread.
+     *
+     * @param username the users userName
+     * @param password the users Password
+     * @return the server response
+     * @throws RuntimeException the error of the login, for instance an
+     *             {@link org.jboss.aerogear.android.pipe.http.HttpException}
+     */
+    public HeaderAndBody loginSync(String username, String password);
+
+    /**
+     * Logs out on the calling thread and blocks until it is done. It must not
+     * be called on the main thread.
+     *
+     * @throws RuntimeException the error of the logout
+     */
+    public void logoutSync();
+
+    /**
+     * Registers a user on the calling thread and blocks until the server
+     * answered. It must not be called on the main thread.
+     *
+     * @param userData a collection of data to be passed to the server.
+     * @return the server response
+     * @throws RuntimeException the error of the enrollment
+     */
+    public HeaderAndBody enrollSync(Map<String, String> userData);
+
     /**
      * @return true if the module has been logged in successfully
      */
@@ -0,0 +1,165 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Executors which deliver the results of authentication calls to their
+ * callbacks, see {@link AuthenticationConfiguration#callbackExecutor(Executor)
+ * }.
+ */
+public final class CallbackExecutors {
+
+    private static volatile BatchingLooperExecutor mainThread;
+
+    private CallbackExecutors() {
+    }
+
+    /**
+     * @return an executor which runs callbacks on the thread which finished
+     *         the call, this is the default
+     */
+    public static Executor direct() {
+        return DirectExecutor.INSTANCE;
+    }
+
+    /**
+     * @param looper the looper of the thread which runs the callbacks
+     * @return an executor which posts every callback on its own
+     */
+    public static Executor forLooper(Looper looper) {
+        final Handler handler = new Handler(looper);
+        return new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                handler.post(command);
+            }
+        };
+    }
+
+    /**
+     * @return the shared executor which runs callbacks on the main thread,
+     *         a burst of callbacks is delivered with a single message
+     */
+    public static BatchingLooperExecutor mainThread() {
+        BatchingLooperExecutor executor = mainThread;
+        if (executor == null) {
+            synchronized (CallbackExecutors.class) {
+                executor = mainThread;
+                if (executor == null) {
+                    executor = new BatchingLooperExecutor(Looper.getMainLooper());
+                    mainThread = executor;
+                }
+            }
+        }
+        return executor;
+    }
+
+    private enum DirectExecutor implements Executor {
+        INSTANCE;
+
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    }
+
+    /**
+     * Queues callbacks and posts one message to its looper per burst. The
+     * message runs the callbacks which were queued when it is handled,
+     * callbacks queued meanwhile are left to the next message so the looper
+     * is never held by a steady stream of callbacks.
+     */
+    public static final class BatchingLooperExecutor implements Executor {
+
+        private final Handler handler;
+        private final ConcurrentLinkedQueue<Runnable> queue = new ConcurrentLinkedQueue<Runnable>();
+        private final AtomicInteger queued = new AtomicInteger();
+        private final AtomicBoolean scheduled = new AtomicBoolean(false);
+        private final AtomicLong messages = new AtomicLong();
+        private final AtomicLong delivered = new AtomicLong();
+
+        private final Runnable drain = new Runnable() {
+            @Override
+            public void run() {
+                drain();
+            }
+        };
+
+        public BatchingLooperExecutor(Looper looper) {
+            this.handler = new Handler(looper);
+        }
+
+        @Override
+        public void execute(Runnable command) {
+            queue.offer(command);
+            queued.incrementAndGet();
+            schedule();
+        }
+
+        /**
+         * @return the number of messages posted to the looper
+         */
+        public long getMessagesPosted() {
+            return messages.get();
+        }
+
+        /**
+         * @return the number of callbacks which ran
+         */
+        public long getCallbacksDelivered() {
+            return delivered.get();
+        }
+
+        private void schedule() {
+            if (scheduled.compareAndSet(false, true)) {
+                messages.incrementAndGet();
+                handler.post(drain);
+            }
+        }
+
+        /**
+         * Runs the callbacks which are queued when it starts. If one of them
+         * throws the rest is delivered with the next message.
+         */
+        void drain() {
+            try {
+                // counted after the offer, every counted command is in the queue
+                for (int batch = queued.get(); batch > 0; batch--) {
+                    Runnable command = queue.poll();
+                    queued.decrementAndGet();
+                    delivered.incrementAndGet();
+                    command.run();
+                }
+            } finally {
+                scheduled.set(false);
+                if (!queue.isEmpty()) {
+                    schedule();
+                }
+            }
+        }
+    }
+
+}
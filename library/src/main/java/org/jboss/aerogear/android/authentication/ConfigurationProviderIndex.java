@@ -0,0 +1,58 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationConfiguration;
+import org.jboss.aerogear.android.authentication.basic.HttpBasicAuthenticationConfigurationProvider;
+import org.jboss.aerogear.android.authentication.digest.HttpDigestAuthenticationConfiguration;
+import org.jboss.aerogear.android.authentication.digest.HttpDigestAuthenticationConfigurationProvider;
+import org.jboss.aerogear.android.core.ConfigurationProvider;
+
+/**
+ * The configuration providers shipped with this library, keyed by their
+ * configuration class.
+ *
+ * A provider class is only loaded when its configuration is asked for, so
+ * an app which uses one scheme never loads the providers or modules of the
+ * others. Lookups compare classes, which keeps working when an app
+ * obfuscates class names, and create providers with plain constructor
+ * calls, without reflection. New providers of this library are added here,
+ * applications register theirs with
+ * {@link AuthenticationManager#registerConfigurationProvider(Class, ConfigurationProvider)
+ * }.
+ */
+final class ConfigurationProviderIndex {
+
+    private ConfigurationProviderIndex() {
+    }
+
+    /**
+     * @param configurationClass a configuration class
+     * @return a new provider of that configuration or null if this library
+     *         does not ship one
+     */
+    static ConfigurationProvider<?> newProvider(Class<?> configurationClass) {
+        if (configurationClass == HttpBasicAuthenticationConfiguration.class) {
+            return new HttpBasicAuthenticationConfigurationProvider();
+        }
+        if (configurationClass == HttpDigestAuthenticationConfiguration.class) {
+            return new HttpDigestAuthenticationConfigurationProvider();
+        }
+        return null;
+    }
+
+}
@@ -0,0 +1,225 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import java.io.IOException;
+import java.lang.ref.WeakReference;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.URI;
+import java.net.URL;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * An optional cookie handler for the process, which keeps the cookies of
+ * routed authentication modules in the {@link ModuleCookieStore} of each
+ * module.
+ * 
+ * HttpURLConnection attaches the cookies of the default cookie handler to
+ * every request, so modules attach the cookies of their store themselves
+ * only while no default handler is installed. An app with a default
+ * handler installs the router to send the cookies of a module store with
+ * the requests of the module and of its Pipes. Nothing installs it
+ * implicitly.
+ * 
+ * A request whose URL starts with the base URL of a routed module uses the
+ * store of that module, the longest base URL wins. Scheme, host and port
+ * are part of the base URL. Every other request goes to the cookie handler
+ * which was the default before the router was installed, and
+ * {@link #uninstall() } restores that handler.
+ * 
+ * The router is a CookieManager whose {@link #getCookieStore() } is the store
+ * of the previous default, code which casts the default handler to a
+ * CookieManager keeps working.
+ */
+public final class CookieRouter extends CookieManager {
+
+    private final CookieHandler fallback;
+
+    /**
+     * The routes from the longest to the shortest prefix.
+     */
+    private final List<Route> routes = new CopyOnWriteArrayList<Route>();
+
+    private CookieRouter(CookieHandler fallback) {
+        super(fallback instanceof CookieManager ? ((CookieManager) fallback).getCookieStore() : null,
+                CookiePolicy.ACCEPT_ORIGINAL_SERVER);
+        this.fallback = fallback;
+    }
+
+    /**
+     * Returns the default cookie handler if it is a router, otherwise
+     * installs a router in front of it.
+     * 
+     * @return the router of the process
+     */
+    public static synchronized CookieRouter install() {
+        CookieHandler current = CookieHandler.getDefault();
+        if (current instanceof CookieRouter) {
+            return (CookieRouter) current;
+        }
+        CookieRouter router = new CookieRouter(current);
+        CookieHandler.setDefault(router);
+        return router;
+    }
+
+    /**
+     * Makes the handler which was the default before {@link #install() } the
+     * default again. A handler which replaced the router in the meantime is
+     * left alone.
+     */
+    public static synchronized void uninstall() {
+        CookieHandler current = CookieHandler.getDefault();
+        if (current instanceof CookieRouter) {
+            CookieHandler.setDefault(((CookieRouter) current).fallback);
+        }
+    }
+
+    /**
+     * Sends the cookies of the requests of a module to its store.
+     * 
+     * @param module the module
+     */
+    public void route(AbstractAuthenticationModule module) {
+        route(module.getBaseURL(), module.getCookieStore());
+    }
+
+    /**
+     * Sends the cookies of every request below a base URL to a store. A
+     * store which was routed from the same base URL before is replaced. The
+     * route holds the store weakly, it ends with the module owning the
+     * store.
+     * 
+     * @param baseURL the base URL of a module
+     * @param store the store of the module
+     */
+    public synchronized void route(URL baseURL, ModuleCookieStore store) {
+        if (baseURL == null || store == null) {
+            throw new IllegalArgumentException("baseURL and store may not be null");
+        }
+        String prefix = keyOf(baseURL.getProtocol(), baseURL.getHost(), baseURL.getPort(), baseURL.getPath());
+        int index = 0;
+        for (Route route : routes) {
+            if (route.prefix.equals(prefix)) {
+                routes.remove(route);
+            }
+        }
+        for (Route route : routes) {
+            if (route.prefix.length() < prefix.length()) {
+                break;
+            }
+            index++;
+        }
+        routes.add(index, new Route(prefix, store));
+    }
+
+    /**
+     * Ends the route of a store, its requests go to the previous default
+     * handler again.
+     * 
+     * @param store the store of a module
+     */
+    public synchronized void unroute(ModuleCookieStore store) {
+        for (Route route : routes) {
+            if (route.store.get() == store) {
+                routes.remove(route);
+            }
+        }
+    }
+
+    /**
+     * @param uri a request URI
+     * @return the store of the module the request belongs to or null
+     */
+    public ModuleCookieStore storeFor(URI uri) {
+        if (uri.getHost() == null || uri.getScheme() == null) {
+            return null;
+        }
+        String key = keyOf(uri.getScheme(), uri.getHost(), uri.getPort(), uri.getPath());
+        for (Route route : routes) {
+            ModuleCookieStore store = route.store.get();
+            if (store == null) {
+                routes.remove(route);
+            } else if (route.matches(key)) {
+                return store;
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public Map<String, List<String>> get(URI uri, Map<String, List<String>> requestHeaders) throws IOException {
+        ModuleCookieStore store = storeFor(uri);
+        if (store != null) {
+            return store.getCookieManager().get(uri, requestHeaders);
+        }
+        if (fallback != null) {
+            return fallback.get(uri, requestHeaders);
+        }
+        return super.get(uri, requestHeaders);
+    }
+
+    @Override
+    public void put(URI uri, Map<String, List<String>> responseHeaders) throws IOException {
+        ModuleCookieStore store = storeFor(uri);
+        if (store != null) {
+            store.getCookieManager().put(uri, responseHeaders);
+        } else if (fallback != null) {
+            fallback.put(uri, responseHeaders);
+        } else {
+            super.put(uri, responseHeaders);
+        }
+    }
+
+    /**
+     * Builds scheme://host:port/path with the default port filled in and
+     * without a trailing slash, so "http://a/app/" and "http://a:80/app"
+     * route the same requests.
+     */
+    private static String keyOf(String scheme, String host, int port, String path) {
+        scheme = scheme.toLowerCase(Locale.US);
+        if (port == -1) {
+            port = "https".equals(scheme) ? 443 : 80;
+        }
+        if (path == null) {
+            path = "";
+        } else if (path.endsWith("/")) {
+            path = path.substring(0, path.length() - 1);
+        }
+        return scheme + "://" + host.toLowerCase(Locale.US) + ":" + port + path;
+    }
+
+    private static final class Route {
+
+        final String prefix;
+        final WeakReference<ModuleCookieStore> store;
+
+        Route(String prefix, ModuleCookieStore store) {
+            this.prefix = prefix;
+            this.store = new WeakReference<ModuleCookieStore>(store);
+        }
+
+        boolean matches(String key) {
+            return key.startsWith(prefix)
+                    && (key.length() == prefix.length() || key.charAt(prefix.length()) == '/');
+        }
+    }
+}
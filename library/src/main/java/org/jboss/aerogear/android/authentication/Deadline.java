@@ -0,0 +1,248 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import java.net.HttpURLConnection;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * An absolute deadline and a cancellation flag for one authentication call.
+ * The runners check it before every HTTP request and cap the connection
+ * timeout to the remaining time, so a call never outlives its deadline.
+ *
+ * Cancelling interrupts the thread which is running the call and disconnects
+ * the connection of its request in flight. Work which did not start yet is
+ * skipped.
+ */
+public final class Deadline {
+
+    /**
+     * Thrown when a call passes its deadline.
+     */
+    public static final class ExceededException extends RuntimeException {
+
+        private static final long serialVersionUID = 1L;
+
+        ExceededException() {
+            super("The deadline of the call expired");
+        }
+    }
+
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private final long expiresAt;
+    private volatile boolean cancelled = false;
+    private final Deadline parent;
+    private Thread worker;
+    private boolean interrupted = false;
+    private HttpURLConnection connection;
+    private Set<Deadline> children;
+
+    private Deadline(long expiresAt, Deadline parent) {
+        this.expiresAt = expiresAt;
+        this.parent = parent;
+    }
+
+    /**
+     * @return a deadline which only ends by cancellation
+     */
+    public static Deadline never() {
+        return new Deadline(NEVER, null);
+    }
+
+    /**
+     * @param timeout the time the call may take from now
+     * @param unit the unit of timeout
+     * @return a new deadline
+     */
+    public static Deadline after(long timeout, TimeUnit unit) {
+        return new Deadline(System.nanoTime() + unit.toNanos(timeout), null);
+    }
+
+    /**
+     * @return the remaining time in milliseconds, Long.MAX_VALUE if the
+     *         deadline never expires
+     */
+    public long remainingMillis() {
+        if (expiresAt == NEVER) {
+            return Long.MAX_VALUE;
+        }
+        return Math.max(0, TimeUnit.NANOSECONDS.toMillis(expiresAt - System.nanoTime()));
+    }
+
+    public boolean isExpired() {
+        return expiresAt != NEVER && expiresAt - System.nanoTime() <= 0;
+    }
+
+    public boolean isCancelled() {
+        return cancelled;
+    }
+
+    /**
+     * Cancels the call, interrupts the thread running it and disconnects its
+     * request in flight.
+     */
+    public void cancel() {
+        cancelled = true;
+        Set<Deadline> cancelledChildren;
+        HttpURLConnection inFlight;
+        synchronized (this) {
+            if (worker != null) {
+                worker.interrupt();
+                interrupted = true;
+            }
+            inFlight = connection;
+            connection = null;
+            cancelledChildren = children;
+            children = null;
+        }
+        if (inFlight != null) {
+            // a blocked connect or read fails with an IOException
+            inFlight.disconnect();
+        }
+        if (cancelledChildren != null) {
+            for (Deadline child : cancelledChildren) {
+                child.cancel();
+            }
+        }
+    }
+
+    /**
+     * A deadline runs a single call. Calls which run in parallel under one
+     * deadline each get a child, which expires with its parent and is
+     * cancelled with it. Cancelling a child leaves the parent alone.
+     *
+     * @return a new child of this deadline
+     */
+    Deadline child() {
+        Deadline child = new Deadline(expiresAt, this);
+        synchronized (this) {
+            if (!cancelled) {
+                if (children == null) {
+                    children = new HashSet<Deadline>();
+                }
+                children.add(child);
+                return child;
+            }
+        }
+        child.cancelled = true;
+        return child;
+    }
+
+    /**
+     * Unlinks a child whose call is over from its parent, so a long lived
+     * parent does not collect the children of every call made under it.
+     */
+    void release() {
+        if (parent != null) {
+            synchronized (parent) {
+                if (parent.children != null) {
+                    parent.children.remove(this);
+                }
+            }
+        }
+    }
+
+    /**
+     * @throws CancellationException if the call was cancelled
+     * @throws ExceededException if the deadline expired
+     */
+    public void check() {
+        if (cancelled) {
+            throw new CancellationException("The call was cancelled");
+        }
+        if (isExpired()) {
+            throw new ExceededException();
+        }
+    }
+
+    /**
+     * Registers the connection of the request in flight, cancel() disconnects
+     * it.
+     *
+     * @param connection a connection which is not connected yet
+     *
+     * @throws CancellationException if the call was cancelled before, the
+     *             connection is disconnected then
+     */
+    void register(HttpURLConnection connection) {
+        synchronized (this) {
+            if (!cancelled) {
+                this.connection = connection;
+                return;
+            }
+        }
+        connection.disconnect();
+        throw new CancellationException("The call was cancelled");
+    }
+
+    /**
+     * Unregisters the connection of a request which is over.
+     */
+    synchronized void unregister(HttpURLConnection connection) {
+        if (this.connection == connection) {
+            this.connection = null;
+        }
+    }
+
+    /**
+     * Caps a connection timeout to the remaining time.
+     *
+     * @param timeout the configured timeout in milliseconds
+     * @return the timeout for the next request, at least 1
+     *
+     * @throws CancellationException if the call was cancelled
+     * @throws ExceededException if the deadline expired
+     */
+    public Integer timeout(Integer timeout) {
+        check();
+        long limit = timeout == null || timeout <= 0 ? Long.MAX_VALUE : timeout;
+        long capped = Math.min(limit, remainingMillis());
+        if (capped == Long.MAX_VALUE) {
+            return timeout;
+        }
+        return (int) Math.max(1, Math.min(Integer.MAX_VALUE, capped));
+    }
+
+    /**
+     * Registers the calling thread as the one running the call.
+     *
+     * @throws CancellationException if the call was cancelled before
+     */
+    synchronized void attach() {
+        if (cancelled) {
+            throw new CancellationException("The call was cancelled");
+        }
+        worker = Thread.currentThread();
+    }
+
+    /**
+     * Unregisters the calling thread and clears the interrupt of cancel(), so
+     * a pooled thread can be reused. An interrupt from anywhere else is kept.
+     */
+    synchronized void detach() {
+        worker = null;
+        if (interrupted) {
+            interrupted = false;
+            Thread.interrupted();
+        }
+    }
+
+}
@@ -0,0 +1,207 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UnsupportedEncodingException;
+import java.net.HttpURLConnection;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import org.jboss.aerogear.android.core.Provider;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+import org.jboss.aerogear.android.pipe.http.HttpProvider;
+import org.jboss.aerogear.android.pipe.util.UrlUtils;
+
+/**
+ * An HttpProvider whose requests belong to a {@link Deadline}. Every request
+ * registers its connection with the deadline, so cancelling the call
+ * disconnects it, and takes its connect and read timeouts from the time
+ * which remains when the request starts.
+ *
+ * Responses are read like the HttpProvider of aerogear-android-pipe: the
+ * values of a repeated header are joined with a comma and a status outside
+ * of 2xx throws an {@link HttpException}.
+ */
+final class DeadlineHttpProvider implements HttpProvider {
+
+    /**
+     * Creates providers from a URL, a timeout and an optional deadline.
+     */
+    static final class Factory implements Provider<HttpProvider> {
+
+        @Override
+        public HttpProvider get(Object... in) {
+            Deadline deadline = in.length > 2 && in[2] != null ? (Deadline) in[2] : Deadline.never();
+            return new DeadlineHttpProvider((URL) in[0], (Integer) in[1], deadline);
+        }
+    }
+
+    private static final String UTF_8 = "UTF-8";
+
+    private final URL url;
+    private final Integer timeout;
+    private final Deadline deadline;
+    private final Map<String, String> defaultHeaders = new LinkedHashMap<String, String>();
+
+    DeadlineHttpProvider(URL url, Integer timeout, Deadline deadline) {
+        this.url = url;
+        this.timeout = timeout;
+        this.deadline = deadline;
+    }
+
+    @Override
+    public URL getUrl() {
+        return url;
+    }
+
+    @Override
+    public HeaderAndBody get() throws HttpException {
+        return execute(url, "GET", null);
+    }
+
+    @Override
+    public HeaderAndBody post(String data) throws HttpException {
+        return post(bytes(data));
+    }
+
+    @Override
+    public HeaderAndBody post(byte[] data) throws HttpException {
+        return execute(url, "POST", data);
+    }
+
+    @Override
+    public HeaderAndBody put(String id, String data) throws HttpException {
+        return put(id, bytes(data));
+    }
+
+    @Override
+    public HeaderAndBody put(String id, byte[] data) throws HttpException {
+        return execute(UrlUtils.appendToBaseURL(url, id), "PUT", data);
+    }
+
+    @Override
+    public HeaderAndBody delete(String id) throws HttpException {
+        return execute(UrlUtils.appendToBaseURL(url, id), "DELETE", null);
+    }
+
+    @Override
+    public void setDefaultHeader(String headerName, String headerValue) {
+        defaultHeaders.put(headerName, headerValue);
+    }
+
+    private HeaderAndBody execute(URL target, String method, byte[] data) {
+        HttpURLConnection connection = null;
+        try {
+            connection = open(target);
+            connection.setRequestMethod(method);
+            if (data != null) {
+                connection.setDoOutput(true);
+                connection.setFixedLengthStreamingMode(data.length);
+                OutputStream out = connection.getOutputStream();
+                try {
+                    out.write(data);
+                } finally {
+                    out.close();
+                }
+            }
+            return read(connection);
+        } catch (IOException e) {
+            // a connection disconnected by cancel() fails with an IOException
+            deadline.check();
+            throw new RuntimeException(e);
+        } finally {
+            if (connection != null) {
+                deadline.unregister(connection);
+                connection.disconnect();
+            }
+        }
+    }
+
+    private HttpURLConnection open(URL target) throws IOException {
+        Integer remaining = deadline.timeout(timeout);
+        HttpURLConnection connection = (HttpURLConnection) target.openConnection();
+        if (remaining != null) {
+            connection.setConnectTimeout(remaining);
+            connection.setReadTimeout(remaining);
+        }
+        for (Map.Entry<String, String> header : defaultHeaders.entrySet()) {
+            connection.setRequestProperty(header.getKey(), header.getValue());
+        }
+        deadline.register(connection);
+        return connection;
+    }
+
+    private static HeaderAndBody read(HttpURLConnection connection) throws IOException {
+        int statusCode = connection.getResponseCode();
+        Map<String, String> headers = headers(connection);
+        if (statusCode < 200 || statusCode >= 300) {
+            throw new HttpException(readFully(connection.getErrorStream()), statusCode, headers);
+        }
+        return new HeaderAndBody(readFully(connection.getInputStream()), new HashMap<String, Object>(headers));
+    }
+
+    private static Map<String, String> headers(HttpURLConnection connection) {
+        Map<String, String> headers = new HashMap<String, String>();
+        for (Map.Entry<String, List<String>> field : connection.getHeaderFields().entrySet()) {
+            if (field.getKey() == null) {
+                // the status line
+                continue;
+            }
+            StringBuilder value = new StringBuilder();
+            for (String item : field.getValue()) {
+                if (value.length() > 0) {
+                    value.append(',');
+                }
+                value.append(item);
+            }
+            headers.put(field.getKey(), value.toString());
+        }
+        return headers;
+    }
+
+    private static byte[] readFully(InputStream in) throws IOException {
+        if (in == null) {
+            return new byte[0];
+        }
+        try {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            for (int read = in.read(buffer); read != -1; read = in.read(buffer)) {
+                out.write(buffer, 0, read);
+            }
+            return out.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static byte[] bytes(String data) {
+        try {
+            return data.getBytes(UTF_8);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+}
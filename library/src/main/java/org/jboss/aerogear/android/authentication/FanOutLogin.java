@@ -0,0 +1,179 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import org.jboss.aerogear.android.core.Callback;
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+
+/**
+ * Logins into several named modules which run in parallel, see
+ * {@link AuthenticationManager#loginAll(Map, int, Deadline) }.
+ *
+ * At most a fixed number of logins run at the same time. A login starts when
+ * an earlier one finishes, no thread waits for a free slot. Every login
+ * runs under a child of one deadline, logins which start after it expired
+ * fail at once. Cancelling the deadline or the completion cancels all
+ * logins, a failed login does not affect the others.
+ */
+public final class FanOutLogin {
+
+    private final Map<String, Map<String, String>> loginData;
+    private final Map<String, AuthenticationFuture<HeaderAndBody>> results;
+    private final AuthenticationFuture<Map<String, HeaderAndBody>> completion;
+    private final Queue<String> waiting;
+    private final Deadline deadline;
+    private final AtomicInteger remaining;
+    private final AtomicInteger starts = new AtomicInteger();
+    private final AtomicReference<Exception> firstFailure = new AtomicReference<Exception>();
+
+    FanOutLogin(Map<String, Map<String, String>> loginData, Deadline deadline) {
+        this.loginData = loginData;
+        this.deadline = deadline;
+        this.completion = new AuthenticationFuture<Map<String, HeaderAndBody>>(deadline);
+        this.waiting = new ConcurrentLinkedQueue<String>(loginData.keySet());
+        this.remaining = new AtomicInteger(loginData.size());
+
+        Map<String, AuthenticationFuture<HeaderAndBody>> futures = new LinkedHashMap<String, AuthenticationFuture<HeaderAndBody>>();
+        for (String name : loginData.keySet()) {
+            futures.put(name, new AuthenticationFuture<HeaderAndBody>(completion.getDeadline()));
+        }
+        this.results = Collections.unmodifiableMap(futures);
+    }
+
+    /**
+     * @return the result of every login keyed by module name, in the order
+     *         the logins were given
+     */
+    public Map<String, AuthenticationFuture<HeaderAndBody>> getResults() {
+        return results;
+    }
+
+    /**
+     * @param name the name of a module
+     * @return the result of the login into that module or null if it was
+     *         not part of this fan-out
+     */
+    public AuthenticationFuture<HeaderAndBody> getResult(String name) {
+        return results.get(name);
+    }
+
+    /**
+     * The completion waits for every login. It completes with the responses
+     * keyed by module name if all of them succeeded, otherwise it fails with
+     * the first failure.
+     *
+     * @return a future of all logins
+     */
+    public AuthenticationFuture<Map<String, HeaderAndBody>> getCompletion() {
+        return completion;
+    }
+
+    /**
+     * @return the deadline given to the fan-out, cancelling it cancels every
+     *         login. A failed fan-out does not cancel it.
+     */
+    public Deadline getDeadline() {
+        return deadline;
+    }
+
+    void start(int maxConcurrency) {
+        if (results.isEmpty()) {
+            completion.complete(Collections.<String, HeaderAndBody>emptyMap());
+            return;
+        }
+        startLogins(Math.min(maxConcurrency, results.size()));
+    }
+
+    /**
+     * Starts count logins. Logins which complete on the starting thread ask
+     * for the next one while the loop below is still running, their starts
+     * are counted and picked up by that loop instead of recursing, so the
+     * stack does not grow with the number of modules.
+     */
+    private void startLogins(int count) {
+        if (starts.getAndAdd(count) != 0) {
+            return;
+        }
+        do {
+            startNext();
+        } while (starts.decrementAndGet() > 0);
+    }
+
+    private void startNext() {
+        final String name = waiting.poll();
+        if (name == null) {
+            return;
+        }
+
+        AuthenticationFuture<HeaderAndBody> login;
+        try {
+            AuthenticationModule module = AuthenticationManager.getModule(name);
+            if (module == null) {
+                throw new IllegalArgumentException("No module named " + name);
+            }
+            login = module.login(loginData.get(name), results.get(name).getDeadline());
+        } catch (RuntimeException e) {
+            login = AuthenticationFuture.failed(e);
+        }
+
+        login.addCallback(new Callback<HeaderAndBody>() {
+            @Override
+            public void onSuccess(HeaderAndBody data) {
+                results.get(name).complete(data);
+                finished();
+            }
+
+            @Override
+            public void onFailure(Exception e) {
+                results.get(name).completeExceptionally(e);
+                firstFailure.compareAndSet(null, e);
+                finished();
+            }
+        });
+    }
+
+    private void finished() {
+        startLogins(1);
+        if (remaining.decrementAndGet() > 0) {
+            return;
+        }
+        Exception failure = firstFailure.get();
+        if (failure != null) {
+            completion.completeExceptionally(failure);
+            return;
+        }
+        Map<String, HeaderAndBody> responses = new LinkedHashMap<String, HeaderAndBody>();
+        for (Map.Entry<String, AuthenticationFuture<HeaderAndBody>> result : results.entrySet()) {
+            try {
+                responses.put(result.getKey(), result.getValue().get());
+            } catch (Exception e) {
+                completion.completeExceptionally(e);
+                return;
+            }
+        }
+        completion.complete(Collections.unmodifiableMap(responses));
+    }
+
+}
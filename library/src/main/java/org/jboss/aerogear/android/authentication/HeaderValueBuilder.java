@@ -0,0 +1,228 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import java.util.Arrays;
+
+/**
+ * Builds header values in a buffer which is reused by every request of a
+ * thread. The final value is copied once into the String handed to
+ * {@link org.jboss.aerogear.android.pipe.module.ModuleFields}, no
+ * intermediate Strings or byte arrays are created.
+ *
+ * Text is encoded explicitly, credentials for Basic authentication as UTF-8
+ * like <a href="https://tools.ietf.org/html/rfc7617#section-2.1">RFC 7617</a>
+ * recommends, instead of with the platform default charset.
+ *
+ * The builder returned by {@link #get() } belongs to the calling thread and
+ * must not be used across nested header builds.
+ */
+public final class HeaderValueBuilder {
+
+    private static final char[] BASE64 = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/"
+            .toCharArray();
+
+    private static final ThreadLocal<HeaderValueBuilder> BUILDERS = new ThreadLocal<HeaderValueBuilder>() {
+        @Override
+        protected HeaderValueBuilder initialValue() {
+            return new HeaderValueBuilder();
+        }
+    };
+
+    private char[] chars = new char[256];
+    private byte[] bytes = new byte[64];
+    private int length = 0;
+
+    private HeaderValueBuilder() {
+    }
+
+    /**
+     * @return the empty builder of the calling thread
+     */
+    public static HeaderValueBuilder get() {
+        HeaderValueBuilder builder = BUILDERS.get();
+        builder.length = 0;
+        return builder;
+    }
+
+    public HeaderValueBuilder append(char c) {
+        ensureCapacity(1);
+        chars[length++] = c;
+        return this;
+    }
+
+    public HeaderValueBuilder append(String value) {
+        int valueLength = value.length();
+        ensureCapacity(valueLength);
+        value.getChars(0, valueLength, chars, length);
+        length += valueLength;
+        return this;
+    }
+
+    public HeaderValueBuilder append(char[] value, int offset, int count) {
+        ensureCapacity(count);
+        System.arraycopy(value, offset, chars, length, count);
+        length += count;
+        return this;
+    }
+
+    /**
+     * Appends name="value" as a quoted-string, a quote or backslash in value
+     * is escaped with a backslash.
+     */
+    public HeaderValueBuilder appendQuoted(String name, String value) {
+        append(name).append('=').append('"');
+        int valueLength = value.length();
+        ensureCapacity(valueLength);
+        for (int i = 0; i < valueLength; i++) {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\') {
+                ensureCapacity(valueLength - i + 1);
+                chars[length++] = '\\';
+            }
+            chars[length++] = c;
+        }
+        return append('"');
+    }
+
+    /**
+     * Appends the Base64 encoding of the UTF-8 bytes of user:password. The
+     * encoded bytes are wiped before this method returns.
+     *
+     * @param user the user id
+     * @param password the password
+     * @return this builder
+     */
+    public HeaderValueBuilder appendBasicCredentials(String user, char[] password) {
+        int byteLength = 0;
+        try {
+            byteLength = encodeUtf8(user, 0, user.length(), 0);
+            byteLength = encodeUtf8(':', byteLength);
+            byteLength = encodeUtf8(password, byteLength);
+            appendBase64(bytes, 0, byteLength);
+        } finally {
+            Arrays.fill(bytes, 0, byteLength, (byte) 0);
+        }
+        return this;
+    }
+
+    /**
+     * Appends the padded Base64 encoding of a slice of bytes.
+     */
+    public HeaderValueBuilder appendBase64(byte[] input, int offset, int count) {
+        ensureCapacity((count + 2) / 3 * 4);
+        int end = offset + count;
+        int i = offset;
+        for (; i + 2 < end; i += 3) {
+            int block = (input[i] & 0xFF) << 16 | (input[i + 1] & 0xFF) << 8 | (input[i + 2] & 0xFF);
+            chars[length++] = BASE64[block >>> 18];
+            chars[length++] = BASE64[(block >>> 12) & 0x3F];
+            chars[length++] = BASE64[(block >>> 6) & 0x3F];
+            chars[length++] = BASE64[block & 0x3F];
+        }
+        if (i < end) {
+            int block = (input[i] & 0xFF) << 16 | (i + 1 < end ? (input[i + 1] & 0xFF) << 8 : 0);
+            chars[length++] = BASE64[block >>> 18];
+            chars[length++] = BASE64[(block >>> 12) & 0x3F];
+            chars[length++] = i + 1 < end ? BASE64[(block >>> 6) & 0x3F] : '=';
+            chars[length++] = '=';
+        }
+        return this;
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * Overwrites the buffer, call it after building a header which contains
+     * credentials.
+     */
+    public void wipe() {
+        Arrays.fill(chars, 0, length, '0');
+        length = 0;
+    }
+
+    /**
+     * @return the header value, the only copy this builder makes
+     */
+    @Override
+    public String toString() {
+        return new String(chars, 0, length);
+    }
+
+    private void ensureCapacity(int additional) {
+        if (length + additional > chars.length) {
+            char[] grown = Arrays.copyOf(chars, Math.max(chars.length * 2, length + additional));
+            Arrays.fill(chars, '0');
+            chars = grown;
+        }
+    }
+
+    private int encodeUtf8(String value, int start, int end, int byteOffset) {
+        for (int i = start; i < end; i++) {
+            char c = value.charAt(i);
+            if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(value.charAt(i + 1))) {
+                byteOffset = encodeUtf8(Character.toCodePoint(c, value.charAt(++i)), byteOffset);
+            } else {
+                byteOffset = encodeUtf8(c, byteOffset);
+            }
+        }
+        return byteOffset;
+    }
+
+    private int encodeUtf8(char[] value, int byteOffset) {
+        for (int i = 0; i < value.length; i++) {
+            char c = value[i];
+            if (Character.isHighSurrogate(c) && i + 1 < value.length && Character.isLowSurrogate(value[i + 1])) {
+                byteOffset = encodeUtf8(Character.toCodePoint(c, value[++i]), byteOffset);
+            } else {
+                byteOffset = encodeUtf8(c, byteOffset);
+            }
+        }
+        return byteOffset;
+    }
+
+    private int encodeUtf8(int codePoint, int byteOffset) {
+        if (byteOffset + 4 > bytes.length) {
+            byte[] grown = Arrays.copyOf(bytes, bytes.length * 2);
+            Arrays.fill(bytes, (byte) 0);
+            bytes = grown;
+        }
+        if (codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE) {
+            // an unpaired surrogate can not be encoded
+            codePoint = '?';
+        }
+        if (codePoint < 0x80) {
+            bytes[byteOffset++] = (byte) codePoint;
+        } else if (codePoint < 0x800) {
+            bytes[byteOffset++] = (byte) (0xC0 | (codePoint >> 6));
+            bytes[byteOffset++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else if (codePoint < 0x10000) {
+            bytes[byteOffset++] = (byte) (0xE0 | (codePoint >> 12));
+            bytes[byteOffset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[byteOffset++] = (byte) (0x80 | (codePoint & 0x3F));
+        } else {
+            bytes[byteOffset++] = (byte) (0xF0 | (codePoint >> 18));
+            bytes[byteOffset++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+            bytes[byteOffset++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+            bytes[byteOffset++] = (byte) (0x80 | (codePoint & 0x3F));
+        }
+        return byteOffset;
+    }
+
+}
@@ -0,0 +1,93 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of the module registry of {@link AuthenticationManager}.
+ */
+public final class ModuleCacheStatistics {
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong sizeEvictions = new AtomicLong();
+    private final AtomicLong idleEvictions = new AtomicLong();
+
+    ModuleCacheStatistics() {
+    }
+
+    /**
+     * @return the number of lookups which found a module
+     */
+    public long getHits() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups which found no module, including the
+     *         ones whose module had been idle for too long
+     */
+    public long getMisses() {
+        return misses.get();
+    }
+
+    /**
+     * @return the number of modules evicted for any reason
+     */
+    public long getEvictions() {
+        return sizeEvictions.get() + idleEvictions.get();
+    }
+
+    /**
+     * @return the number of least recently used modules evicted because
+     *         the registry was full
+     */
+    public long getSizeEvictions() {
+        return sizeEvictions.get();
+    }
+
+    /**
+     * @return the number of modules evicted because they were idle
+     */
+    public long getIdleEvictions() {
+        return idleEvictions.get();
+    }
+
+    void hit() {
+        hits.incrementAndGet();
+    }
+
+    void miss() {
+        misses.incrementAndGet();
+    }
+
+    void evicted(OnModuleEvictedListener.Cause cause) {
+        if (cause == OnModuleEvictedListener.Cause.SIZE) {
+            sizeEvictions.incrementAndGet();
+        } else {
+            idleEvictions.incrementAndGet();
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "ModuleCacheStatistics{" + "hits=" + getHits() + ", misses=" + getMisses()
+                + ", sizeEvictions=" + getSizeEvictions() + ", idleEvictions=" + getIdleEvictions() + '}';
+    }
+
+}
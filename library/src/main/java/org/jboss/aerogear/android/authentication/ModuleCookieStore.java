@@ -0,0 +1,1074 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+import android.util.Log;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UnsupportedEncodingException;
+import java.lang.ref.WeakReference;
+import java.net.CookieHandler;
+import java.net.CookieManager;
+import java.net.CookiePolicy;
+import java.net.CookieStore;
+import java.net.HttpCookie;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
+import org.jboss.aerogear.android.pipe.http.HttpException;
+
+/**
+ * The cookies of one authentication module.
+ * 
+ * Cookies are indexed by their domain and then by their path. A lookup
+ * walks the host of the request and its parent domains, so it touches only
+ * the cookies which may match instead of every cookie in the store.
+ * {@link #removeAll() } drops the whole index at once, logging out costs the
+ * same whether the module holds one cookie or ten thousand.
+ * 
+ * A module adds the cookies of the responses it sees, see
+ * {@link #storeCookies(URI, HeaderAndBody) }. HttpURLConnection attaches the
+ * cookies of the default cookie handler of the process to every request,
+ * so a module attaches the cookies of its store itself only if no default
+ * handler is installed, see {@link #getRequestCookieHeader(URI) }. A
+ * request never carries cookies from both. An app with a default handler
+ * routes a module with {@link CookieRouter} to send the cookies of its
+ * store. A logout removes the cookies of the module from its store and
+ * from the default cookie manager, see {@link #removeSession(URI) }.
+ * 
+ * A store may be persisted with {@link #persistTo(File, SecretKey) }, so the
+ * session cookies of a login survive the process and a module resumes its
+ * server session without a request. Every change appends one record to a
+ * journal file, the file is opened for the append only. The journal is
+ * replayed when the store is first used, not when it is opened, and it is
+ * compacted in the background once most of its records are outdated. A
+ * background sweep drops expired cookies of persisted stores. Cookies
+ * without an expiry are persisted as well, they usually carry the session
+ * of the module, so every record is encrypted with AES/CBC and
+ * authenticated with an HMAC-SHA256. A record which fails the check ends
+ * the replay like a partial record.
+ */
+public final class ModuleCookieStore implements CookieStore {
+
+    private static final String TAG = ModuleCookieStore.class.getSimpleName();
+    private static final int MAGIC = 0x41474353;
+    private static final byte VERSION = 1;
+    private static final byte PUT = 1;
+    private static final byte REMOVE = 2;
+    private static final long SESSION = Long.MAX_VALUE;
+    private static final String COOKIE = "Cookie";
+    private static final String SET_COOKIE = "Set-Cookie";
+    private static final String SET_COOKIE2 = "Set-Cookie2";
+    private static final String MAC = "HmacSHA256";
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int MAX_RECORD_LENGTH = 64 * 1024;
+
+    /**
+     * Journals with fewer records are never compacted.
+     */
+    private static final int MIN_COMPACTION_RECORDS = 64;
+    private static final long SWEEP_INTERVAL_SECONDS = 60;
+
+    private volatile ConcurrentMap<String, DomainCookies> domains = new ConcurrentHashMap<String, DomainCookies>();
+    private final Object fileLock = new Object();
+    private volatile File file;
+    private volatile boolean loaded = true;
+    private volatile CookieManager manager;
+    private final AtomicInteger size = new AtomicInteger();
+
+    /** The key which encrypts the journal, guarded by fileLock. */
+    private SecretKey encryptionKey;
+    /** The key which authenticates the journal, guarded by fileLock. */
+    private SecretKey macKey;
+    private final SecureRandom random = new SecureRandom();
+    /** The records in the journal, guarded by fileLock. */
+    private int journalRecords;
+    /** Set while a compaction is queued, guarded by fileLock. */
+    private boolean compactionQueued;
+    /** Set if cookies were added before the journal was opened, guarded by fileLock. */
+    private boolean unjournaled;
+    private Sweep sweep;
+
+    public ModuleCookieStore() {
+    }
+
+    /**
+     * Persists this store to a file. The file is read when the store is
+     * first used, cookies in it which have not expired are added to the
+     * store. Afterwards every change is appended to the file.
+     * 
+     * The records are encrypted and authenticated with keys derived from
+     * key, which may be the key of the digest session store of the module.
+     * A file written with another key is discarded.
+     * 
+     * @param file the file of the store, null to stop persisting
+     * @param key an AES key whose encoding is available, ignored if file is
+     *            null
+     * 
+     * @throws IllegalArgumentException if file is set and key is null or the
+     *             keys can not be derived from key
+     */
+    public void persistTo(File file, SecretKey key) {
+        SecretKey[] keys = file == null ? new SecretKey[2] : deriveKeys(key);
+        synchronized (fileLock) {
+            if (sweep != null) {
+                sweep.cancel();
+                sweep = null;
+            }
+            this.file = file;
+            encryptionKey = keys[0];
+            macKey = keys[1];
+            loaded = file == null;
+            unjournaled = size.get() > 0;
+            if (file != null) {
+                sweep = Sweep.schedule(this);
+            }
+        }
+    }
+
+    /**
+     * @return the file this store is persisted to or null
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void add(URI uri, HttpCookie cookie) {
+        if (cookie == null) {
+            throw new NullPointerException("cookie is null");
+        }
+        String domain = domainOf(uri, cookie);
+        if (domain == null) {
+            return;
+        }
+        String path = pathOf(uri, cookie);
+        synchronized (fileLock) {
+            ensureLoaded();
+            Entry entry = put(domain, path, cookie);
+            if (file == null) {
+                return;
+            }
+            if (entry == null) {
+                append(REMOVE, domain, path, cookie.getName(), null);
+            } else {
+                append(PUT, domain, path, null, entry);
+            }
+        }
+    }
+
+    /**
+     * @return the new entry, or null if the cookie deleted an entry
+     */
+    private Entry put(String domain, String path, HttpCookie cookie) {
+        DomainCookies cookies = domainCookies(domain);
+        if (cookie.getMaxAge() == 0) {
+            if (cookies.remove(path, cookie.getName())) {
+                size.decrementAndGet();
+            }
+            return null;
+        }
+        Entry entry = new Entry(cookie, expiresAt(cookie.getMaxAge()));
+        if (cookies.put(path, entry)) {
+            size.incrementAndGet();
+        }
+        return entry;
+    }
+
+    /**
+     * Returns the cookies which match the host, path and scheme of a
+     * request. Expired cookies are dropped on the way.
+     */
+    @Override
+    public List<HttpCookie> get(URI uri) {
+        if (uri == null) {
+            throw new NullPointerException("uri is null");
+        }
+        List<HttpCookie> result = new ArrayList<HttpCookie>();
+        String host = uri.getHost();
+        if (host == null) {
+            return result;
+        }
+        host = host.toLowerCase(Locale.US);
+        String path = uri.getPath() == null || uri.getPath().length() == 0 ? "/" : uri.getPath();
+        boolean secure = "https".equalsIgnoreCase(uri.getScheme());
+        long now = System.currentTimeMillis();
+
+        ensureLoaded();
+        Map<String, DomainCookies> current = domains;
+        String domain = host;
+        while (true) {
+            DomainCookies cookies = current.get(domain);
+            if (cookies != null) {
+                int expired = cookies.collect(path, secure, domain.equals(host), now, result);
+                if (expired > 0) {
+                    size.addAndGet(-expired);
+                }
+            }
+            int dot = domain.indexOf('.');
+            if (dot < 0) {
+                break;
+            }
+            domain = domain.substring(dot + 1);
+        }
+        return result;
+    }
+
+    @Override
+    public List<HttpCookie> getCookies() {
+        List<HttpCookie> result = new ArrayList<HttpCookie>();
+        long now = System.currentTimeMillis();
+        ensureLoaded();
+        for (DomainCookies cookies : domains.values()) {
+            cookies.collectAll(now, result);
+        }
+        return result;
+    }
+
+    @Override
+    public List<URI> getURIs() {
+        List<URI> result = new ArrayList<URI>();
+        ensureLoaded();
+        for (String domain : domains.keySet()) {
+            try {
+                result.add(new URI("http", domain, "/", null));
+            } catch (URISyntaxException ignore) {
+                // Cookie domains are host names
+            }
+        }
+        return result;
+    }
+
+    @Override
+    public boolean remove(URI uri, HttpCookie cookie) {
+        if (cookie == null) {
+            throw new NullPointerException("cookie is null");
+        }
+        String domain = domainOf(uri, cookie);
+        if (domain == null) {
+            return false;
+        }
+        String path = pathOf(uri, cookie);
+        synchronized (fileLock) {
+            ensureLoaded();
+            if (!remove(domain, path, cookie.getName())) {
+                return false;
+            }
+            append(REMOVE, domain, path, cookie.getName(), null);
+            return true;
+        }
+    }
+
+    private boolean remove(String domain, String path, String name) {
+        DomainCookies cookies = domains.get(domain);
+        if (cookies == null || !cookies.remove(path, name)) {
+            return false;
+        }
+        size.decrementAndGet();
+        return true;
+    }
+
+    /**
+     * Drops every cookie of this module by replacing the index, the cost
+     * does not depend on the number of cookies. A persisted store deletes
+     * its journal without reading it. Changes take the same lock, so a
+     * cookie added concurrently is either dropped as well or added to the
+     * new index and the new journal.
+     */
+    @Override
+    public boolean removeAll() {
+        synchronized (fileLock) {
+            Map<String, DomainCookies> previous = domains;
+            domains = new ConcurrentHashMap<String, DomainCookies>();
+            size.set(0);
+            boolean removed = !previous.isEmpty();
+            File current = file;
+            if (current != null) {
+                removed |= current.length() > 0;
+                if (current.exists() && !current.delete()) {
+                    Log.w(TAG, "Could not delete " + current);
+                }
+                journalRecords = 0;
+                loaded = true;
+            }
+            return removed;
+        }
+    }
+
+    /**
+     * Drops expired cookies. The background sweep calls it for persisted
+     * stores, the journal is compacted if most of it is outdated afterwards.
+     */
+    void expire() {
+        if (!loaded) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        int expired = 0;
+        for (DomainCookies cookies : domains.values()) {
+            expired += cookies.expire(now);
+        }
+        size.addAndGet(-expired);
+        if (expired > 0 && file != null) {
+            synchronized (fileLock) {
+                if (needsCompaction()) {
+                    compact();
+                }
+            }
+        }
+    }
+
+    /**
+     * @return true once the journal of a persisted store was read
+     */
+    boolean isLoaded() {
+        return loaded;
+    }
+
+    /**
+     * @return true if the store holds no cookie, a persisted store whose
+     *         journal was not read yet is not empty
+     */
+    boolean isEmpty() {
+        return loaded && size.get() == 0;
+    }
+
+    /**
+     * Drops the cookies of a module at logout: every cookie of this store
+     * and every cookie of the default cookie manager of the process which
+     * is sent to baseURI or to a path below it. Pipes receive their cookies through the default manager, not
+     * through this store, clearing this store alone would leave the server
+     * session alive.
+     *
+     * @param baseURI the base URI of the module
+     * @return true if a cookie was removed
+     */
+    public boolean removeSession(URI baseURI) {
+        boolean removed = removeAll();
+        CookieHandler handler = CookieHandler.getDefault();
+        if (handler instanceof CookieManager) {
+            CookieStore global = ((CookieManager) handler).getCookieStore();
+            if (global != null && global != this) {
+                String basePath = baseURI.getPath() == null || baseURI.getPath().length() == 0 ? "/" : baseURI.getPath();
+                // the store matches the domain only, paths are checked here
+                for (HttpCookie cookie : global.get(baseURI)) {
+                    String path = cookie.getPath() == null ? "/" : cookie.getPath();
+                    if (pathMatches(basePath, path) || pathMatches(path, basePath)) {
+                        removed |= global.remove(baseURI, cookie);
+                    }
+                }
+            }
+        }
+        return removed;
+    }
+
+    /**
+     * The Cookie header a module adds to a request itself. It is null while
+     * a default cookie handler is installed, HttpURLConnection attaches the
+     * cookies of that handler and the request would carry two Cookie
+     * headers otherwise.
+     *
+     * @param uri the absolute URI of the request
+     * @return the value of the Cookie header or null
+     */
+    public String getRequestCookieHeader(URI uri) {
+        if (CookieHandler.getDefault() != null || isEmpty()) {
+            return null;
+        }
+        return getCookieHeader(uri);
+    }
+
+    /**
+     * Builds the Cookie header of a request from the cookies of this store
+     * which match it.
+     *
+     * @param uri the absolute URI of the request
+     * @return the value of the Cookie header or null if no cookie matches
+     */
+    public String getCookieHeader(URI uri) {
+        List<String> cookies;
+        try {
+            cookies = getCookieManager().get(uri, Collections.<String, List<String>>emptyMap()).get(COOKIE);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the cookies of " + uri, e);
+            return null;
+        }
+        if (cookies == null || cookies.isEmpty()) {
+            return null;
+        }
+        StringBuilder header = new StringBuilder();
+        for (String cookie : cookies) {
+            if (header.length() > 0) {
+                header.append("; ");
+            }
+            header.append(cookie);
+        }
+        return header.toString();
+    }
+
+    /**
+     * Adds the cookies a response sets. Modules call it for the responses
+     * of their own requests, apps may call it for the responses of Pipe
+     * requests.
+     *
+     * @param uri the absolute URI of the request
+     * @param response the response
+     */
+    public void storeCookies(URI uri, HeaderAndBody response) {
+        Map<String, List<String>> headers = new HashMap<String, List<String>>(2);
+        for (String name : response.keySet()) {
+            if (isSetCookie(name)) {
+                Object value = response.getHeader(name);
+                List<String> values = new ArrayList<String>();
+                if (value instanceof Collection) {
+                    for (Object item : (Collection<?>) value) {
+                        values.add(String.valueOf(item));
+                    }
+                } else if (value != null) {
+                    values.add(value.toString());
+                }
+                headers.put(name, values);
+            }
+        }
+        storeCookies(uri, headers);
+    }
+
+    /**
+     * Adds the cookies an error response sets, like
+     * {@link #storeCookies(URI, HeaderAndBody) }.
+     *
+     * @param uri the absolute URI of the request
+     * @param error the error response
+     */
+    public void storeCookies(URI uri, HttpException error) {
+        Map<String, String> errorHeaders = error.getHeaders();
+        if (errorHeaders == null) {
+            return;
+        }
+        Map<String, List<String>> headers = new HashMap<String, List<String>>(2);
+        for (Map.Entry<String, String> header : errorHeaders.entrySet()) {
+            if (isSetCookie(header.getKey()) && header.getValue() != null) {
+                headers.put(header.getKey(), Collections.singletonList(header.getValue()));
+            }
+        }
+        storeCookies(uri, headers);
+    }
+
+    private void storeCookies(URI uri, Map<String, List<String>> headers) {
+        if (headers.isEmpty()) {
+            return;
+        }
+        try {
+            getCookieManager().put(uri, headers);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not store the cookies of " + uri, e);
+        }
+    }
+
+    private static boolean isSetCookie(String header) {
+        return SET_COOKIE.equalsIgnoreCase(header) || SET_COOKIE2.equalsIgnoreCase(header);
+    }
+
+    /**
+     * The cookie manager which parses the cookie headers of the requests of
+     * this module into this store.
+     */
+    CookieManager getCookieManager() {
+        CookieManager current = manager;
+        if (current == null) {
+            current = new CookieManager(this, CookiePolicy.ACCEPT_ORIGINAL_SERVER);
+            manager = current;
+        }
+        return current;
+    }
+
+    private DomainCookies domainCookies(String domain) {
+        ConcurrentMap<String, DomainCookies> current = domains;
+        DomainCookies cookies = current.get(domain);
+        if (cookies == null) {
+            DomainCookies created = new DomainCookies();
+            cookies = current.putIfAbsent(domain, created);
+            if (cookies == null) {
+                cookies = created;
+            }
+        }
+        return cookies;
+    }
+
+    /**
+     * The domain attribute of a cookie without its leading dot, or the host
+     * it was received from. CookieManager gives cookies of hosts without a
+     * dot the domain host.local, they are indexed by their host.
+     */
+    private static String domainOf(URI uri, HttpCookie cookie) {
+        String domain = cookie.getDomain();
+        String host = uri == null ? null : uri.getHost();
+        if (domain == null || (host != null && host.indexOf('.') < 0 && domain.equalsIgnoreCase(host + ".local"))) {
+            domain = host;
+        } else if (domain.startsWith(".")) {
+            domain = domain.substring(1);
+        }
+        return domain == null ? null : domain.toLowerCase(Locale.US);
+    }
+
+    /**
+     * The path attribute of a cookie or the default path of the URI it was
+     * received from, as defined by RFC 6265 section 5.1.4.
+     */
+    private static String pathOf(URI uri, HttpCookie cookie) {
+        if (cookie.getPath() != null) {
+            return cookie.getPath();
+        }
+        String path = uri == null ? null : uri.getPath();
+        if (path == null || !path.startsWith("/")) {
+            return "/";
+        }
+        int slash = path.lastIndexOf('/');
+        return slash == 0 ? "/" : path.substring(0, slash);
+    }
+
+    private static boolean pathMatches(String requestPath, String cookiePath) {
+        if (!requestPath.startsWith(cookiePath)) {
+            return false;
+        }
+        return requestPath.length() == cookiePath.length()
+                || cookiePath.endsWith("/")
+                || requestPath.charAt(cookiePath.length()) == '/';
+    }
+
+    private static long expiresAt(long maxAge) {
+        if (maxAge < 0) {
+            return SESSION;
+        }
+        return System.currentTimeMillis() + maxAge * 1000L;
+    }
+
+    /**
+     * Replays the journal the first time the store is used.
+     */
+    private void ensureLoaded() {
+        if (loaded) {
+            return;
+        }
+        synchronized (fileLock) {
+            if (loaded) {
+                return;
+            }
+            boolean intact = replay(file);
+            loaded = true;
+            if (!intact || unjournaled) {
+                compact();
+            }
+        }
+    }
+
+    /**
+     * Adds the records of a journal to the store. Cookies which expired
+     * since are skipped.
+     * 
+     * @return false if the file is damaged and has to be rewritten
+     */
+    private boolean replay(File file) {
+        journalRecords = 0;
+        if (!file.isFile()) {
+            return true;
+        }
+        try {
+            DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            try {
+                if (in.readInt() != MAGIC) {
+                    throw new IOException("Not a cookie journal");
+                }
+                byte version = in.readByte();
+                if (version != VERSION) {
+                    throw new IOException("Unknown cookie journal version " + version);
+                }
+                long now = System.currentTimeMillis();
+                while (true) {
+                    int first = in.read();
+                    if (first == -1) {
+                        return true;
+                    }
+                    int length = first << 24 | in.readUnsignedByte() << 16 | in.readUnsignedShort();
+                    if (length < IV_LENGTH + MAC_LENGTH || length > MAX_RECORD_LENGTH) {
+                        throw new IOException("Invalid cookie journal record length " + length);
+                    }
+                    byte[] sealed = new byte[length];
+                    in.readFully(sealed);
+                    DataInputStream record = new DataInputStream(new ByteArrayInputStream(open(sealed)));
+                    int operation = record.read();
+                    String domain = record.readUTF();
+                    String path = record.readUTF();
+                    if (operation == PUT) {
+                        replayPut(domain, path, Entry.read(record), now);
+                    } else if (operation == REMOVE) {
+                        remove(domain, path, record.readUTF());
+                    } else {
+                        throw new IOException("Unknown cookie journal record " + operation);
+                    }
+                    journalRecords++;
+                }
+            } finally {
+                in.close();
+            }
+        } catch (EOFException e) {
+            Log.w(TAG, "The cookie journal " + file + " ends with a partial record", e);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "The cookie journal " + file + " was modified or written with another key", e);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not read the cookie journal " + file, e);
+        }
+        return false;
+    }
+
+    private void replayPut(String domain, String path, Entry entry, long now) {
+        if (entry.expiresAt > now) {
+            if (domainCookies(domain).put(path, entry)) {
+                size.incrementAndGet();
+            }
+        } else {
+            remove(domain, path, entry.cookie.getName());
+        }
+    }
+
+    /**
+     * Appends one record to the journal, called with fileLock held. The
+     * journal is open only for the append. A journal which is mostly
+     * outdated is compacted in the background.
+     */
+    private void append(byte operation, String domain, String path, String name, Entry entry) {
+        if (file == null) {
+            return;
+        }
+        try {
+            byte[] record = seal(operation, domain, path, name, entry);
+            boolean empty = !file.isFile() || file.length() == 0;
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file, true)));
+            try {
+                if (empty) {
+                    out.writeInt(MAGIC);
+                    out.writeByte(VERSION);
+                }
+                out.writeInt(record.length);
+                out.write(record);
+            } finally {
+                out.close();
+            }
+            journalRecords++;
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Could not encrypt a record of the cookie journal " + file, e);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not append to the cookie journal " + file, e);
+        }
+        if (!compactionQueued && needsCompaction()) {
+            compactionQueued = true;
+            Sweep.executor().execute(new Runnable() {
+                @Override
+                public void run() {
+                    synchronized (fileLock) {
+                        compactionQueued = false;
+                        if (needsCompaction()) {
+                            compact();
+                        }
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * A journal is compacted once it holds more than twice as many records
+     * as the store holds cookies, so it never grows beyond a constant factor
+     * of the store.
+     */
+    private boolean needsCompaction() {
+        return file != null && journalRecords >= MIN_COMPACTION_RECORDS && journalRecords > 2 * size.get();
+    }
+
+    /**
+     * Encrypts one record, called with fileLock held. The sealed record is
+     * the IV, the ciphertext and an HMAC over both.
+     */
+    private byte[] seal(byte operation, String domain, String path, String name, Entry entry)
+            throws IOException, GeneralSecurityException {
+        ByteArrayOutputStream plaintext = new ByteArrayOutputStream(128);
+        DataOutputStream out = new DataOutputStream(plaintext);
+        out.writeByte(operation);
+        out.writeUTF(domain);
+        out.writeUTF(path);
+        if (entry == null) {
+            out.writeUTF(name);
+        } else {
+            entry.write(out);
+        }
+        out.flush();
+
+        byte[] iv = new byte[IV_LENGTH];
+        random.nextBytes(iv);
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+        byte[] ciphertext = cipher.doFinal(plaintext.toByteArray());
+
+        byte[] sealed = new byte[IV_LENGTH + ciphertext.length + MAC_LENGTH];
+        System.arraycopy(iv, 0, sealed, 0, IV_LENGTH);
+        System.arraycopy(ciphertext, 0, sealed, IV_LENGTH, ciphertext.length);
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(macKey);
+        mac.update(sealed, 0, IV_LENGTH + ciphertext.length);
+        mac.doFinal(sealed, IV_LENGTH + ciphertext.length);
+        return sealed;
+    }
+
+    /**
+     * Checks and decrypts a record written by
+     * {@link #seal(byte, String, String, String, Entry) }.
+     *
+     * @throws GeneralSecurityException if the record was modified or
+     *             written with another key
+     */
+    private byte[] open(byte[] sealed) throws GeneralSecurityException {
+        int ciphertextLength = sealed.length - IV_LENGTH - MAC_LENGTH;
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(macKey);
+        mac.update(sealed, 0, IV_LENGTH + ciphertextLength);
+        byte[] expected = mac.doFinal();
+        byte[] actual = new byte[MAC_LENGTH];
+        System.arraycopy(sealed, IV_LENGTH + ciphertextLength, actual, 0, MAC_LENGTH);
+        if (!MessageDigest.isEqual(expected, actual)) {
+            throw new GeneralSecurityException("The cookie journal record is not authentic");
+        }
+        Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+        cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(sealed, 0, IV_LENGTH));
+        return cipher.doFinal(sealed, IV_LENGTH, ciphertextLength);
+    }
+
+    /**
+     * Derives the encryption and the MAC key of the journal from key.
+     */
+    private static SecretKey[] deriveKeys(SecretKey key) {
+        if (key == null) {
+            throw new IllegalArgumentException("key may not be null");
+        }
+        byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            throw new IllegalArgumentException("The key can not be exported");
+        }
+        try {
+            Mac derivation = Mac.getInstance(MAC);
+            derivation.init(new SecretKeySpec(encoded, MAC));
+            byte[] encryption = derivation.doFinal("aerogear cookie journal encryption".getBytes("UTF-8"));
+            byte[] authentication = derivation.doFinal("aerogear cookie journal authentication".getBytes("UTF-8"));
+            return new SecretKey[] {
+                    new SecretKeySpec(encryption, 0, Math.min(encoded.length, encryption.length), "AES"),
+                    new SecretKeySpec(authentication, MAC) };
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Could not derive the keys of the cookie journal", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Rewrites the journal with one record per live cookie, called with
+     * fileLock held. The new journal is written to a temporary file which
+     * replaces the journal, so a crash never leaves a half written journal
+     * behind.
+     */
+    private void compact() {
+        File current = file;
+        if (current == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        List<String> keys = new ArrayList<String>();
+        List<Entry> entries = new ArrayList<Entry>();
+        for (Map.Entry<String, DomainCookies> domain : domains.entrySet()) {
+            domain.getValue().snapshot(domain.getKey(), now, keys, entries);
+        }
+
+        File temporary = new File(current.getPath() + ".tmp");
+        try {
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+            try {
+                out.writeInt(MAGIC);
+                out.writeByte(VERSION);
+                for (int i = 0; i < entries.size(); i++) {
+                    byte[] record = seal(PUT, keys.get(2 * i), keys.get(2 * i + 1), null, entries.get(i));
+                    out.writeInt(record.length);
+                    out.write(record);
+                }
+            } finally {
+                out.close();
+            }
+            if (!temporary.renameTo(current)) {
+                temporary.delete();
+                throw new IOException("Could not replace " + current);
+            }
+            journalRecords = entries.size();
+        } catch (GeneralSecurityException e) {
+            temporary.delete();
+            Log.w(TAG, "Could not encrypt the cookie journal " + current, e);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not compact the cookie journal " + current, e);
+        }
+    }
+
+    /**
+     * The periodic expiry of one persisted store. It holds the store weakly
+     * and ends with it.
+     */
+    private static final class Sweep implements Runnable {
+
+        private static volatile ScheduledExecutorService executor;
+
+        private final WeakReference<ModuleCookieStore> store;
+        private volatile ScheduledFuture<?> future;
+
+        private Sweep(ModuleCookieStore store) {
+            this.store = new WeakReference<ModuleCookieStore>(store);
+        }
+
+        /**
+         * The single daemon thread which expires and compacts persisted
+         * stores. It is started by the first persisted store.
+         */
+        static ScheduledExecutorService executor() {
+            if (executor == null) {
+                synchronized (Sweep.class) {
+                    if (executor == null) {
+                        executor = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                            @Override
+                            public Thread newThread(Runnable runnable) {
+                                Thread thread = new Thread(runnable, TAG);
+                                thread.setDaemon(true);
+                                return thread;
+                            }
+                        });
+                    }
+                }
+            }
+            return executor;
+        }
+
+        static Sweep schedule(ModuleCookieStore store) {
+            Sweep sweep = new Sweep(store);
+            sweep.future = executor().scheduleWithFixedDelay(sweep, SWEEP_INTERVAL_SECONDS, SWEEP_INTERVAL_SECONDS,
+                    TimeUnit.SECONDS);
+            return sweep;
+        }
+
+        void cancel() {
+            ScheduledFuture<?> scheduled = future;
+            if (scheduled != null) {
+                scheduled.cancel(false);
+            }
+        }
+
+        @Override
+        public void run() {
+            ModuleCookieStore current = store.get();
+            if (current == null) {
+                cancel();
+                return;
+            }
+            try {
+                current.expire();
+            } catch (RuntimeException e) {
+                Log.w(TAG, "Could not expire cookies", e);
+            }
+        }
+    }
+
+    /**
+     * The cookies of one domain, by path and then by name.
+     */
+    private static final class DomainCookies {
+
+        private final Map<String, Map<String, Entry>> paths = new HashMap<String, Map<String, Entry>>(4);
+
+        /**
+         * @return true if the entry did not replace another one
+         */
+        synchronized boolean put(String path, Entry entry) {
+            Map<String, Entry> cookies = paths.get(path);
+            if (cookies == null) {
+                cookies = new LinkedHashMap<String, Entry>(4);
+                paths.put(path, cookies);
+            }
+            return cookies.put(entry.cookie.getName(), entry) == null;
+        }
+
+        synchronized boolean remove(String path, String name) {
+            Map<String, Entry> cookies = paths.get(path);
+            if (cookies == null || cookies.remove(name) == null) {
+                return false;
+            }
+            if (cookies.isEmpty()) {
+                paths.remove(path);
+            }
+            return true;
+        }
+
+        /**
+         * @return the number of expired entries which were dropped
+         */
+        synchronized int collect(String requestPath, boolean secure, boolean exactHost, long now, List<HttpCookie> result) {
+            int expired = 0;
+            for (Iterator<Map.Entry<String, Map<String, Entry>>> byPath = paths.entrySet().iterator(); byPath.hasNext();) {
+                Map.Entry<String, Map<String, Entry>> path = byPath.next();
+                if (!pathMatches(requestPath, path.getKey())) {
+                    continue;
+                }
+                for (Iterator<Entry> byName = path.getValue().values().iterator(); byName.hasNext();) {
+                    Entry entry = byName.next();
+                    if (entry.expiresAt <= now) {
+                        byName.remove();
+                        expired++;
+                    } else if ((exactHost || entry.cookie.getDomain() != null)
+                            && (secure || !entry.cookie.getSecure())) {
+                        result.add(entry.cookie);
+                    }
+                }
+                if (path.getValue().isEmpty()) {
+                    byPath.remove();
+                }
+            }
+            return expired;
+        }
+
+        synchronized int expire(long now) {
+            int expired = 0;
+            for (Iterator<Map<String, Entry>> byPath = paths.values().iterator(); byPath.hasNext();) {
+                Map<String, Entry> cookies = byPath.next();
+                for (Iterator<Entry> byName = cookies.values().iterator(); byName.hasNext();) {
+                    if (byName.next().expiresAt <= now) {
+                        byName.remove();
+                        expired++;
+                    }
+                }
+                if (cookies.isEmpty()) {
+                    byPath.remove();
+                }
+            }
+            return expired;
+        }
+
+        synchronized void collectAll(long now, List<HttpCookie> result) {
+            for (Map<String, Entry> cookies : paths.values()) {
+                for (Entry entry : cookies.values()) {
+                    if (entry.expiresAt > now) {
+                        result.add(entry.cookie);
+                    }
+                }
+            }
+        }
+
+        synchronized void snapshot(String domain, long now, List<String> keys, List<Entry> entries) {
+            for (Map.Entry<String, Map<String, Entry>> path : paths.entrySet()) {
+                for (Entry entry : path.getValue().values()) {
+                    if (entry.expiresAt > now) {
+                        keys.add(domain);
+                        keys.add(path.getKey());
+                        entries.add(entry);
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A cookie and the absolute time it expires at. HttpCookie only knows
+     * its max age relative to when it was created, which does not survive
+     * a restart.
+     */
+    private static final class Entry {
+
+        final HttpCookie cookie;
+        final long expiresAt;
+
+        Entry(HttpCookie cookie, long expiresAt) {
+            this.cookie = cookie;
+            this.expiresAt = expiresAt;
+        }
+
+        void write(DataOutputStream out) throws IOException {
+            out.writeUTF(cookie.getName());
+            out.writeUTF(cookie.getValue() == null ? "" : cookie.getValue());
+            out.writeBoolean(cookie.getDomain() != null);
+            if (cookie.getDomain() != null) {
+                out.writeUTF(cookie.getDomain());
+            }
+            out.writeUTF(cookie.getPath() == null ? "/" : cookie.getPath());
+            out.writeBoolean(cookie.getSecure());
+            out.writeInt(cookie.getVersion());
+            out.writeLong(expiresAt);
+        }
+
+        static Entry read(DataInputStream in) throws IOException {
+            HttpCookie cookie = new HttpCookie(in.readUTF(), in.readUTF());
+            if (in.readBoolean()) {
+                cookie.setDomain(in.readUTF());
+            }
+            cookie.setPath(in.readUTF());
+            cookie.setSecure(in.readBoolean());
+            cookie.setVersion(in.readInt());
+            long expiresAt = in.readLong();
+            if (expiresAt != SESSION) {
+                cookie.setMaxAge(Math.max(1, (expiresAt - System.currentTimeMillis()) / 1000L));
+            }
+            return new Entry(cookie, expiresAt);
+        }
+    }
+}
@@ -0,0 +1,54 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication;
+
+/**
+ * Notified when {@link AuthenticationManager} drops a module to stay within
+ * its limits, see {@link AuthenticationManager#setMaximumModules(int) } and
+ * {@link AuthenticationManager#setModuleIdleTimeout(long, java.util.concurrent.TimeUnit)
+ * }.
+ */
+public interface OnModuleEvictedListener {
+
+    /**
+     * Why a module was evicted.
+     */
+    enum Cause {
+        /**
+         * The registry held more modules than its maximum, the least
+         * recently used one was dropped.
+         */
+        SIZE,
+        /**
+         * The module was not looked up for longer than the idle timeout.
+         */
+        IDLE
+    }
+
+    /**
+     * A method called after a module was removed from the registry and its
+     * credentials were wiped. It runs on the thread which caused the
+     * eviction.
+     *
+     * @param name the name the module was registered with
+     * @param module the evicted module, null if it was registered lazily and
+     *            never built
+     * @param cause why the module was evicted
+     */
+    void onModuleEvicted(String name, AuthenticationModule module, Cause cause);
+
+}
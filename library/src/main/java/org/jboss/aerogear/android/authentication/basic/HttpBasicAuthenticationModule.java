@@ -16,11 +16,7 @@
  */
 package org.jboss.aerogear.android.authentication.basic;
 
-import java.net.CookieManager;
-import java.net.CookieStore;
-import java.net.HttpCookie;
 import java.net.PasswordAuthentication;
-import java.net.URISyntaxException;
 import java.net.URL;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -29,10 +25,10 @@ import java.util.Map;
 
 import org.jboss.aerogear.android.core.Callback;
 import org.jboss.aerogear.android.authentication.AbstractAuthenticationModule;
+import org.jboss.aerogear.android.authentication.HeaderValueBuilder;
 import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
 import org.jboss.aerogear.android.pipe.Pipe;
 
-import android.util.Base64;
 import android.util.Pair;
 import java.net.URI;
 import static org.jboss.aerogear.android.authentication.AbstractAuthenticationModule.USERNAME_PARAMETER_NAME;
@@ -61,14 +57,21 @@ public class HttpBasicAuthenticationModule extends AbstractAuthenticationModule
     private final String logoutEndpoint = "";
     private final String enrollEndpoint = "";
     private final URL baseURL;
-    private boolean isLoggedIn = false;
+    private volatile boolean isLoggedIn = false;
     private PasswordAuthentication auth = new PasswordAuthentication("", new char[] {});
 
+    /**
+     * The Authorization header of the current credentials. It is encoded at
+     * login and logout and shared by every request.
+     */
+    private volatile Pair<String, String> authorizationHeader;
+
     /**
      * @param baseURL The base URL shared by a Pipe.
      */
     public HttpBasicAuthenticationModule(URL baseURL) {
         this.baseURL = baseURL;
+        this.authorizationHeader = buildAuthorizationHeader();
     }
 
     @Override
@@ -104,13 +107,13 @@ public class HttpBasicAuthenticationModule extends AbstractAuthenticationModule
      * @param callback a callback to handle the result.
      */
     @Override
-    public void login(String username, String password, final Callback<HeaderAndBody> callback) {
-        isLoggedIn = true;
-        auth = new PasswordAuthentication(username, password.toCharArray());
-        THREAD_POOL_EXECUTOR.execute(new Runnable() {
+    public void login(String username, String password, Callback<HeaderAndBody> callback) {
+        setCredentials(username, password);
+        final Callback<HeaderAndBody> delivered = deliver(callback);
+        execute(delivered, new Runnable() {
             @Override
             public void run() {
-                callback.onSuccess(new HeaderAndBody(new byte[] {}, new HashMap<String, Object>(1)));
+                delivered.onSuccess(new HeaderAndBody(new byte[] {}, new HashMap<String, Object>(1)));
             }
         });
 
@@ -118,35 +121,23 @@ public class HttpBasicAuthenticationModule extends AbstractAuthenticationModule
 
     /**
      * 
-     * This method clears the username and password from the module, sets
-     * isLoggedIn to false, and removes all cookies associated with {@link #baseURL}
+     * This method clears the username and password from the module, drops
+     * the cached Authorization header, sets isLoggedIn to false, and removes all cookies of this module
      * 
      * This method always calls {@link Callback#onSuccess(Object) }
      * 
      * @param callback the callback whose onsuccess method will be executed
      */
     @Override
-    public void logout(final Callback<Void> callback) {
-        clearPassword(auth.getPassword());
-        auth = new PasswordAuthentication("", new char[] {});
-        isLoggedIn = false;
+    public void logout(Callback<Void> callback) {
+        clearCredentials();
 
-        THREAD_POOL_EXECUTOR.execute(new Runnable() {
+        final Callback<Void> delivered = deliver(callback);
+        execute(delivered, new Runnable() {
             @Override
             public void run() {
-                try {
-                    CookieStore store = ((CookieManager) CookieManager.getDefault()).getCookieStore();
-                    List<HttpCookie> cookies = store.get(baseURL.toURI());
-
-                    for (HttpCookie cookie : cookies) {
-                        store.remove(baseURL.toURI(), cookie);
-                    }
-
-                    callback.onSuccess((Void) null);
-                } catch (URISyntaxException e) {
-                    callback.onFailure(e);
-                }
-
+                removeCookies();
+                delivered.onSuccess((Void) null);
             }
         });
 
@@ -163,27 +154,91 @@ public class HttpBasicAuthenticationModule extends AbstractAuthenticationModule
      * @param callback the callback to be called
      */
     @Override
-    public void enroll(Map<String, String> userData, final Callback<HeaderAndBody> callback) {
-        THREAD_POOL_EXECUTOR.execute(new Runnable() {
+    public void enroll(Map<String, String> userData, Callback<HeaderAndBody> callback) {
+        final Callback<HeaderAndBody> delivered = deliver(callback);
+        execute(delivered, new Runnable() {
             @Override
             public void run() {
-                callback.onFailure(new UnsupportedOperationException());
+                delivered.onFailure(new UnsupportedOperationException());
             }
         });
 
     }
 
+    /**
+     * Stores username and password, no request is made.
+     *
+     * @param username the username of the user
+     * @param password the password of the user
+     * @return an empty response
+     */
+    @Override
+    public HeaderAndBody loginSync(String username, String password) {
+        markUsed();
+        setCredentials(username, password);
+        return new HeaderAndBody(new byte[] {}, new HashMap<String, Object>(1));
+    }
+
+    /**
+     * Clears the credentials and removes the cookies of this module on the
+     * calling thread.
+     */
+    @Override
+    public void logoutSync() {
+        markUsed();
+        clearCredentials();
+        removeCookies();
+    }
+
+    /**
+     * Enrolling is not supported using http basic.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public HeaderAndBody enrollSync(Map<String, String> userData) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * Wipes the password, drops the cached Authorization header and the
+     * cookies of this module.
+     */
+    @Override
+    protected void wipeCredentials() {
+        clearCredentials();
+        removeCookies();
+    }
+
+    private void setCredentials(String username, String password) {
+        auth = new PasswordAuthentication(username, password.toCharArray());
+        authorizationHeader = buildAuthorizationHeader();
+        isLoggedIn = true;
+    }
+
+    private void clearCredentials() {
+        clearPassword(auth.getPassword());
+        auth = new PasswordAuthentication("", new char[] {});
+        isLoggedIn = false;
+        authorizationHeader = buildAuthorizationHeader();
+    }
+
     /**
      * HTTP Basic defines a base 64 encoded hash to be pass as a header to serve
      * as authentication. This method calculates the value of that header.
+     * The credentials are encoded as UTF-8 in a per thread buffer, which is
+     * wiped afterwards.
      * 
      * @return the http basic hash of the username and password
      */
     private String getHashedAuth() {
-        StringBuilder headerValueBuilder = new StringBuilder(AUTHORIZATION_METHOD).append(" ");
-        String unhashedCredentials = new StringBuilder(auth.getUserName()).append(":").append(auth.getPassword()).toString();
-        String hashedCrentials = Base64.encodeToString(unhashedCredentials.getBytes(), Base64.DEFAULT | Base64.NO_WRAP);
-        return headerValueBuilder.append(hashedCrentials).toString();
+        HeaderValueBuilder header = HeaderValueBuilder.get();
+        try {
+            return header.append(AUTHORIZATION_METHOD).append(' ')
+                    .appendBasicCredentials(auth.getUserName(), auth.getPassword()).toString();
+        } finally {
+            header.wipe();
+        }
     }
 
     /**
@@ -206,19 +261,33 @@ public class HttpBasicAuthenticationModule extends AbstractAuthenticationModule
         login(loginData.get(USERNAME_PARAMETER_NAME), loginData.get(PASSWORD_PARAMETER_NAME), callback);
     }
 
+    /**
+     * Returns the Authorization header which was encoded when the
+     * credentials were set and, without a default cookie handler, the
+     * cookies of this module which match the request. The fields belong to
+     * the caller, who may add headers or query parameters to them.
+     */
     @Override
     public ModuleFields loadModule(URI relativeURI, String httpMethod, byte[] requestBody) {
-     
+        markUsed();
         ModuleFields fields = new ModuleFields();
 
         List<Pair<String, String>> headerList = new ArrayList<Pair<String, String>>(1);
-        headerList.add(new Pair<String, String>(BASIC_HEADER, getHashedAuth()));
-        
+        headerList.add(authorizationHeader);
+
         fields.setHeaders(headerList);
-        
+        addCookies(relativeURI, fields);
+
         return fields;
     }
 
+    /**
+     * Encodes the current credentials into an Authorization header.
+     */
+    private Pair<String, String> buildAuthorizationHeader() {
+        return new Pair<String, String>(BASIC_HEADER, getHashedAuth());
+    }
+
     @Override
     public boolean handleError(HttpException exception) {
         return false;
@@ -0,0 +1,134 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+/**
+ * The digest algorithms of <a
+ * href="https://tools.ietf.org/html/rfc7616#section-6.1">RFC 7616 section
+ * 6.1</a>.
+ *
+ * The constants are declared from the weakest to the strongest, the runner
+ * picks the strongest one the server offers and the platform supports.
+ */
+public enum DigestAlgorithm {
+
+    MD5("MD5", "MD5", false),
+    MD5_SESS("MD5-sess", "MD5", true),
+    SHA_256("SHA-256", "SHA-256", false),
+    SHA_256_SESS("SHA-256-sess", "SHA-256", true),
+    SHA_512_256("SHA-512-256", "SHA-512/256", false),
+    SHA_512_256_SESS("SHA-512-256-sess", "SHA-512/256", true);
+
+    /**
+     * The longest hex digest of all algorithms.
+     */
+    static final int MAX_HEX_LENGTH = 64;
+
+    private final String token;
+    private final String messageDigestAlgorithm;
+    private final boolean session;
+    private volatile DigestHashEngine engine;
+
+    private DigestAlgorithm(String token, String messageDigestAlgorithm, boolean session) {
+        this.token = token;
+        this.messageDigestAlgorithm = messageDigestAlgorithm;
+        this.session = session;
+    }
+
+    /**
+     * @return the name of the algorithm in challenges and Authorization
+     *         headers
+     */
+    public String getToken() {
+        return token;
+    }
+
+    /**
+     * @return true for the -sess variants, which hash the nonce and cnonce
+     *         into HA1
+     */
+    public boolean isSession() {
+        return session;
+    }
+
+    /**
+     * @return true if the platform provides the hash function
+     */
+    public boolean isSupported() {
+        return engine != null || DigestHashEngine.isSupported(messageDigestAlgorithm);
+    }
+
+    /**
+     * @return the shared engine of the hash function
+     *
+     * @throws IllegalArgumentException if the platform does not provide the
+     *             hash function
+     */
+    public DigestHashEngine getEngine() {
+        DigestHashEngine result = engine;
+        if (result == null) {
+            result = DigestHashEngine.getInstance(messageDigestAlgorithm);
+            engine = result;
+        }
+        return result;
+    }
+
+    /**
+     * @param token an algorithm token, compared case insensitively
+     * @return the matching algorithm or null if it is unknown
+     */
+    public static DigestAlgorithm fromToken(String token) {
+        if (token == null) {
+            return null;
+        }
+        String trimmed = token.trim();
+        for (DigestAlgorithm algorithm : values()) {
+            if (algorithm.token.equalsIgnoreCase(trimmed)) {
+                return algorithm;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Picks the strongest supported algorithm of an algorithm parameter. A
+     * missing parameter means MD5, some servers send a comma separated list.
+     *
+     * @param algorithms the algorithm parameter of a challenge, may be null
+     * @return the strongest supported algorithm or null if none is supported
+     */
+    public static DigestAlgorithm strongest(String algorithms) {
+        if (algorithms == null) {
+            return MD5;
+        }
+        DigestAlgorithm strongest = null;
+        for (String option : algorithms.split(",")) {
+            DigestAlgorithm algorithm = fromToken(option);
+            if (algorithm != null && (strongest == null || algorithm.compareTo(strongest) > 0)
+                    && algorithm.isSupported()) {
+                strongest = algorithm;
+            }
+        }
+        return strongest;
+    }
+
+    @Override
+    public String toString() {
+        return token;
+    }
+
+}
@@ -0,0 +1,100 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+/**
+ * The parameters of an Authentication-Info header a server sends with a
+ * successful response (<a href="https://tools.ietf.org/html/rfc7616#section-3.5">RFC
+ * 7616 section 3.5</a>).
+ *
+ * Instances are filled by {@link DigestHeaderUtils#parseAuthenticationInfo(String, DigestAuthenticationInfo)
+ * } and may be reused.
+ */
+public final class DigestAuthenticationInfo extends DigestParameters {
+
+    static final String NEXTNONCE = "nextnonce";
+    static final String RSPAUTH = "rspauth";
+    static final String CNONCE = "cnonce";
+    static final String NC = "nc";
+    static final String QOP = "qop";
+
+    private String nextnonce;
+    private String rspauth;
+    private String cnonce;
+    private String nc;
+    private String qop;
+
+    public DigestAuthenticationInfo() {
+    }
+
+    /**
+     * @return the nonce the server wants the client to use for its next
+     *         request or null
+     */
+    public String getNextnonce() {
+        return nextnonce;
+    }
+
+    /**
+     * @return the response digest which proves that the server knows the
+     *         credentials or null
+     */
+    public String getRspauth() {
+        return rspauth;
+    }
+
+    public String getCnonce() {
+        return cnonce;
+    }
+
+    /**
+     * @return the nonce count of the request the server answered, as 8 hex
+     *         digits, or null
+     */
+    public String getNc() {
+        return nc;
+    }
+
+    public String getQop() {
+        return qop;
+    }
+
+    @Override
+    void reset() {
+        nextnonce = null;
+        rspauth = null;
+        cnonce = null;
+        nc = null;
+        qop = null;
+    }
+
+    @Override
+    void setParameter(String header, int nameStart, int nameEnd, String value) {
+        if (nameMatches(header, nameStart, nameEnd, NEXTNONCE)) {
+            nextnonce = value;
+        } else if (nameMatches(header, nameStart, nameEnd, RSPAUTH)) {
+            rspauth = value;
+        } else if (nameMatches(header, nameStart, nameEnd, CNONCE)) {
+            cnonce = value;
+        } else if (nameMatches(header, nameStart, nameEnd, NC)) {
+            nc = value;
+        } else if (nameMatches(header, nameStart, nameEnd, QOP)) {
+            qop = value;
+        }
+    }
+
+}
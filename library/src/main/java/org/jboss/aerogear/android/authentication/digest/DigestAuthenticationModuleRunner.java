@@ -18,18 +18,26 @@ package org.jboss.aerogear.android.authentication.digest;
 
 import android.util.Log;
 
-import java.net.CookieManager;
-import java.net.CookieStore;
-import java.net.HttpCookie;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
-import java.util.List;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.Locale;
 import java.util.Map;
 import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
 
 import org.jboss.aerogear.android.authentication.AbstractAuthenticationModuleRunner;
+import org.jboss.aerogear.android.authentication.AuthenticationException;
+import org.jboss.aerogear.android.authentication.Deadline;
+import org.jboss.aerogear.android.authentication.HeaderValueBuilder;
+import org.jboss.aerogear.android.authentication.ModuleCookieStore;
 import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
 import org.jboss.aerogear.android.pipe.http.HttpException;
 import org.jboss.aerogear.android.pipe.http.HttpProvider;
@@ -41,24 +49,55 @@ public class DigestAuthenticationModuleRunner extends
     private final String TAG = DigestAuthenticationModuleRunner.class.getSimpleName();
 
     private static String WWW_AUTHENTICATE_HEADER = "WWW-Authenticate";
-    private static final String REALM = "realm";
-    private static final String DOMAIN = "domain";
-    private static final String NONCE = "nonce";
-    private static final String STALE = "stale";
-    private static final String ALGORITHM = "algorithm";
-    private static final String QOP_OPTIONS = "qop";
-    private static final String OPAQUE = "opaque";
-    private String cnonce = UUID.randomUUID().toString();
-    private int nonce_count = 0;
-    private String nonce;
-    private String qop;
-    private String realm;
-    private String domain;
-    private String algorithm;
-    private String stale;
-    private String opaque;
-    private String username;
-    private String password;
+    private static final String AUTHENTICATION_INFO_HEADER = "Authentication-Info";
+    private static final String COOKIE_HEADER = "Cookie";
+    private static final String AUTH = "auth";
+    private static final String AUTH_INT = "auth-int";
+    private static final int NONCE_COUNT_LENGTH = 8;
+    private static final char[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+    private static final long MAP_WINDOW = 64 * 1024 * 1024;
+    /**
+     * A persisted session reserves this many nonce counts. The snapshot is
+     * rewritten in the background once half of them are used, so the write
+     * lands before a request needs a count beyond the reservation.
+     */
+    private static final int NONCE_COUNT_RESERVATION = 256;
+
+    /*
+     * Per thread scratch space: HA2, the response, the nonce count and the
+     * hash of the entity body.
+     */
+    private static final int NONCE_COUNT_OFFSET = 2 * DigestAlgorithm.MAX_HEX_LENGTH;
+    private static final int ENTITY_HASH_OFFSET = NONCE_COUNT_OFFSET + NONCE_COUNT_LENGTH;
+    private static final ThreadLocal<char[]> HASH_BUFFER = new ThreadLocal<char[]>() {
+        @Override
+        protected char[] initialValue() {
+            return new char[ENTITY_HASH_OFFSET + DigestAlgorithm.MAX_HEX_LENGTH];
+        }
+    };
+    private static final ThreadLocal<byte[]> STREAM_BUFFER = new ThreadLocal<byte[]>() {
+        @Override
+        protected byte[] initialValue() {
+            return new byte[8192];
+        }
+    };
+    private volatile String cnonce = UUID.randomUUID().toString();
+    private final AtomicReference<DigestSession> session = new AtomicReference<DigestSession>();
+    private final AtomicReference<CachedChallenge> lastChallenge = new AtomicReference<CachedChallenge>();
+    private final DigestHA1Cache ha1Cache = new DigestHA1Cache();
+    private final DigestStatistics statistics = new DigestStatistics();
+    private final Object reloginLock = new Object();
+    private volatile String username;
+    private volatile boolean preemptive = false;
+    private volatile long challengeLifetime = 0;
+    private volatile DigestSessionStore sessionStore;
+    private final Object persistLock = new Object();
+    private volatile ModuleCookieStore cookieStore = new ModuleCookieStore();
+    /**
+     * The highest nonce count the persisted snapshot allows, guarded by
+     * persistLock.
+     */
+    private volatile int reservedNonceCount;
 
     /**
      * @param baseURL the baseURL that all urls (login, enroll, etc) will be
@@ -77,16 +116,77 @@ public class DigestAuthenticationModuleRunner extends
 
     @Override
     public HeaderAndBody onEnroll(final Map<String, String> userData) {
-        HttpProvider provider = httpProviderFactory.get(enrollURL, timeout);
+        HttpProvider provider = open(enrollURL, Deadline.never());
         String enrollData = new JSONObject(userData).toString();
-        return provider.post(enrollData);
+        URI enrollURI = toURI(enrollURL);
+        try {
+            HeaderAndBody response = provider.post(enrollData);
+            cookieStore.storeCookies(enrollURI, response);
+            return response;
+        } catch (HttpException exception) {
+            cookieStore.storeCookies(enrollURI, exception);
+            throw exception;
+        }
     }
 
     @Override
     public HeaderAndBody onLogin(final String username, final String password) {
-        HttpProvider provider = httpProviderFactory.get(loginURL, timeout);
+        return onLogin(username, password, Deadline.never());
+    }
+
+    /**
+     * Logs in before a deadline. The deadline is checked before both requests
+     * of the handshake and caps their timeouts.
+     *
+     * @param username the username
+     * @param password the password
+     * @param deadline the deadline of the login
+     * @return the response of the authenticated request
+     *
+     * @throws java.util.concurrent.CancellationException if the login was
+     *             cancelled
+     * @throws Deadline.ExceededException if the deadline expired
+     * @throws AuthenticationException if the rspauth of the response does
+     *             not match
+     */
+    public HeaderAndBody onLogin(final String username, final String password, Deadline deadline) {
+        deadline.check();
+        ha1Cache.clear();
+        this.username = username;
+        return authenticate(password, deadline);
+    }
+
+    /**
+     * Runs the challenge/response handshake against the login endpoint. If
+     * preemptive authentication is enabled and a challenge which is still
+     * valid was cached, credentials are sent with the first request and the
+     * challenge round trip is only made if the server rejects them.
+     *
+     * @param password the password or null if the HA1 cached during login
+     *            has to be used
+     * @param deadline the deadline of the handshake
+     */
+    private HeaderAndBody authenticate(final String password, Deadline deadline) {
+        HttpProvider provider = open(loginURL, deadline);
+        statistics.handshake();
+
+        DigestChallenge cached = getCachedChallenge();
+        if (cached != null) {
+            statistics.preemptiveAttempt();
+            applyChallenge(cached, password);
+            try {
+                return signAndGet(provider);
+            } catch (HttpException exception) {
+                if (exception.getStatusCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
+                    throw exception;
+                }
+                statistics.preemptiveFallback();
+                return respondToChallenge(exception, password, deadline);
+            }
+        }
+
         try {
-            provider.get();// Should not be logged in and throw an exception
+            get(provider);// Should not be logged in and throw an exception
             throw new IllegalStateException(
                     "Login Called on service which was already logged in.");
         } catch (HttpException exception) {
@@ -94,173 +194,776 @@ public class DigestAuthenticationModuleRunner extends
             if (exception.getStatusCode() != HttpURLConnection.HTTP_UNAUTHORIZED) {
                 throw exception;
             }
+            return respondToChallenge(exception, password, deadline);
+        }
 
-            Map<String, String> authenticateHeaders = DigestHeaderUtils
-                    .extractValues(exception.getHeaders().get(
-                            WWW_AUTHENTICATE_HEADER));
-            realm = authenticateHeaders.get(REALM);
-            domain = authenticateHeaders.get(DOMAIN);
-            nonce = authenticateHeaders.get(NONCE);
-            algorithm = authenticateHeaders.get(ALGORITHM);
-            qop = authenticateHeaders.get(QOP_OPTIONS);
-            stale = authenticateHeaders.get(STALE);
-            opaque = authenticateHeaders.get(OPAQUE);
-            this.username = username;
-            this.password = password;
-
-            checkQop(qop);
-            checkAlgorithm(algorithm);
-            try {
-                provider.setDefaultHeader(
-                        "Authorization",
-                        getAuthorizationHeader(loginURL.toURI(), "GET",
-                                new byte[] {}));
-            } catch (URISyntaxException ex) {
-                Log.e(TAG, ex.getMessage(), ex);
-                throw new RuntimeException(ex);
+    }
+
+    private HeaderAndBody respondToChallenge(HttpException unauthorized, String password, Deadline deadline) {
+        DigestChallenge challenge = selectChallenge(getHeader(unauthorized, WWW_AUTHENTICATE_HEADER));
+        if (challenge == null) {
+            throw new IllegalStateException("The server did not send a Digest challenge.");
+        }
+        lastChallenge.set(new CachedChallenge(challenge, System.currentTimeMillis()));
+        applyChallenge(challenge, password);
+        return signAndGet(open(loginURL, deadline));
+    }
+
+    /**
+     * Sends the signed login request. A response whose rspauth does not
+     * match ends the session.
+     *
+     * @throws AuthenticationException if the server fails mutual
+     *             authentication
+     */
+    private HeaderAndBody signAndGet(HttpProvider provider) {
+        URI loginURI = toURI(loginURL);
+        provider.setDefaultHeader(
+                "Authorization",
+                getAuthorizationHeader(loginURI, "GET",
+                        new byte[] {}));
+
+        HeaderAndBody response = get(provider);
+        byte[] body = response.getBody() == null ? new byte[0] : response.getBody();
+        if (!onAuthenticationInfo(loginURI, getAuthenticationInfo(response), body)) {
+            clear();
+            throw new AuthenticationException("The rspauth of the login response does not match, "
+                    + "the server did not prove that it knows the credentials");
+        }
+        return response;
+    }
+
+    /**
+     * Opens a request which carries the cookies of the module if no default
+     * cookie handler attaches cookies.
+     */
+    private HttpProvider open(URL url, Deadline deadline) {
+        HttpProvider provider = getHttpProvider(url, deadline);
+        String cookies = cookieStore.getRequestCookieHeader(toURI(url));
+        if (cookies != null) {
+            provider.setDefaultHeader(COOKIE_HEADER, cookies);
+        }
+        return provider;
+    }
+
+    /**
+     * Sends a GET and keeps the cookies of the response, an error response
+     * included, for the next requests of the module.
+     */
+    private HeaderAndBody get(HttpProvider provider) {
+        URI uri = toURI(provider.getUrl());
+        try {
+            HeaderAndBody response = provider.get();
+            cookieStore.storeCookies(uri, response);
+            return response;
+        } catch (HttpException exception) {
+            cookieStore.storeCookies(uri, exception);
+            throw exception;
+        }
+    }
+
+    private URI toURI(URL url) {
+        try {
+            return url.toURI();
+        } catch (URISyntaxException ex) {
+            Log.e(TAG, ex.getMessage(), ex);
+            throw new RuntimeException(ex);
+        }
+    }
+
+    /**
+     * Servers may offer several Digest challenges with different algorithms,
+     * the one with the strongest algorithm the platform supports is
+     * answered. Among equally strong challenges the first one wins, servers
+     * list their preferred challenge first.
+     *
+     * @param header the WWW-Authenticate header, may be null
+     * @return the challenge to answer or null if there is no usable one
+     */
+    static DigestChallenge selectChallenge(String header) {
+        if (header == null) {
+            return null;
+        }
+        DigestChallenge selected = null;
+        DigestAlgorithm strongest = null;
+        for (DigestChallenge challenge : DigestHeaderUtils.parseChallenges(header)) {
+            DigestAlgorithm algorithm = DigestAlgorithm.strongest(challenge.getAlgorithm());
+            if (algorithm != null && (strongest == null || algorithm.compareTo(strongest) > 0)) {
+                selected = challenge;
+                strongest = algorithm;
+            }
+        }
+        return selected;
+    }
+
+    /**
+     * @return the last challenge if preemptive authentication is enabled and
+     *         it is younger than the challenge lifetime, otherwise null
+     */
+    private DigestChallenge getCachedChallenge() {
+        CachedChallenge cached = lastChallenge.get();
+        if (!preemptive || cached == null) {
+            return null;
+        }
+        if (System.currentTimeMillis() - cached.receivedAt > challengeLifetime) {
+            lastChallenge.compareAndSet(cached, null);
+            return null;
+        }
+        return cached.challenge;
+    }
+
+    /**
+     * Builds a session snapshot from a new challenge and swaps it in. HA1 is
+     * looked up by realm and algorithm and only calculated from password if
+     * it is not cached.
+     *
+     * @throws IllegalStateException if HA1 is not cached and password is
+     *             null
+     */
+    private void applyChallenge(DigestChallenge challenge, String password) {
+        String qop = checkQop(challenge);
+        DigestAlgorithm algorithm = checkAlgorithm(challenge.getAlgorithm());
+        DigestHashEngine engine = algorithm.getEngine();
+        String realm = challenge.getRealm();
+        String nonce = challenge.getNonce();
+        String username = this.username;
+
+        char[] ha1 = ha1Cache.get(algorithm.getToken(), realm);
+        if (ha1 == null) {
+            if (password == null) {
+                throw new IllegalStateException("The credentials for realm " + realm + " are not known, login again.");
+            }
+            ha1 = new char[engine.getHexLength()];
+            engine.hasher().update(username).update(':').update(realm).update(':').update(password)
+                    .finish(ha1, 0);
+            ha1Cache.put(algorithm.getToken(), realm, ha1);
+        }
+        ha1Cache.retainOnly(algorithm.getToken(), realm);
+
+        ha1 = sessionHA1(ha1, algorithm, nonce);
+
+        // a cached challenge may be answered again, its nonce count continues
+        int nonceCount = 0;
+        DigestSession previous = session.get();
+        CachedChallenge cached = lastChallenge.get();
+        if (previous != null && nonce.equals(previous.nonce)) {
+            nonceCount = previous.getNonceCount();
+        } else if (cached != null && cached.challenge == challenge) {
+            nonceCount = cached.nonceCount;
+        }
+
+        DigestSession applied = new DigestSession(username, realm, challenge.getDomain(), nonce, challenge.getOpaque(),
+                algorithm, qop, cnonce, ha1, nonceCount);
+        session.set(applied);
+        persist(applied, nonceCount);
+    }
+
+    /**
+     * The HA1 a session signs with. Every session gets its own array, the
+     * cache wipes its values while other threads may still sign with a
+     * session.
+     *
+     * @return H(ha1:nonce:cnonce) for -sess algorithms, otherwise a copy of
+     *         ha1
+     */
+    private char[] sessionHA1(char[] ha1, DigestAlgorithm algorithm, String nonce) {
+        if (!algorithm.isSession()) {
+            return ha1.clone();
+        }
+        DigestHashEngine engine = algorithm.getEngine();
+        char[] sessionHA1 = new char[engine.getHexLength()];
+        engine.hasher().update(ha1, 0, ha1.length).update(':').update(nonce).update(':')
+                .update(cnonce).finish(sessionHA1, 0);
+        return sessionHA1;
+    }
+
+    /**
+     * Inspects the Authentication-Info header of a successful response. A
+     * nextnonce replaces the nonce of the session, so the next request does
+     * not run into a stale nonce. An rspauth is checked against the current
+     * session.
+     *
+     * @param uri the URI of the request which was answered
+     * @param authenticationInfo the value of the Authentication-Info header,
+     *            may be null
+     * @return false if the server sent an rspauth which does not match the
+     *         session, otherwise true
+     */
+    public boolean onAuthenticationInfo(URI uri, String authenticationInfo) {
+        return onAuthenticationInfo(uri, authenticationInfo, null);
+    }
+
+    /**
+     * Inspects the Authentication-Info header of a successful response like
+     * {@link #onAuthenticationInfo(URI, String) }. For qop=auth-int the
+     * rspauth covers the body of the response, it is skipped if the body is
+     * not available.
+     *
+     * @param uri the URI of the request which was answered
+     * @param authenticationInfo the value of the Authentication-Info header,
+     *            may be null
+     * @param responseBody the body of the response, null if it is not
+     *            available
+     * @return false if the server sent an rspauth which does not match the
+     *         session, otherwise true
+     */
+    public boolean onAuthenticationInfo(URI uri, String authenticationInfo, byte[] responseBody) {
+        DigestSession current = session.get();
+        if (authenticationInfo == null || current == null) {
+            return true;
+        }
+
+        DigestAuthenticationInfo info = new DigestAuthenticationInfo();
+        DigestHeaderUtils.parseAuthenticationInfo(authenticationInfo, info);
+
+        String qop = info.getQop() != null ? info.getQop() : current.qop;
+        if (info.getRspauth() != null && info.getNc() != null && qop != null
+                && current.cnonce.equals(info.getCnonce()) && !verifyRspauth(current, uri, info, qop, responseBody)) {
+            Log.w(TAG, "The rspauth of the server does not match the session");
+            statistics.rspauthMismatch();
+            return false;
+        }
+
+        String nextnonce = info.getNextnonce();
+        if (nextnonce != null && !nextnonce.equals(current.nonce)) {
+            char[] ha1 = ha1Cache.get(current.algorithm.getToken(), current.realm);
+            if (ha1 != null) {
+                DigestSession rotated = new DigestSession(current.username, current.realm, current.domain, nextnonce,
+                        current.opaque, current.algorithm, current.qop, current.cnonce,
+                        sessionHA1(ha1, current.algorithm, nextnonce), 0);
+                if (session.compareAndSet(current, rotated)) {
+                    statistics.nonceRotation();
+                    persist(rotated, 0);
+                }
             }
+        }
+        return true;
+    }
 
-            return provider.get();
+    /**
+     * rspauth is calculated like the request digest, with an empty method.
+     * For qop=auth-int A2 ends with the hash of the response body.
+     */
+    private boolean verifyRspauth(DigestSession session, URI uri, DigestAuthenticationInfo info, String qop,
+            byte[] responseBody) {
+        char[] hashes = HASH_BUFFER.get();
+        DigestHashEngine engine = session.algorithm.getEngine();
+        int hexLength = engine.getHexLength();
+
+        boolean authInt = AUTH_INT.equals(qop);
+        if (authInt) {
+            if (responseBody == null) {
+                Log.d(TAG, "The rspauth of " + uri + " covers the response body, it is not checked");
+                return true;
+            }
+            // hashed first, the engine shares one hasher per thread
+            engine.hash(responseBody, 0, responseBody.length, hashes, ENTITY_HASH_OFFSET);
+        }
+        DigestHashEngine.Hasher a2 = engine.hasher().update(':').update(uri.toString());
+        if (authInt) {
+            a2.update(':').update(hashes, ENTITY_HASH_OFFSET, hexLength);
         }
+        a2.finish(hashes, 0);
+        engine.hasher().update(session.ha1, 0, hexLength).update(':').update(session.nonce).update(':')
+                .update(info.getNc()).update(':').update(session.cnonce).update(':')
+                .update(qop).update(':').update(hashes, 0, hexLength).finish(hashes, hexLength);
+
+        String rspauth = info.getRspauth();
+        if (rspauth.length() != hexLength) {
+            return false;
+        }
+        for (int i = 0; i < hexLength; i++) {
+            if (Character.toLowerCase(rspauth.charAt(i)) != hashes[hexLength + i]) {
+                return false;
+            }
+        }
+        return true;
+    }
 
+    static String getAuthenticationInfo(HeaderAndBody response) {
+        if (response == null) {
+            return null;
+        }
+        Object value = response.getHeader(AUTHENTICATION_INFO_HEADER);
+        if (value == null) {
+            value = response.getHeader(AUTHENTICATION_INFO_HEADER.toLowerCase(Locale.US));
+        }
+        return value == null ? null : value.toString();
     }
 
     @Override
     public void onLogout() {
-        HttpProvider provider = httpProviderFactory.get(logoutURL, timeout);
+        onLogout(Deadline.never());
+    }
 
+    /**
+     * Logs out before a deadline. The session is cleared in any case, the
+     * logout request is only sent if the deadline allows it.
+     *
+     * @param deadline the deadline of the logout
+     *
+     * @throws java.util.concurrent.CancellationException if the logout was
+     *             cancelled
+     * @throws Deadline.ExceededException if the deadline expired
+     */
+    public void onLogout(Deadline deadline) {
         clear();
+        try {
+            // the logout request still carries the cookies of the server session
+            open(logoutURL, deadline).post("");
+        } finally {
+            cookieStore.removeSession(getBaseURI());
+        }
+    }
+
+    /**
+     * Clears the session like a logout and drops the cached challenge,
+     * without a request.
+     */
+    void wipe() {
+        clear();
+        lastChallenge.set(null);
+    }
+
+    /**
+     * @param cookieStore the cookies of the module, they are dropped on
+     *            logout
+     */
+    void setCookieStore(ModuleCookieStore cookieStore) {
+        this.cookieStore = cookieStore;
+    }
 
-        CookieStore store = ((CookieManager) CookieManager.getDefault())
-                .getCookieStore();
-        List<HttpCookie> cookies = store.get(getBaseURI());
+    /**
+     * @param sessionStore the store which persists the session, null to
+     *            keep it in memory only
+     */
+    void setSessionStore(DigestSessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+    }
+
+    /**
+     * Restores the session persisted by an earlier process. Its nonce count
+     * continues after the counts the earlier process reserved, so no count
+     * is used twice with a nonce.
+     *
+     * @return true if a session was restored, false if there was none or it
+     *         expired
+     */
+    boolean restore() {
+        DigestSessionStore store = sessionStore;
+        if (store == null) {
+            return false;
+        }
+        DigestSessionStore.Snapshot snapshot = store.load();
+        if (snapshot == null) {
+            return false;
+        }
+        DigestAlgorithm algorithm = DigestAlgorithm.fromToken(snapshot.algorithm);
+        if (algorithm == null || !algorithm.isSupported()) {
+            DigestHA1Cache.wipe(snapshot.ha1);
+            store.clear();
+            return false;
+        }
+
+        synchronized (persistLock) {
+            username = snapshot.username;
+            cnonce = snapshot.cnonce;
+            ha1Cache.clear();
+            ha1Cache.put(algorithm.getToken(), snapshot.realm, snapshot.ha1);
+            reservedNonceCount = snapshot.nonceCount;
+            session.set(new DigestSession(snapshot.username, snapshot.realm, snapshot.domain, snapshot.nonce,
+                    snapshot.opaque, algorithm, snapshot.qop, snapshot.cnonce,
+                    sessionHA1(snapshot.ha1, algorithm, snapshot.nonce), snapshot.nonceCount));
+        }
+        statistics.restoredSession();
+        return true;
+    }
+
+    /**
+     * Queues a snapshot of a session with a new block of nonce counts, it
+     * is written off the calling thread. Failures are logged, the session
+     * keeps working in memory.
+     *
+     * @param current the session to save
+     * @param nonceCount the nonce count used last with the session
+     */
+    private void persist(DigestSession current, int nonceCount) {
+        DigestSessionStore store = sessionStore;
+        if (store == null) {
+            return;
+        }
+        synchronized (persistLock) {
+            if (session.get() != current) {
+                return;
+            }
+            char[] ha1 = ha1Cache.get(current.algorithm.getToken(), current.realm);
+            if (ha1 == null) {
+                return;
+            }
+            int reserved = nonceCount + NONCE_COUNT_RESERVATION;
+            store.saveLater(current, ha1, reserved);
+            reservedNonceCount = reserved;
+        }
+    }
 
-        for (HttpCookie cookie : cookies) {
-            store.remove(getBaseURI(), cookie);
+    /**
+     * Reserves a new block of nonce counts once half of the current block
+     * is used. Concurrent requests which cross the mark queue a single
+     * snapshot, none of them waits for the file.
+     */
+    private void reserve(DigestSession current, int nonceCount) {
+        synchronized (persistLock) {
+            if (needsReservation(nonceCount)) {
+                persist(current, nonceCount);
+            }
         }
+    }
 
-        provider.post("");
+    private boolean needsReservation(int nonceCount) {
+        return nonceCount > reservedNonceCount - NONCE_COUNT_RESERVATION / 2;
     }
 
     private void clear() {
-        realm = null;
-        domain = null;
-        nonce = null;
-        algorithm = null;
-        qop = null;
-        stale = null;
-        opaque = null;
+        DigestSession previous = session.getAndSet(null);
+        if (previous != null) {
+            CachedChallenge cached = lastChallenge.get();
+            if (cached != null && previous.nonce.equals(cached.challenge.getNonce())) {
+                lastChallenge.compareAndSet(cached, cached.withNonceCount(previous.getNonceCount()));
+            }
+            // the HA1 of the session is not wiped, a request may still be signing with it
+        }
         this.username = null;
-        this.password = null;
-
+        ha1Cache.clear();
+        DigestSessionStore store = sessionStore;
+        if (store != null) {
+            store.clear();
+        }
     }
 
     /*
-     * Currently only supports auth.
+     * auth is preferred because it does not need the request body.
      */
-    private void checkQop(String qop) {
-
-        if (qop == null) {
-            return;
-        } else {
-            for (String option : qop.split(",")) {
-                if ("auth".equals(option)) {
-                    this.qop = "auth";
-                    return;
-                }
-            }
+    private String checkQop(DigestChallenge challenge) {
+
+        if (challenge.getQop() == null) {
+            return null;
+        } else if (challenge.supportsQop(AUTH)) {
+            return AUTH;
+        } else if (challenge.supportsQop(AUTH_INT)) {
+            return AUTH_INT;
         }
 
         throw new IllegalArgumentException(String.format(
-                "%s is not a supported qop type.", qop));
+                "%s is not a supported qop type.", challenge.getQop()));
 
     }
 
+    /**
+     * Signs a request with the current session. This method is thread safe,
+     * every call uses its own nonce count.
+     *
+     * @param uri the request URI
+     * @param method the HTTP method
+     * @param entityBody the request body, it is only hashed for qop=auth-int
+     * @return the value of the Authorization header or null if there is no
+     *         session
+     */
     public String getAuthorizationHeader(URI uri, String method,
             byte[] entityBody) {
-        nonce_count++;
-        StringBuilder sb = new StringBuilder();
-        String digestResponse;
-        String HA1 = calculateHA1();
-        String HA2 = calculateHA2(method, uri, entityBody);
-
-        if (qop == null) {
-            StringBuilder responseBuilder = new StringBuilder();
-            responseBuilder.append(HA1).append(":").append(nonce).append(":")
-                    .append(HA2);
-            digestResponse = DigestHeaderUtils.computeMD5Hash(responseBuilder
-                    .toString().getBytes());
-        } else {
-            StringBuilder responseBuilder = new StringBuilder();
-            responseBuilder.append(HA1).append(":").append(nonce).append(":")
-                    .append(nonce_count).append(":").append(cnonce).append(":")
-                    .append(qop).append(":").append(HA2);
-            digestResponse = DigestHeaderUtils.computeMD5Hash(responseBuilder
-                    .toString().getBytes());
-        }
-
-        sb.append("Digest ").append("username=\"").append(username).append('"')
-                .append(",realm=\"").append(realm).append('"')
-                .append(",nonce=\"").append(nonce).append('"')
-                .append(",uri=\"").append(uri.toString()).append('"')
-                .append(",response=\"").append(digestResponse).append('"');
-        if (!(qop == null || qop.isEmpty())) {
-            sb.append(",qop=").append(qop).append(",nc=").append(nonce_count)
-                    .append(",cnonce=\"").append(cnonce).append('"')
-                    .append(",opaque=\"").append(opaque).append('"');
-        }
-
-        return sb.toString();
-    }
-
-    private void checkAlgorithm(String algorithm) {
-        if (algorithm == null) {
-            return;
-        } else {
-            for (String option : algorithm.split(",")) {
-                if ("MD5".equals(option) || "MD5-sess".equals(option)) {
-                    this.algorithm = option;
-                    return;
+        DigestSession session = this.session.get();
+        if (session == null) {
+            return null;
+        }
+        if (AUTH_INT.equals(session.qop)) {
+            byte[] body = entityBody == null ? new byte[0] : entityBody;
+            session.algorithm.getEngine().hash(body, 0, body.length, HASH_BUFFER.get(), ENTITY_HASH_OFFSET);
+        }
+        return sign(session, uri, method);
+    }
+
+    /**
+     * Signs a request with the current session. For qop=auth-int the body is
+     * read to its end and hashed in chunks, it is never copied completely.
+     *
+     * @param uri the request URI
+     * @param method the HTTP method
+     * @param entityBody the request body, it is not closed
+     * @return the value of the Authorization header or null if there is no
+     *         session
+     * @throws IOException if entityBody can not be read
+     */
+    public String getAuthorizationHeader(URI uri, String method,
+            InputStream entityBody) throws IOException {
+        DigestSession session = this.session.get();
+        if (session == null) {
+            return null;
+        }
+        if (AUTH_INT.equals(session.qop)) {
+            DigestHashEngine.Hasher hasher = session.algorithm.getEngine().hasher();
+            byte[] chunk = STREAM_BUFFER.get();
+            int read;
+            while ((read = entityBody.read(chunk)) != -1) {
+                hasher.update(chunk, 0, read);
+            }
+            hasher.finish(HASH_BUFFER.get(), ENTITY_HASH_OFFSET);
+        }
+        return sign(session, uri, method);
+    }
+
+    /**
+     * Signs a request with the current session. For qop=auth-int the
+     * remaining bytes of the body are hashed, its position is not changed.
+     *
+     * @param uri the request URI
+     * @param method the HTTP method
+     * @param entityBody the request body, for instance a mapped file
+     * @return the value of the Authorization header or null if there is no
+     *         session
+     */
+    public String getAuthorizationHeader(URI uri, String method,
+            ByteBuffer entityBody) {
+        DigestSession session = this.session.get();
+        if (session == null) {
+            return null;
+        }
+        if (AUTH_INT.equals(session.qop)) {
+            session.algorithm.getEngine().hash(entityBody.duplicate(), HASH_BUFFER.get(), ENTITY_HASH_OFFSET);
+        }
+        return sign(session, uri, method);
+    }
+
+    /**
+     * Signs a request with the current session. For qop=auth-int the file is
+     * memory mapped and hashed window by window, so its content is not
+     * copied onto the heap.
+     *
+     * @param uri the request URI
+     * @param method the HTTP method
+     * @param entityBody the file which is sent as request body
+     * @return the value of the Authorization header or null if there is no
+     *         session
+     * @throws IOException if entityBody can not be read
+     */
+    public String getAuthorizationHeader(URI uri, String method,
+            File entityBody) throws IOException {
+        DigestSession session = this.session.get();
+        if (session == null) {
+            return null;
+        }
+        if (AUTH_INT.equals(session.qop)) {
+            FileInputStream input = new FileInputStream(entityBody);
+            try {
+                FileChannel channel = input.getChannel();
+                long size = channel.size();
+                DigestHashEngine.Hasher hasher = session.algorithm.getEngine().hasher();
+                for (long position = 0; position < size; position += MAP_WINDOW) {
+                    hasher.update(channel.map(FileChannel.MapMode.READ_ONLY, position, Math.min(MAP_WINDOW, size - position)));
                 }
+                hasher.finish(HASH_BUFFER.get(), ENTITY_HASH_OFFSET);
+            } finally {
+                input.close();
             }
         }
+        return sign(session, uri, method);
+    }
+
+    /**
+     * Builds the Authorization header in the buffers of the calling thread,
+     * the returned String is the only allocation. For qop=auth-int the hash
+     * of the entity body has to be in the hash buffer already.
+     */
+    private String sign(DigestSession session, URI uri, String method) {
+        int nonceCount = session.nextNonceCount();
+        if (sessionStore != null && needsReservation(nonceCount)) {
+            reserve(session, nonceCount);
+        }
+        char[] hashes = HASH_BUFFER.get();
+        DigestHashEngine engine = session.algorithm.getEngine();
+        int hexLength = engine.getHexLength();
+
+        calculateHA2(engine, session.qop, method, uri, hashes, 0);
+        formatNonceCount(nonceCount, hashes, NONCE_COUNT_OFFSET);
+
+        DigestHashEngine.Hasher response = engine.hasher();
+        response.update(session.ha1, 0, hexLength).update(':').update(session.nonce).update(':');
+        if (session.qop != null) {
+            response.update(hashes, NONCE_COUNT_OFFSET, NONCE_COUNT_LENGTH).update(':')
+                    .update(session.cnonce).update(':').update(session.qop).update(':');
+        }
+        response.update(hashes, 0, hexLength).finish(hashes, hexLength);
+
+        HeaderValueBuilder header = HeaderValueBuilder.get();
+        header.append("Digest ").appendQuoted("username", session.username)
+                .append(',').appendQuoted("realm", session.realm)
+                .append(',').appendQuoted("nonce", session.nonce)
+                .append(',').appendQuoted("uri", uri.toString())
+                .append(",response=\"").append(hashes, hexLength, hexLength).append('"')
+                .append(",algorithm=").append(session.algorithm.getToken());
+        if (session.qop != null) {
+            header.append(",qop=").append(session.qop)
+                    .append(",nc=").append(hashes, NONCE_COUNT_OFFSET, NONCE_COUNT_LENGTH)
+                    .append(',').appendQuoted("cnonce", session.cnonce);
+        }
+        if (session.opaque != null) {
+            header.append(',').appendQuoted("opaque", session.opaque);
+        }
+
+        return header.toString();
+    }
+
+    /**
+     * Writes nonceCount as the 8 digit hex value RFC 2617 expects.
+     */
+    private static void formatNonceCount(int nonceCount, char[] out, int offset) {
+        for (int i = NONCE_COUNT_LENGTH - 1; i >= 0; i--) {
+            out[offset + i] = HEX[nonceCount & 0x0F];
+            nonceCount >>>= 4;
+        }
+    }
+
+    private DigestAlgorithm checkAlgorithm(String algorithm) {
+        DigestAlgorithm strongest = DigestAlgorithm.strongest(algorithm);
+        if (strongest != null) {
+            return strongest;
+        }
 
         throw new IllegalArgumentException(String.format(
                 "%s is not a supported algorithm type.", algorithm));
     }
 
-    private String calculateHA1() {
-        StringBuilder a1Builder = new StringBuilder();
-        a1Builder.append(username).append(":").append(realm).append(":")
-                .append(password);
-        if ("MD5-sess".equals(algorithm)) {
-            String tempA1 = DigestHeaderUtils.computeMD5Hash(a1Builder
-                    .toString().getBytes());
-            a1Builder = new StringBuilder();
-            a1Builder.append(tempA1).append(":").append(nonce).append(":")
-                    .append(cnonce);
+    /**
+     * Writes the hex HA2 to out at offset.
+     */
+    private void calculateHA2(DigestHashEngine engine, String qop, String method, URI uri, char[] out, int offset) {
+        DigestHashEngine.Hasher a2 = engine.hasher();
+        a2.update(method).update(':').update(uri.toString());
+        if (AUTH_INT.equals(qop)) {
+            a2.update(':').update(out, ENTITY_HASH_OFFSET, engine.getHexLength());
         }
-        return DigestHeaderUtils
-                .computeMD5Hash(a1Builder.toString().getBytes());
+        a2.finish(out, offset);
     }
 
-    private String calculateHA2(String method, URI uri, byte[] entityBody) {
-        StringBuilder a2Builder = new StringBuilder();
-        if ("auth-int".equals(qop)) {
-            a2Builder.append(method).append(":").append(uri).append(":")
-                    .append(DigestHeaderUtils.computeMD5Hash(entityBody));
-        } else {
-            a2Builder.append(method).append(":").append(uri);
+    /**
+     * Enables answering a cached challenge with the first login request.
+     *
+     * @param preemptive true to enable preemptive authentication
+     * @param challengeLifetime how long in milliseconds a challenge is
+     *            considered valid after it was received
+     */
+    void setPreemptive(boolean preemptive, long challengeLifetime) {
+        this.challengeLifetime = challengeLifetime;
+        this.preemptive = preemptive;
+    }
+
+    DigestStatistics getStatistics() {
+        return statistics;
+    }
+
+    /**
+     * Handles a failed request of the session. If the server only rejected
+     * a stale nonce the new nonce of its challenge is swapped in without any
+     * request. Other 401 responses cause a new handshake with the cached
+     * credentials. Any other error is not handled.
+     *
+     * @param exception the error of the failed request
+     * @return true if the request should be retried
+     */
+    boolean onError(HttpException exception) {
+        DigestSession failed = session.get();
+        if (exception.getStatusCode() != HttpURLConnection.HTTP_UNAUTHORIZED || failed == null) {
+            return false;
+        }
+
+        DigestChallenge challenge = selectChallenge(getHeader(exception, WWW_AUTHENTICATE_HEADER));
+        if (challenge == null) {
+            return false;
         }
 
-        return DigestHeaderUtils
-                .computeMD5Hash(a2Builder.toString().getBytes());
+        if (challenge.isStale()) {
+            try {
+                lastChallenge.set(new CachedChallenge(challenge, System.currentTimeMillis()));
+                applyChallenge(challenge, null);
+                statistics.staleNonce();
+                return true;
+            } catch (IllegalStateException e) {
+                Log.w(TAG, "Could not renew the stale nonce, logging in again", e);
+            }
+        }
 
+        try {
+            return retryLogin(failed);
+        } catch (RuntimeException e) {
+            Log.e(TAG, "Error with Login", e);
+            return false;
+        }
+    }
+
+    /**
+     * HTTP header names are case insensitive, servers and the platform do not
+     * agree on a single spelling.
+     */
+    private static String getHeader(HttpException exception, String name) {
+        Map<String, String> headers = exception.getHeaders();
+        if (headers == null) {
+            return null;
+        }
+        String value = headers.get(name);
+        if (value == null) {
+            for (Map.Entry<String, String> header : headers.entrySet()) {
+                if (name.equalsIgnoreCase(header.getKey())) {
+                    return header.getValue();
+                }
+            }
+        }
+        return value;
     }
 
     boolean retryLogin() {
-        onLogin(username, password);
+        return retryLogin(session.get());
+    }
+
+    /**
+     * Logs in again with the cached credentials. Concurrent requests which
+     * failed with the same session wait for a single handshake instead of
+     * running one each.
+     *
+     * @param failed the session the failed request was signed with
+     * @return true if a session is available after the handshake
+     */
+    private boolean retryLogin(DigestSession failed) {
+        synchronized (reloginLock) {
+            DigestSession current = session.get();
+            if (current != failed) {
+                statistics.coalescedLogin();
+                return current != null;
+            }
+            authenticate(null, Deadline.never());
+        }
 
         return true;
     }
+
+    /**
+     * A challenge the server sent and the nonce count last used with it.
+     */
+    private static final class CachedChallenge {
+
+        final DigestChallenge challenge;
+        final long receivedAt;
+        final int nonceCount;
+
+        CachedChallenge(DigestChallenge challenge, long receivedAt) {
+            this(challenge, receivedAt, 0);
+        }
+
+        private CachedChallenge(DigestChallenge challenge, long receivedAt, int nonceCount) {
+            this.challenge = challenge;
+            this.receivedAt = receivedAt;
+            this.nonceCount = nonceCount;
+        }
+
+        CachedChallenge withNonceCount(int nonceCount) {
+            return new CachedChallenge(challenge, receivedAt, nonceCount);
+        }
+    }
 }
@@ -0,0 +1,201 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * The parameters of a single Digest challenge as sent in a WWW-Authenticate
+ * header (<a href="https://tools.ietf.org/html/rfc7616#section-3.3">RFC 7616
+ * section 3.3</a>).
+ *
+ * Instances are filled by {@link DigestHeaderUtils#parseChallenge(String, DigestChallenge)
+ * } and may be reused for several headers.
+ */
+public final class DigestChallenge extends DigestParameters {
+
+    static final String REALM = "realm";
+    static final String DOMAIN = "domain";
+    static final String NONCE = "nonce";
+    static final String OPAQUE = "opaque";
+    static final String STALE = "stale";
+    static final String ALGORITHM = "algorithm";
+    static final String QOP = "qop";
+    static final String CHARSET = "charset";
+    static final String USERHASH = "userhash";
+
+    private String realm;
+    private String domain;
+    private String nonce;
+    private String opaque;
+    private String algorithm;
+    private String qop;
+    private String charset;
+    private boolean stale;
+    private boolean userhash;
+
+    public DigestChallenge() {
+    }
+
+    public String getRealm() {
+        return realm;
+    }
+
+    public String getDomain() {
+        return domain;
+    }
+
+    public String getNonce() {
+        return nonce;
+    }
+
+    public String getOpaque() {
+        return opaque;
+    }
+
+    /**
+     * @return the algorithm token or null if the server did not send one
+     *         (which means MD5)
+     */
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the raw, comma separated qop-options or null
+     */
+    public String getQop() {
+        return qop;
+    }
+
+    public String getCharset() {
+        return charset;
+    }
+
+    public boolean isStale() {
+        return stale;
+    }
+
+    public boolean isUserhash() {
+        return userhash;
+    }
+
+    /**
+     * Checks if the qop-options of this challenge list a given option.
+     *
+     * @param option a qop value, for instance "auth"
+     * @return true if option is one of the qop-options
+     */
+    public boolean supportsQop(String option) {
+        if (qop == null) {
+            return false;
+        }
+        int length = qop.length();
+        int start = 0;
+        while (start < length) {
+            int end = qop.indexOf(',', start);
+            if (end == -1) {
+                end = length;
+            }
+            int tokenStart = start;
+            int tokenEnd = end;
+            while (tokenStart < tokenEnd && DigestHeaderUtils.isWhitespace(qop.charAt(tokenStart))) {
+                tokenStart++;
+            }
+            while (tokenEnd > tokenStart && DigestHeaderUtils.isWhitespace(qop.charAt(tokenEnd - 1))) {
+                tokenEnd--;
+            }
+            if (tokenEnd - tokenStart == option.length()
+                    && qop.regionMatches(true, tokenStart, option, 0, option.length())) {
+                return true;
+            }
+            start = end + 1;
+        }
+        return false;
+    }
+
+    @Override
+    void reset() {
+        realm = null;
+        domain = null;
+        nonce = null;
+        opaque = null;
+        algorithm = null;
+        qop = null;
+        charset = null;
+        stale = false;
+        userhash = false;
+    }
+
+    @Override
+    void setParameter(String header, int nameStart, int nameEnd, String value) {
+        if (nameMatches(header, nameStart, nameEnd, REALM)) {
+            realm = value;
+        } else if (nameMatches(header, nameStart, nameEnd, NONCE)) {
+            nonce = value;
+        } else if (nameMatches(header, nameStart, nameEnd, QOP)) {
+            qop = value;
+        } else if (nameMatches(header, nameStart, nameEnd, OPAQUE)) {
+            opaque = value;
+        } else if (nameMatches(header, nameStart, nameEnd, ALGORITHM)) {
+            algorithm = value;
+        } else if (nameMatches(header, nameStart, nameEnd, STALE)) {
+            stale = "true".equalsIgnoreCase(value);
+        } else if (nameMatches(header, nameStart, nameEnd, DOMAIN)) {
+            domain = value;
+        } else if (nameMatches(header, nameStart, nameEnd, CHARSET)) {
+            charset = value;
+        } else if (nameMatches(header, nameStart, nameEnd, USERHASH)) {
+            userhash = "true".equalsIgnoreCase(value);
+        }
+    }
+
+    /**
+     * @return the known parameters of this challenge keyed by their name
+     */
+    Map<String, String> toMap() {
+        Map<String, String> values = new HashMap<String, String>();
+        put(values, REALM, realm);
+        put(values, DOMAIN, domain);
+        put(values, NONCE, nonce);
+        put(values, OPAQUE, opaque);
+        put(values, ALGORITHM, algorithm);
+        put(values, QOP, qop);
+        put(values, CHARSET, charset);
+        if (stale) {
+            values.put(STALE, "true");
+        }
+        if (userhash) {
+            values.put(USERHASH, "true");
+        }
+        return values;
+    }
+
+    private static void put(Map<String, String> values, String key, String value) {
+        if (value != null) {
+            values.put(key, value);
+        }
+    }
+
+    @Override
+    public String toString() {
+        return "DigestChallenge{" + "realm=" + realm + ", nonce=" + nonce + ", algorithm=" + algorithm
+                + ", qop=" + qop + ", stale=" + stale + '}';
+    }
+
+}
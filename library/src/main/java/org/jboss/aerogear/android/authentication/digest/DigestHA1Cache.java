@@ -0,0 +1,85 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Holds the hex H(username:realm:password) values of a session keyed by
+ * algorithm and realm so the password is hashed once per login instead of once
+ * per request. Values are wiped when they are removed. Sessions sign with
+ * their own copy, so wiping a cached value never changes a session in use.
+ */
+final class DigestHA1Cache {
+
+    private final Map<String, char[]> entries = new ConcurrentHashMap<String, char[]>(2);
+
+    char[] get(String algorithm, String realm) {
+        return entries.get(key(algorithm, realm));
+    }
+
+    void put(String algorithm, String realm, char[] ha1) {
+        char[] previous = entries.put(key(algorithm, realm), ha1);
+        if (previous != null && previous != ha1) {
+            wipe(previous);
+        }
+    }
+
+    /**
+     * Removes and wipes every entry but the one of algorithm and realm.
+     */
+    void retainOnly(String algorithm, String realm) {
+        String retained = key(algorithm, realm);
+        Iterator<Map.Entry<String, char[]>> iterator = entries.entrySet().iterator();
+        while (iterator.hasNext()) {
+            Map.Entry<String, char[]> entry = iterator.next();
+            if (!entry.getKey().equals(retained)) {
+                iterator.remove();
+                wipe(entry.getValue());
+            }
+        }
+    }
+
+    /**
+     * Removes and wipes every entry.
+     */
+    void clear() {
+        Iterator<char[]> iterator = entries.values().iterator();
+        while (iterator.hasNext()) {
+            wipe(iterator.next());
+            iterator.remove();
+        }
+    }
+
+    boolean isEmpty() {
+        return entries.isEmpty();
+    }
+
+    static void wipe(char[] value) {
+        if (value != null) {
+            Arrays.fill(value, '0');
+        }
+    }
+
+    private static String key(String algorithm, String realm) {
+        return algorithm + ':' + realm;
+    }
+
+}
@@ -0,0 +1,368 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import java.nio.ByteBuffer;
+import java.security.DigestException;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Computes lower case hex digests without allocating.
+ *
+ * Every thread gets its own {@link MessageDigest} and result buffer per
+ * algorithm, so the provider lookup happens once per thread and the digest is
+ * hex encoded through a lookup table straight into a caller supplied buffer.
+ *
+ * A {@link Hasher} returned by {@link #hasher() } belongs to the calling
+ * thread and must be finished before the next hash of the same engine is
+ * started on that thread.
+ */
+public final class DigestHashEngine {
+
+    private static final char[] HEX = { '0', '1', '2', '3', '4', '5', '6', '7', '8', '9', 'a', 'b', 'c', 'd', 'e', 'f' };
+
+    private static final ConcurrentHashMap<String, DigestHashEngine> ENGINES = new ConcurrentHashMap<String, DigestHashEngine>();
+
+    private final String algorithm;
+    private final int digestLength;
+    private final ThreadLocal<Hasher> hashers;
+
+    private DigestHashEngine(final String algorithm, int digestLength) {
+        this.algorithm = algorithm;
+        this.digestLength = digestLength;
+        this.hashers = new ThreadLocal<Hasher>() {
+            @Override
+            protected Hasher initialValue() {
+                return new Hasher(newDigest(algorithm));
+            }
+        };
+    }
+
+    /**
+     * Returns the shared engine of a {@link MessageDigest} algorithm.
+     *
+     * @param algorithm a MessageDigest algorithm name, for instance "MD5"
+     * @return the engine for algorithm
+     *
+     * @throws IllegalArgumentException if the platform does not provide
+     *             algorithm
+     */
+    public static DigestHashEngine getInstance(String algorithm) {
+        DigestHashEngine engine = ENGINES.get(algorithm);
+        if (engine == null) {
+            engine = new DigestHashEngine(algorithm, newDigest(algorithm).getDigestLength());
+            DigestHashEngine existing = ENGINES.putIfAbsent(algorithm, engine);
+            if (existing != null) {
+                engine = existing;
+            }
+        }
+        return engine;
+    }
+
+    /**
+     * @param algorithm a MessageDigest algorithm name
+     * @return true if the platform provides algorithm
+     */
+    public static boolean isSupported(String algorithm) {
+        if (ENGINES.containsKey(algorithm)) {
+            return true;
+        }
+        try {
+            MessageDigest.getInstance(algorithm);
+            return true;
+        } catch (NoSuchAlgorithmException e) {
+            return false;
+        }
+    }
+
+    public String getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * @return the length of the digest in bytes
+     */
+    public int getDigestLength() {
+        return digestLength;
+    }
+
+    /**
+     * @return the length of the hex encoded digest in chars
+     */
+    public int getHexLength() {
+        return digestLength * 2;
+    }
+
+    /**
+     * @return the reset Hasher of the calling thread
+     */
+    public Hasher hasher() {
+        Hasher hasher = hashers.get();
+        hasher.reset();
+        return hasher;
+    }
+
+    /**
+     * Hashes a slice of input and writes the hex digest to out.
+     *
+     * @return the number of chars written
+     */
+    public int hash(byte[] input, int offset, int length, char[] out, int outOffset) {
+        return hasher().update(input, offset, length).finish(out, outOffset);
+    }
+
+    /**
+     * Hashes a slice of input and writes the hex digest as ASCII to out.
+     *
+     * @return the number of bytes written
+     */
+    public int hash(byte[] input, int offset, int length, byte[] out, int outOffset) {
+        return hasher().update(input, offset, length).finish(out, outOffset);
+    }
+
+    /**
+     * Hashes the remaining bytes of input and writes the hex digest to out.
+     *
+     * @return the number of chars written
+     */
+    public int hash(ByteBuffer input, char[] out, int outOffset) {
+        return hasher().update(input).finish(out, outOffset);
+    }
+
+    /**
+     * Hashes the remaining bytes of input and writes the hex digest as ASCII
+     * to out.
+     *
+     * @return the number of bytes written
+     */
+    public int hash(ByteBuffer input, byte[] out, int outOffset) {
+        return hasher().update(input).finish(out, outOffset);
+    }
+
+    /**
+     * @return the hex digest of input as a new String
+     */
+    public String hashToHex(byte[] input) {
+        return hasher().update(input, 0, input.length).finishToHex();
+    }
+
+    /**
+     * Hex encodes a slice of bytes into out.
+     *
+     * @return the number of chars written
+     */
+    public static int toHex(byte[] bytes, int offset, int length, char[] out, int outOffset) {
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xFF;
+            out[outOffset++] = HEX[b >>> 4];
+            out[outOffset++] = HEX[b & 0x0F];
+        }
+        return length * 2;
+    }
+
+    /**
+     * Hex encodes a slice of bytes as ASCII into out.
+     *
+     * @return the number of bytes written
+     */
+    public static int toHex(byte[] bytes, int offset, int length, byte[] out, int outOffset) {
+        for (int i = 0; i < length; i++) {
+            int b = bytes[offset + i] & 0xFF;
+            out[outOffset++] = (byte) HEX[b >>> 4];
+            out[outOffset++] = (byte) HEX[b & 0x0F];
+        }
+        return length * 2;
+    }
+
+    private static MessageDigest newDigest(String algorithm) {
+        try {
+            return MessageDigest.getInstance(algorithm);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalArgumentException(algorithm + " is not supported by this platform", e);
+        }
+    }
+
+    /**
+     * An incremental hash owned by one thread. Chars are encoded as UTF-8.
+     * The encoded chars and the digest are wiped once they were consumed,
+     * so a password hashed into an HA1 does not stay in the buffers of the
+     * thread.
+     */
+    public static final class Hasher {
+
+        private final MessageDigest digest;
+        private final byte[] result;
+        private final byte[] scratch = new byte[128];
+        private int scratchLength = 0;
+
+        private Hasher(MessageDigest digest) {
+            this.digest = digest;
+            this.result = new byte[digest.getDigestLength()];
+        }
+
+        public Hasher update(byte[] input, int offset, int length) {
+            flush();
+            digest.update(input, offset, length);
+            return this;
+        }
+
+        public Hasher update(ByteBuffer input) {
+            flush();
+            digest.update(input);
+            return this;
+        }
+
+        public Hasher update(char c) {
+            if (c < 0x80) {
+                if (scratchLength == scratch.length) {
+                    flush();
+                }
+                scratch[scratchLength++] = (byte) c;
+            } else {
+                encode(isSurrogate(c) ? '?' : c);
+            }
+            return this;
+        }
+
+        public Hasher update(CharSequence input) {
+            int length = input.length();
+            for (int i = 0; i < length; i++) {
+                char c = input.charAt(i);
+                if (Character.isHighSurrogate(c) && i + 1 < length && Character.isLowSurrogate(input.charAt(i + 1))) {
+                    encode(Character.toCodePoint(c, input.charAt(++i)));
+                } else {
+                    update(c);
+                }
+            }
+            return this;
+        }
+
+        public Hasher update(char[] input, int offset, int length) {
+            int end = offset + length;
+            for (int i = offset; i < end; i++) {
+                char c = input[i];
+                if (Character.isHighSurrogate(c) && i + 1 < end && Character.isLowSurrogate(input[i + 1])) {
+                    encode(Character.toCodePoint(c, input[++i]));
+                } else {
+                    update(c);
+                }
+            }
+            return this;
+        }
+
+        /**
+         * Hashes the decimal representation of a non negative value.
+         */
+        public Hasher update(int value) {
+            int divisor = 1;
+            while (value / divisor >= 10) {
+                divisor *= 10;
+            }
+            while (divisor > 0) {
+                update((char) ('0' + (value / divisor) % 10));
+                divisor /= 10;
+            }
+            return this;
+        }
+
+        /**
+         * Completes the hash and writes the hex digest to out.
+         *
+         * @return the number of chars written
+         */
+        public int finish(char[] out, int outOffset) {
+            try {
+                return toHex(complete(), 0, result.length, out, outOffset);
+            } finally {
+                Arrays.fill(result, (byte) 0);
+            }
+        }
+
+        /**
+         * Completes the hash and writes the hex digest as ASCII to out.
+         *
+         * @return the number of bytes written
+         */
+        public int finish(byte[] out, int outOffset) {
+            try {
+                return toHex(complete(), 0, result.length, out, outOffset);
+            } finally {
+                Arrays.fill(result, (byte) 0);
+            }
+        }
+
+        /**
+         * @return the hex digest as a new String
+         */
+        public String finishToHex() {
+            char[] hex = new char[result.length * 2];
+            finish(hex, 0);
+            return new String(hex);
+        }
+
+        private byte[] complete() {
+            flush();
+            try {
+                digest.digest(result, 0, result.length);
+            } catch (DigestException e) {
+                throw new IllegalStateException(e);
+            }
+            return result;
+        }
+
+        private void reset() {
+            digest.reset();
+            Arrays.fill(scratch, 0, scratchLength, (byte) 0);
+            scratchLength = 0;
+        }
+
+        private void flush() {
+            if (scratchLength > 0) {
+                digest.update(scratch, 0, scratchLength);
+                Arrays.fill(scratch, 0, scratchLength, (byte) 0);
+                scratchLength = 0;
+            }
+        }
+
+        private void encode(int codePoint) {
+            if (scratchLength + 4 > scratch.length) {
+                flush();
+            }
+            if (codePoint < 0x800) {
+                scratch[scratchLength++] = (byte) (0xC0 | (codePoint >> 6));
+                scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else if (codePoint < 0x10000) {
+                scratch[scratchLength++] = (byte) (0xE0 | (codePoint >> 12));
+                scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3F));
+            } else {
+                scratch[scratchLength++] = (byte) (0xF0 | (codePoint >> 18));
+                scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 12) & 0x3F));
+                scratch[scratchLength++] = (byte) (0x80 | ((codePoint >> 6) & 0x3F));
+                scratch[scratchLength++] = (byte) (0x80 | (codePoint & 0x3F));
+            }
+        }
+
+        private static boolean isSurrogate(char c) {
+            return c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE;
+        }
+    }
+
+}
@@ -16,116 +16,308 @@
  */
 package org.jboss.aerogear.android.authentication.digest;
 
-import android.util.Log;
-import java.security.MessageDigest;
-import java.security.NoSuchAlgorithmException;
-import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
 
 public final class DigestHeaderUtils {
 
-    private static final String TAG = DigestHeaderUtils.class.getSimpleName();
+    private static final String DIGEST = "Digest";
+    private static final String MD5 = "MD5";
 
-    private static enum States {
+    private DigestHeaderUtils() {
+    }
 
-        DIGEST, KEY, VALUE
+    /**
+     * Parses the first Digest challenge of a WWW-Authenticate header into a
+     * map of its parameters.
+     *
+     * @param authenticateHeader the value of a WWW-Authenticate header
+     * @return the parameters of the first Digest challenge
+     *
+     * @throws IllegalArgumentException if the header has no Digest challenge
+     *             or is malformed
+     *
+     * @deprecated use {@link #parseChallenge(String, DigestChallenge) }
+     */
+    @Deprecated
+    public static Map<String, String> extractValues(String authenticateHeader) {
+        DigestChallenge challenge = new DigestChallenge();
+        if (!parseChallenge(authenticateHeader, challenge)) {
+            throw new IllegalArgumentException(authenticateHeader + " Did not contain a Digest challenge.");
+        }
+        return challenge.toMap();
     }
 
-    private static final String DIGEST = "Digest";
-    private static final String WHITESPACE = "\\s";
-    private static final String COMMA = ",";
-    private static final String QUOTE = "\"";
-    private static final String EQ = "=";
+    /**
+     * Parses the first Digest challenge of a WWW-Authenticate header
+     * (<a href="https://tools.ietf.org/html/rfc7235#section-4.1">RFC 7235</a>)
+     * into challenge. Other challenges in the header are skipped.
+     *
+     * @param authenticateHeader the value of a WWW-Authenticate header
+     * @param challenge the instance to fill, it is reset before parsing
+     * @return true if a Digest challenge was found
+     *
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static boolean parseChallenge(String authenticateHeader, DigestChallenge challenge) {
+        challenge.reset();
+        return parse(authenticateHeader, null, challenge, null) > 0;
+    }
 
-    public static Map<String, String> extractValues(String authenticateHeader) {
-        States state = States.DIGEST;
-        StringBuilder word = new StringBuilder();
-        String key = "";
-        String value = "";
-        String valueTerminator = COMMA;
+    /**
+     * Parses all Digest challenges of a WWW-Authenticate header. A server may
+     * offer several challenges, for instance one per algorithm, in a single
+     * header.
+     *
+     * @param authenticateHeader the value of a WWW-Authenticate header
+     * @return the Digest challenges in the order they were sent, maybe empty
+     *
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static List<DigestChallenge> parseChallenges(String authenticateHeader) {
+        List<DigestChallenge> challenges = new ArrayList<DigestChallenge>(1);
+        parse(authenticateHeader, null, null, challenges);
+        return challenges;
+    }
+
+    /**
+     * Parses an Authentication-Info header
+     * (<a href="https://tools.ietf.org/html/rfc7615">RFC 7615</a>) which is a
+     * list of auth-params without a scheme.
+     *
+     * @param authenticationInfoHeader the value of an Authentication-Info
+     *            header
+     * @param info the instance to fill, it is reset before parsing
+     *
+     * @throws IllegalArgumentException if the header is malformed
+     */
+    public static void parseAuthenticationInfo(String authenticationInfoHeader, DigestAuthenticationInfo info) {
+        info.reset();
+        parse(authenticationInfoHeader, info, null, null);
+    }
 
-        Map<String, String> values = new HashMap<String, String>();
-        authenticateHeader = authenticateHeader.trim();
-        if (!authenticateHeader.startsWith(DIGEST)) {
-            throw new IllegalArgumentException(authenticateHeader + " Did not begin with the Digest challenge string.");
+    /**
+     * Scans the header once, by index. The grammar is
+     *
+     * <pre>
+     * challenge  = auth-scheme [ 1*SP ( token68 / #auth-param ) ]
+     * auth-param = token BWS "=" BWS ( token / quoted-string )
+     * </pre>
+     *
+     * A token that is not followed by "=" starts a new challenge. The
+     * token68 credentials of other schemes are skipped.
+     *
+     * @param params receives the auth-params in front of the first
+     *            challenge, if any
+     * @param single receives the first Digest challenge, if not null
+     * @param all receives all Digest challenges, if single is null
+     * @return the number of Digest challenges found
+     */
+    private static int parse(String header, DigestParameters params, DigestChallenge single, List<DigestChallenge> all) {
+        if (header == null) {
+            return 0;
         }
+        final int length = header.length();
+        int found = 0;
+        int position = 0;
+        DigestParameters current = params;
 
-        for (Character character : authenticateHeader.toCharArray()) {
-            if (matches(character, WHITESPACE)) {
-                continue;
-            }
-            switch (state) {
-            case DIGEST:
-                word.append(character);
-                if (word.lastIndexOf(DIGEST) != -1) {
-                    word = new StringBuilder();
-                    state = States.KEY;
-                }
+        while (position < length) {
+            position = skipSeparators(header, position, length);
+            if (position == length) {
                 break;
-            case KEY:
-                if (matches(character, EQ)) {
-                    key = word.toString();
-                    word = new StringBuilder();
-                    state = States.VALUE;
-                    break;
-                } else if (matches(character, COMMA)) {
-                    break;
+            }
+
+            int nameStart = position;
+            position = skipToken(header, position, length);
+            int nameEnd = position;
+            if (nameStart == nameEnd) {
+                throw new IllegalArgumentException(header + " is malformed at index " + position);
+            }
+
+            position = skipWhitespace(header, position, length);
+            if (position < length && header.charAt(position) == '=') {
+                position = skipWhitespace(header, position + 1, length);
+                if (position < length && header.charAt(position) == '"') {
+                    int end = findQuoteEnd(header, position + 1, length);
+                    if (current != null) {
+                        current.setParameter(header, nameStart, nameEnd, unquote(header, position + 1, end));
+                    }
+                    position = end + 1;
                 } else {
-                    word.append(character);
+                    int valueStart = position;
+                    position = skipToken(header, position, length);
+                    if (current != null) {
+                        current.setParameter(header, nameStart, nameEnd, header.substring(valueStart, position));
+                    }
+                    // token68 padding, for instance "Basic dXNlcg=="
+                    while (position < length && header.charAt(position) == '=') {
+                        position++;
+                    }
                 }
+            } else if (params != null) {
                 break;
-            case VALUE:
-                if (matches(character, valueTerminator)) {
-                    value = word.toString();
-                    word = new StringBuilder();
-                    valueTerminator = COMMA;
-                    values.put(key, value);
-                    state = States.KEY;
-                    break;
-                } else {
-                    if (matches(character, QUOTE)) {
-                        valueTerminator = QUOTE;
+            } else if (isDigest(header, nameStart, nameEnd)) {
+                if (single != null) {
+                    if (found > 0) {
                         break;
-                    } else {
-                        word.append(character);
                     }
+                    current = single;
+                } else {
+                    DigestChallenge challenge = new DigestChallenge();
+                    all.add(challenge);
+                    current = challenge;
                 }
+                found++;
+            } else {
+                current = null;
+            }
+            if (params == null) {
+                position = skipCredentialsToken68(header, position, length);
+            }
+        }
+
+        return found;
+    }
+
+    private static boolean isDigest(String header, int start, int end) {
+        return end - start == DIGEST.length() && header.regionMatches(true, start, DIGEST, 0, DIGEST.length());
+    }
+
+    private static int skipSeparators(String header, int position, int length) {
+        while (position < length) {
+            char c = header.charAt(position);
+            if (c != ',' && !isWhitespace(c)) {
                 break;
             }
+            position++;
         }
+        return position;
+    }
 
-        return values;
+    private static int skipWhitespace(String header, int position, int length) {
+        while (position < length && isWhitespace(header.charAt(position))) {
+            position++;
+        }
+        return position;
+    }
 
+    /**
+     * Skips the token68 which may follow an auth-scheme. A token68 ends the
+     * challenge, so it is only skipped if it is followed by a comma or the
+     * end of the header; otherwise auth-params follow and position is
+     * returned unchanged.
+     */
+    private static int skipCredentialsToken68(String header, int position, int length) {
+        int start = skipWhitespace(header, position, length);
+        int end = start;
+        while (end < length && isToken68Char(header.charAt(end))) {
+            end++;
+        }
+        if (end == start) {
+            return position;
+        }
+        while (end < length && header.charAt(end) == '=') {
+            end++;
+        }
+        int next = skipWhitespace(header, end, length);
+        if (next == length || header.charAt(next) == ',') {
+            return end;
+        }
+        return position;
     }
 
-    private static boolean matches(Character character, String regex) {
-        String str = character.toString();
-        return str.matches(regex);
+    private static int skipToken(String header, int position, int length) {
+        while (position < length && isTokenChar(header.charAt(position))) {
+            position++;
+        }
+        return position;
     }
 
-    public static String computeMD5Hash(byte[] bytes) {
+    /**
+     * @return the index of the closing quote of a quoted-string whose content
+     *         starts at position
+     */
+    private static int findQuoteEnd(String header, int position, int length) {
+        while (position < length) {
+            char c = header.charAt(position);
+            if (c == '\\') {
+                position += 2;
+            } else if (c == '"') {
+                return position;
+            } else {
+                position++;
+            }
+        }
+        throw new IllegalArgumentException(header + " has an unterminated quoted-string");
+    }
 
-        try {
-            // Create MD5 Hash
-            MessageDigest digest = MessageDigest.getInstance("MD5");
-            digest.update(bytes);
-            byte messageDigest[] = digest.digest();
-
-            StringBuilder md5Hash = new StringBuilder();
-            for (int i = 0; i < messageDigest.length; i++) {
-                String hexChar = Integer.toHexString(0xFF & messageDigest[i]);
-                while (hexChar.length() < 2) {
-                    hexChar = "0" + hexChar;
-                }
-                md5Hash.append(hexChar);
+    private static String unquote(String header, int start, int end) {
+        int escape = header.indexOf('\\', start);
+        if (escape == -1 || escape >= end) {
+            return header.substring(start, end);
+        }
+        StringBuilder value = new StringBuilder(end - start);
+        for (int i = start; i < end; i++) {
+            char c = header.charAt(i);
+            if (c == '\\') {
+                c = header.charAt(++i);
             }
+            value.append(c);
+        }
+        return value.toString();
+    }
 
-            return md5Hash.toString();
+    static boolean isWhitespace(char c) {
+        return c == ' ' || c == '\t' || c == '\r' || c == '\n';
+    }
 
-        } catch (NoSuchAlgorithmException e) {
-            Log.e(TAG, e.getMessage(), e);
-            throw new RuntimeException(e);
+    /**
+     * The characters of token68 in front of its "=" padding, as defined by
+     * <a href="https://tools.ietf.org/html/rfc7235#section-2.1">RFC 7235</a>.
+     */
+    private static boolean isToken68Char(char c) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+            return true;
         }
+        return c == '-' || c == '.' || c == '_' || c == '~' || c == '+' || c == '/';
+    }
+
+    /**
+     * tchar as defined by <a href="https://tools.ietf.org/html/rfc7230#section-3.2.6">RFC 7230</a>.
+     */
+    private static boolean isTokenChar(char c) {
+        if ((c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || (c >= '0' && c <= '9')) {
+            return true;
+        }
+        switch (c) {
+        case '!':
+        case '#':
+        case '$':
+        case '%':
+        case '&':
+        case '\'':
+        case '*':
+        case '+':
+        case '-':
+        case '.':
+        case '^':
+        case '_':
+        case '`':
+        case '|':
+        case '~':
+            return true;
+        default:
+            return false;
+        }
+    }
 
+    /**
+     * @param bytes the bytes to hash
+     * @return the lower case hex MD5 digest of bytes
+     */
+    public static String computeMD5Hash(byte[] bytes) {
+        return DigestHashEngine.getInstance(MD5).hashToHex(bytes);
     }
 }
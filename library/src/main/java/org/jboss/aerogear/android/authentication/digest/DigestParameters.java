@@ -0,0 +1,37 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+/**
+ * The target of the auth-params which {@link DigestHeaderUtils} scans.
+ */
+abstract class DigestParameters {
+
+    /**
+     * Stores an auth-param. The name is given as a region of the header so
+     * no String has to be created for it.
+     */
+    abstract void setParameter(String header, int nameStart, int nameEnd, String value);
+
+    abstract void reset();
+
+    static boolean nameMatches(String header, int start, int end, String name) {
+        int length = end - start;
+        return length == name.length() && header.regionMatches(true, start, name, 0, length);
+    }
+
+}
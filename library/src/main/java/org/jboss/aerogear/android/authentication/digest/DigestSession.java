@@ -0,0 +1,74 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An immutable snapshot of a negotiated digest session. The runner replaces
+ * the whole snapshot when a new nonce arrives, so concurrent requests always
+ * see a consistent realm, nonce, opaque, algorithm and HA1. The only mutable part is the
+ * nonce count, which starts at zero for every new nonce.
+ */
+final class DigestSession {
+
+    final String username;
+    final String realm;
+    final String domain;
+    final String nonce;
+    final String opaque;
+    final DigestAlgorithm algorithm;
+    final String qop;
+    final String cnonce;
+
+    /**
+     * The hex HA1 used for the response. For -sess algorithms this is already
+     * H(H(username:realm:password):nonce:cnonce).
+     */
+    final char[] ha1;
+
+    private final AtomicInteger nonceCount;
+
+    /**
+     * @param nonceCount the last nonce count used with nonce, usually 0
+     */
+    DigestSession(String username, String realm, String domain, String nonce, String opaque,
+            DigestAlgorithm algorithm, String qop, String cnonce, char[] ha1, int nonceCount) {
+        this.username = username;
+        this.realm = realm;
+        this.domain = domain;
+        this.nonce = nonce;
+        this.opaque = opaque;
+        this.algorithm = algorithm;
+        this.qop = qop;
+        this.cnonce = cnonce;
+        this.ha1 = ha1;
+        this.nonceCount = new AtomicInteger(nonceCount);
+    }
+
+    /**
+     * @return a unique nonce count for a request, the first is 1
+     */
+    int nextNonceCount() {
+        return nonceCount.incrementAndGet();
+    }
+
+    int getNonceCount() {
+        return nonceCount.get();
+    }
+
+}
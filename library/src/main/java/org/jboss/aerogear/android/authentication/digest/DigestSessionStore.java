@@ -0,0 +1,466 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import android.util.Log;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.UnsupportedEncodingException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import javax.crypto.Cipher;
+import javax.crypto.Mac;
+import javax.crypto.SecretKey;
+import javax.crypto.spec.IvParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Persists the negotiated digest session of a module, so a restarted app
+ * can sign requests without a new challenge handshake, see
+ * {@link HttpDigestAuthenticationConfiguration#sessionStore(DigestSessionStore)
+ * }.
+ *
+ * The file holds realm, nonce, opaque, algorithm, qop, cnonce, the nonce
+ * count and the HA1 of the credentials, encrypted with AES/CBC and a
+ * random IV. An HMAC-SHA256 over the encrypted file authenticates it, a
+ * wrong key or a damaged or forged file is rejected before decryption. The
+ * encryption and MAC keys are derived from the given key, which therefore
+ * has to be exportable. The file should live in the private storage of
+ * the app.
+ *
+ * Snapshots are written on a background thread, a snapshot replaced before
+ * it was written is never written. A snapshot expires after the lifetime of
+ * the store, expired or unreadable snapshots are deleted and the module
+ * logs in normally.
+ */
+public final class DigestSessionStore {
+
+    private static final String TAG = DigestSessionStore.class.getSimpleName();
+    private static final int MAGIC = 0x41474453;
+    private static final byte VERSION = 2;
+    private static final String TRANSFORMATION = "AES/CBC/PKCS5Padding";
+    private static final String MAC = "HmacSHA256";
+    private static final int IV_LENGTH = 16;
+    private static final int MAC_LENGTH = 32;
+    private static final int HEADER_LENGTH = 4 + 1 + IV_LENGTH + 4;
+    private static final int PLAINTEXT_CAPACITY = 512;
+
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(new ThreadFactory() {
+        @Override
+        public Thread newThread(Runnable work) {
+            Thread thread = new Thread(work, "aerogear-digest-session");
+            thread.setDaemon(true);
+            return thread;
+        }
+    });
+
+    private static final Runnable NOTHING = new Runnable() {
+        @Override
+        public void run() {
+        }
+    };
+
+    private final File file;
+    private final SecretKey encryptionKey;
+    private final SecretKey macKey;
+    private final long lifetime;
+    private final SecureRandom random = new SecureRandom();
+    private final AtomicReference<PendingSave> pending = new AtomicReference<PendingSave>();
+    private final Runnable writePending = new Runnable() {
+        @Override
+        public void run() {
+            writePending();
+        }
+    };
+
+    /**
+     * @param file the file of the snapshot
+     * @param key an AES key whose encoding is available
+     * @param lifetime how long a snapshot may be restored after it was
+     *            written, this should not exceed the nonce lifetime of the
+     *            server
+     * @param unit the unit of lifetime
+     *
+     * @throws IllegalArgumentException if file or key is null or the keys
+     *             can not be derived from key
+     */
+    public DigestSessionStore(File file, SecretKey key, long lifetime, TimeUnit unit) {
+        if (file == null || key == null) {
+            throw new IllegalArgumentException("file and key may not be null");
+        }
+        byte[] encoded = key.getEncoded();
+        if (encoded == null) {
+            throw new IllegalArgumentException("The key can not be exported");
+        }
+        byte[] encryption = null;
+        byte[] authentication = null;
+        try {
+            Mac derivation = Mac.getInstance(MAC);
+            derivation.init(new SecretKeySpec(encoded, MAC));
+            encryption = derivation.doFinal("aerogear digest session encryption".getBytes("UTF-8"));
+            authentication = derivation.doFinal("aerogear digest session authentication".getBytes("UTF-8"));
+            this.encryptionKey = new SecretKeySpec(encryption, 0, Math.min(encoded.length, encryption.length), "AES");
+            this.macKey = new SecretKeySpec(authentication, MAC);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalArgumentException("Could not derive the keys of the digest session", e);
+        } catch (UnsupportedEncodingException e) {
+            throw new IllegalStateException(e);
+        } finally {
+            Arrays.fill(encoded, (byte) 0);
+            if (encryption != null) {
+                Arrays.fill(encryption, (byte) 0);
+            }
+            if (authentication != null) {
+                Arrays.fill(authentication, (byte) 0);
+            }
+        }
+        this.file = file;
+        this.lifetime = unit.toMillis(lifetime);
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * Deletes the snapshot and drops a snapshot which was not written yet.
+     */
+    public synchronized void clear() {
+        PendingSave dropped = pending.getAndSet(null);
+        if (dropped != null) {
+            DigestHA1Cache.wipe(dropped.ha1);
+        }
+        if (file.exists() && !file.delete()) {
+            Log.w(TAG, "Could not delete " + file);
+        }
+    }
+
+    /**
+     * Waits until the snapshots saved so far are written.
+     *
+     * @throws InterruptedException if the calling thread is interrupted
+     */
+    public void flush() throws InterruptedException {
+        try {
+            WRITER.submit(NOTHING).get();
+        } catch (ExecutionException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Queues a snapshot to be written on the background thread and returns
+     * at once. Snapshots which are queued before the thread gets to them
+     * are coalesced, only the latest one is written.
+     *
+     * @param session the session to save
+     * @param ha1 the HA1 of the credentials, before -sess hashing. It is
+     *            copied, the caller may wipe it.
+     * @param nonceCount the nonce count a restored session continues from
+     */
+    void saveLater(DigestSession session, char[] ha1, int nonceCount) {
+        PendingSave replaced = pending.getAndSet(new PendingSave(session, ha1.clone(), nonceCount));
+        if (replaced != null) {
+            // the write queued for the replaced snapshot writes this one
+            DigestHA1Cache.wipe(replaced.ha1);
+            return;
+        }
+        WRITER.execute(writePending);
+    }
+
+    private synchronized void writePending() {
+        PendingSave save = pending.getAndSet(null);
+        if (save == null) {
+            return;
+        }
+        try {
+            save(save.session, save.ha1, save.nonceCount);
+        } catch (IOException e) {
+            Log.w(TAG, "Could not persist the digest session", e);
+        } finally {
+            DigestHA1Cache.wipe(save.ha1);
+        }
+    }
+
+    /**
+     * Encrypts a snapshot and replaces the file with it.
+     */
+    private void save(DigestSession session, char[] ha1, int nonceCount) throws IOException {
+        PlaintextBuffer plaintext = new PlaintextBuffer();
+        try {
+            DataOutputStream out = new DataOutputStream(plaintext);
+            out.writeLong(System.currentTimeMillis() + lifetime);
+            out.writeUTF(session.username);
+            out.writeUTF(session.realm);
+            out.writeUTF(session.nonce);
+            out.writeUTF(session.cnonce);
+            out.writeUTF(session.algorithm.getToken());
+            writeNullable(out, session.domain);
+            writeNullable(out, session.opaque);
+            writeNullable(out, session.qop);
+            out.writeInt(nonceCount);
+            out.writeShort(ha1.length);
+            for (char hex : ha1) {
+                out.writeByte(hex);
+            }
+            out.flush();
+
+            byte[] iv = new byte[IV_LENGTH];
+            random.nextBytes(iv);
+            Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+            cipher.init(Cipher.ENCRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+            byte[] ciphertext = cipher.doFinal(plaintext.buffer(), 0, plaintext.size());
+
+            write(iv, ciphertext);
+        } catch (GeneralSecurityException e) {
+            throw new IOException("Could not encrypt the digest session", e);
+        } finally {
+            plaintext.wipe();
+        }
+    }
+
+    /**
+     * Waits for queued writes, maps the file, checks its MAC and decrypts
+     * the snapshot.
+     *
+     * @return the snapshot or null if there is none, it expired or it can
+     *         not be read
+     */
+    Snapshot load() {
+        try {
+            flush();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        return read();
+    }
+
+    private synchronized Snapshot read() {
+        if (!file.isFile()) {
+            return null;
+        }
+        ByteBuffer plaintext = null;
+        try {
+            RandomAccessFile input = new RandomAccessFile(file, "r");
+            try {
+                FileChannel channel = input.getChannel();
+                MappedByteBuffer mapped = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (mapped.remaining() < HEADER_LENGTH || mapped.getInt() != MAGIC || mapped.get() != VERSION) {
+                    throw new IOException("Not a digest session snapshot");
+                }
+                byte[] iv = new byte[IV_LENGTH];
+                mapped.get(iv);
+                int length = mapped.getInt();
+                if (length < 0 || length != mapped.remaining() - MAC_LENGTH) {
+                    throw new IOException("Truncated digest session snapshot");
+                }
+
+                ByteBuffer authenticated = mapped.duplicate();
+                authenticated.position(0).limit(HEADER_LENGTH + length);
+                Mac mac = Mac.getInstance(MAC);
+                mac.init(macKey);
+                mac.update(authenticated);
+                byte[] expected = new byte[MAC_LENGTH];
+                ByteBuffer tag = mapped.duplicate();
+                tag.position(HEADER_LENGTH + length);
+                tag.get(expected);
+                if (!MessageDigest.isEqual(mac.doFinal(), expected)) {
+                    throw new IOException("The digest session snapshot is damaged or was written with another key");
+                }
+
+                Cipher cipher = Cipher.getInstance(TRANSFORMATION);
+                cipher.init(Cipher.DECRYPT_MODE, encryptionKey, new IvParameterSpec(iv));
+                plaintext = ByteBuffer.allocate(cipher.getOutputSize(length));
+                mapped.limit(HEADER_LENGTH + length);
+                cipher.doFinal(mapped, plaintext);
+            } finally {
+                input.close();
+            }
+
+            Snapshot snapshot = parse(plaintext.array(), plaintext.position());
+            if (snapshot.expiresAt < System.currentTimeMillis()) {
+                DigestHA1Cache.wipe(snapshot.ha1);
+                clear();
+                return null;
+            }
+            return snapshot;
+        } catch (IOException e) {
+            Log.w(TAG, "Could not restore the digest session", e);
+        } catch (GeneralSecurityException e) {
+            Log.w(TAG, "Could not decrypt the digest session", e);
+        } finally {
+            if (plaintext != null) {
+                Arrays.fill(plaintext.array(), (byte) 0);
+            }
+        }
+        clear();
+        return null;
+    }
+
+    private static Snapshot parse(byte[] plaintext, int length) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(plaintext, 0, length));
+        Snapshot snapshot = new Snapshot();
+        snapshot.expiresAt = in.readLong();
+        snapshot.username = in.readUTF();
+        snapshot.realm = in.readUTF();
+        snapshot.nonce = in.readUTF();
+        snapshot.cnonce = in.readUTF();
+        snapshot.algorithm = in.readUTF();
+        snapshot.domain = readNullable(in);
+        snapshot.opaque = readNullable(in);
+        snapshot.qop = readNullable(in);
+        snapshot.nonceCount = in.readInt();
+        char[] ha1 = new char[in.readUnsignedShort()];
+        for (int i = 0; i < ha1.length; i++) {
+            ha1[i] = (char) in.readUnsignedByte();
+        }
+        snapshot.ha1 = ha1;
+        return snapshot;
+    }
+
+    /**
+     * Writes to a temporary file which replaces the snapshot, so a crash
+     * never leaves a half written snapshot behind. The MAC covers everything
+     * before it.
+     */
+    private void write(byte[] iv, byte[] ciphertext) throws IOException, GeneralSecurityException {
+        ByteBuffer header = ByteBuffer.allocate(HEADER_LENGTH);
+        header.putInt(MAGIC).put(VERSION).put(iv).putInt(ciphertext.length);
+        Mac mac = Mac.getInstance(MAC);
+        mac.init(macKey);
+        mac.update(header.array());
+        mac.update(ciphertext);
+
+        File temporary = new File(file.getPath() + ".tmp");
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(temporary));
+        try {
+            out.write(header.array());
+            out.write(ciphertext);
+            out.write(mac.doFinal());
+        } finally {
+            out.close();
+        }
+        if (!temporary.renameTo(file)) {
+            temporary.delete();
+            throw new IOException("Could not replace " + file);
+        }
+    }
+
+    private static void writeNullable(DataOutputStream out, String value) throws IOException {
+        out.writeBoolean(value != null);
+        if (value != null) {
+            out.writeUTF(value);
+        }
+    }
+
+    private static String readNullable(DataInputStream in) throws IOException {
+        return in.readBoolean() ? in.readUTF() : null;
+    }
+
+    /**
+     * A snapshot waiting for the background thread.
+     */
+    private static final class PendingSave {
+        final DigestSession session;
+        final char[] ha1;
+        final int nonceCount;
+
+        PendingSave(DigestSession session, char[] ha1, int nonceCount) {
+            this.session = session;
+            this.ha1 = ha1;
+            this.nonceCount = nonceCount;
+        }
+    }
+
+    /**
+     * A decrypted snapshot.
+     */
+    static final class Snapshot {
+        long expiresAt;
+        String username;
+        String realm;
+        String nonce;
+        String cnonce;
+        String algorithm;
+        String domain;
+        String opaque;
+        String qop;
+        int nonceCount;
+        char[] ha1;
+    }
+
+    /**
+     * Keeps the plaintext in one array which is wiped afterwards. It is
+     * sized for usual sessions. If it has to grow, the outgrown array is
+     * wiped, so no copy of the plaintext is left behind.
+     */
+    private static final class PlaintextBuffer extends ByteArrayOutputStream {
+
+        PlaintextBuffer() {
+            super(PLAINTEXT_CAPACITY);
+        }
+
+        @Override
+        public synchronized void write(int b) {
+            ensureCapacity(count + 1);
+            buf[count++] = (byte) b;
+        }
+
+        @Override
+        public synchronized void write(byte[] b, int off, int len) {
+            ensureCapacity(count + len);
+            System.arraycopy(b, off, buf, count, len);
+            count += len;
+        }
+
+        private void ensureCapacity(int capacity) {
+            if (capacity > buf.length) {
+                byte[] grown = Arrays.copyOf(buf, Math.max(capacity, buf.length * 2));
+                Arrays.fill(buf, (byte) 0);
+                buf = grown;
+            }
+        }
+
+        byte[] buffer() {
+            return buf;
+        }
+
+        void wipe() {
+            Arrays.fill(buf, (byte) 0);
+        }
+    }
+
+}
@@ -0,0 +1,149 @@
+/**
+ * JBoss, Home of Professional Open Source
+ * Copyright Red Hat, Inc., and individual contributors.
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ * 	http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jboss.aerogear.android.authentication.digest;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Counters of a {@link HttpDigestAuthenticationModule} which show how much
+ * network traffic the digest optimizations save.
+ */
+public final class DigestStatistics {
+
+    private final AtomicLong handshakes = new AtomicLong();
+    private final AtomicLong preemptiveAttempts = new AtomicLong();
+    private final AtomicLong preemptiveFallbacks = new AtomicLong();
+    private final AtomicLong staleNonces = new AtomicLong();
+    private final AtomicLong nonceRotations = new AtomicLong();
+    private final AtomicLong rspauthMismatches = new AtomicLong();
+    private final AtomicLong coalescedLogins = new AtomicLong();
+    private final AtomicLong restoredSessions = new AtomicLong();
+
+    DigestStatistics() {
+    }
+
+    /**
+     * @return the number of challenge/response handshakes, including the
+     *         ones which were answered preemptively
+     */
+    public long getHandshakes() {
+        return handshakes.get();
+    }
+
+    /**
+     * @return the number of handshakes which sent credentials from a cached
+     *         challenge
+     */
+    public long getPreemptiveAttempts() {
+        return preemptiveAttempts.get();
+    }
+
+    /**
+     * @return the number of preemptive attempts the server rejected
+     */
+    public long getPreemptiveFallbacks() {
+        return preemptiveFallbacks.get();
+    }
+
+    /**
+     * @return the number of requests which were not sent because a cached
+     *         challenge was accepted
+     */
+    public long getRoundTripsSaved() {
+        return preemptiveAttempts.get() - preemptiveFallbacks.get();
+    }
+
+    /**
+     * @return the number of stale nonces which were renewed from the
+     *         challenge of the rejected request, without a new handshake
+     */
+    public long getStaleNonces() {
+        return staleNonces.get();
+    }
+
+    /**
+     * @return the number of nonces which were replaced by the nextnonce of an
+     *         Authentication-Info header
+     */
+    public long getNonceRotations() {
+        return nonceRotations.get();
+    }
+
+    /**
+     * @return the number of responses whose rspauth did not match the session
+     */
+    public long getRspauthMismatches() {
+        return rspauthMismatches.get();
+    }
+
+    /**
+     * @return the number of logins and re-logins which did not run their
+     *         own handshake because an identical one was in flight
+     */
+    public long getCoalescedLogins() {
+        return coalescedLogins.get();
+    }
+
+    /**
+     * @return the number of sessions restored from a
+     *         {@link DigestSessionStore} instead of a handshake
+     */
+    public long getRestoredSessions() {
+        return restoredSessions.get();
+    }
+
+    void handshake() {
+        handshakes.incrementAndGet();
+    }
+
+    void preemptiveAttempt() {
+        preemptiveAttempts.incrementAndGet();
+    }
+
+    void preemptiveFallback() {
+        preemptiveFallbacks.incrementAndGet();
+    }
+
+    void staleNonce() {
+        staleNonces.incrementAndGet();
+    }
+
+    void nonceRotation() {
+        nonceRotations.incrementAndGet();
+    }
+
+    void rspauthMismatch() {
+        rspauthMismatches.incrementAndGet();
+    }
+
+    void coalescedLogin() {
+        coalescedLogins.incrementAndGet();
+    }
+
+    void restoredSession() {
+        restoredSessions.incrementAndGet();
+    }
+
+    @Override
+    public String toString() {
+        return "DigestStatistics{" + "handshakes=" + getHandshakes() + ", preemptiveAttempts=" + getPreemptiveAttempts()
+                + ", preemptiveFallbacks=" + getPreemptiveFallbacks() + ", staleNonces=" + getStaleNonces()
+                + ", nonceRotations=" + getNonceRotations() + ", rspauthMismatches=" + getRspauthMismatches()
+                + ", coalescedLogins=" + getCoalescedLogins() + ", restoredSessions=" + getRestoredSessions() + '}';
+    }
+
+}
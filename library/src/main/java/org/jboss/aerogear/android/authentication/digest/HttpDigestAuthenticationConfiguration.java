@@ -25,13 +25,16 @@ public class HttpDigestAuthenticationConfiguration extends AuthenticationConfigu
     private String loginEndpoint = "/auth/login";
     private String logoutEndpoint = "/auth/logout";
     private Integer timeout = 60000;
+    private boolean preemptive = false;
+    private long challengeLifetime = 300000;
+    private DigestSessionStore sessionStore;
 
     public HttpDigestAuthenticationConfiguration() {
     }
 
     @Override
     protected HttpDigestAuthenticationModule buildModule() {
-        return new HttpDigestAuthenticationModule(super.getBaseUrl(), loginEndpoint, logoutEndpoint, timeout);
+        return new HttpDigestAuthenticationModule(this);
     }
 
     public String getLoginEndpoint() {
@@ -62,4 +65,75 @@ public class HttpDigestAuthenticationConfiguration extends AuthenticationConfigu
         return this;
     }
 
+    /**
+     * If preemptive authentication is enabled a login reuses the last
+     * challenge of the server, as long as it is younger than the challenge
+     * lifetime, and sends credentials with its first request. The challenge
+     * round trip is only made if the server rejects them.
+     *
+     * @return true if preemptive authentication is enabled
+     */
+    public boolean isPreemptive() {
+        return preemptive;
+    }
+
+    /**
+     * If preemptive authentication is enabled a login reuses the last
+     * challenge of the server, as long as it is younger than the challenge
+     * lifetime, and sends credentials with its first request. The challenge
+     * round trip is only made if the server rejects them.
+     *
+     * @param preemptive true to enable preemptive authentication
+     * @return the current configuration
+     */
+    public HttpDigestAuthenticationConfiguration preemptive(boolean preemptive) {
+        this.preemptive = preemptive;
+        return this;
+    }
+
+    /**
+     * @return how long in milliseconds a challenge is reused for preemptive
+     *         authentication
+     */
+    public long getChallengeLifetime() {
+        return challengeLifetime;
+    }
+
+    /**
+     * @param challengeLifetime how long in milliseconds a challenge is reused
+     *            for preemptive authentication, this should not exceed the
+     *            nonce lifetime of the server.
+     * @return the current configuration
+     *
+     * @throws IllegalArgumentException if challengeLifetime is negative
+     */
+    public HttpDigestAuthenticationConfiguration challengeLifetime(long challengeLifetime) {
+        if (challengeLifetime < 0) {
+            throw new IllegalArgumentException("challengeLifetime may not be negative");
+        }
+        this.challengeLifetime = challengeLifetime;
+        return this;
+    }
+
+    /**
+     * @return the store which persists the session or null
+     */
+    public DigestSessionStore getSessionStore() {
+        return sessionStore;
+    }
+
+    /**
+     * If a session store is set the negotiated session is persisted and a
+     * new module restores it, so the first request after a restart is
+     * signed without a challenge handshake. A module which restored a
+     * session is logged in.
+     *
+     * @param sessionStore the store, null to keep sessions in memory only
+     * @return the current configuration
+     */
+    public HttpDigestAuthenticationConfiguration sessionStore(DigestSessionStore sessionStore) {
+        this.sessionStore = sessionStore;
+        return this;
+    }
+
 }
@@ -17,11 +17,20 @@
 package org.jboss.aerogear.android.authentication.digest;
 
 import android.util.Log;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
 import java.net.URI;
 import java.net.URL;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicReference;
 import org.jboss.aerogear.android.core.Callback;
 import org.jboss.aerogear.android.authentication.AbstractAuthenticationModule;
+import org.jboss.aerogear.android.authentication.AuthenticationFuture;
+import org.jboss.aerogear.android.authentication.Deadline;
 import org.jboss.aerogear.android.pipe.module.ModuleFields;
 import org.jboss.aerogear.android.pipe.http.HeaderAndBody;
 import org.jboss.aerogear.android.pipe.http.HttpException;
@@ -44,10 +53,14 @@ public class HttpDigestAuthenticationModule extends AbstractAuthenticationModule
 
     private static final String TAG = HttpDigestAuthenticationModule.class.getSimpleName();
 
-    private boolean isLoggedIn = false;
+    private volatile boolean isLoggedIn = false;
+    private volatile boolean restored = true;
+    private final Object restoreLock = new Object();
 
     private final DigestAuthenticationModuleRunner runner;
 
+    private final AtomicReference<PendingLogin> pendingLogin = new AtomicReference<PendingLogin>();
+
     /**
      * 
      * @param baseURL the url that the other endpoints (enroll, login, eyc) will
@@ -62,6 +75,47 @@ public class HttpDigestAuthenticationModule extends AbstractAuthenticationModule
      */
     public HttpDigestAuthenticationModule(URL baseURL, String loginEndpoint, String logoutEndpoint, Integer timeout) {
         this.runner = new DigestAuthenticationModuleRunner(baseURL, loginEndpoint, logoutEndpoint, timeout);
+        runner.setCookieStore(getCookieStore());
+    }
+
+    /**
+     * Restores the session of the session store of the configuration, if it
+     * has one. The store is read the first time the module is used, not on
+     * the thread which constructs it.
+     *
+     * @param configuration the configuration of the module
+     *
+     * @throws IllegalArgumentException if an endpoint can not be appended to
+     *             baseURL
+     */
+    public HttpDigestAuthenticationModule(HttpDigestAuthenticationConfiguration configuration) {
+        this(configuration.getBaseUrl(), configuration.getLoginEndpoint(), configuration.getLogoutEndpoint(),
+                configuration.getTimeout());
+        runner.setPreemptive(configuration.isPreemptive(), configuration.getChallengeLifetime());
+        if (configuration.getSessionStore() != null) {
+            runner.setSessionStore(configuration.getSessionStore());
+            restored = false;
+        }
+    }
+
+    /**
+     * Restores the persisted session before the first use of the module.
+     * Every method which reads or changes the session calls it, so a login
+     * is never overwritten by an older persisted session.
+     */
+    private void ensureRestored() {
+        if (restored) {
+            return;
+        }
+        synchronized (restoreLock) {
+            if (restored) {
+                return;
+            }
+            if (runner.restore()) {
+                isLoggedIn = true;
+            }
+            restored = true;
+        }
     }
 
     @Override
@@ -86,26 +140,51 @@ public class HttpDigestAuthenticationModule extends AbstractAuthenticationModule
 
     @Override
     public void enroll(final Map<String, String> userData,
-            final Callback<HeaderAndBody> callback) {
-        THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            Callback<HeaderAndBody> callback) {
+        final Callback<HeaderAndBody> delivered = deliver(callback);
+        execute(delivered, new Runnable() {
             @Override
             public void run() {
-                callback.onFailure(new UnsupportedOperationException());
+                delivered.onFailure(new UnsupportedOperationException());
             }
         });
 
     }
 
+    /**
+     * Logs in with a challenge/response handshake. Concurrent calls with the
+     * same credentials share one handshake, every callback receives its
+     * result.
+     *
+     * @param username the username of the user
+     * @param password the password of the user
+     * @param callback a callback to handle the result.
+     */
     @Override
     public void login(final String username, final String password,
-            final Callback<HeaderAndBody> callback) {
-        THREAD_POOL_EXECUTOR.execute(new Runnable() {
+            Callback<HeaderAndBody> callback) {
+        Callback<HeaderAndBody> delivered = deliver(callback);
+        final PendingLogin login = new PendingLogin(username, password);
+        login.join(delivered);
+        while (true) {
+            PendingLogin current = pendingLogin.get();
+            if (current != null && current.isFor(username, password) && current.join(delivered)) {
+                runner.getStatistics().coalescedLogin();
+                return;
+            }
+            if (pendingLogin.compareAndSet(current, login)) {
+                break;
+            }
+        }
+
+        execute(login, new Runnable() {
             @Override
             public void run() {
                 HeaderAndBody result = null;
                 Exception exception = null;
 
                 try {
+                    ensureRestored();
                     result = runner.onLogin(username, password);
                     isLoggedIn = true;
                 } catch (Exception e) {
@@ -113,9 +192,9 @@ public class HttpDigestAuthenticationModule extends AbstractAuthenticationModule
                     exception = e;
                 }
                 if (exception == null) {
-                    callback.onSuccess(result);
+                    login.onSuccess(result);
                 } else {
-                    callback.onFailure(exception);
+                    login.onFailure(exception);
                 }
             }
         });
@@ -123,12 +202,14 @@ public class HttpDigestAuthenticationModule extends AbstractAuthenticationModule
     }
 
     @Override
-    public void logout(final Callback<Void> callback) {
-        THREAD_POOL_EXECUTOR.execute(new Runnable() {
+    public void logout(Callback<Void> callback) {
+        final Callback<Void> delivered = deliver(callback);
+        execute(delivered, new Runnable() {
             @Override
             public void run() {
                 Exception exception = null;
                 try {
+                    ensureRestored();
                     runner.onLogout();
                     isLoggedIn = false;
                 } catch (Exception e) {
@@ -136,17 +217,133 @@ public class HttpDigestAuthenticationModule extends AbstractAuthenticationModule
                     exception = e;
                 }
                 if (exception == null) {
-                    callback.onSuccess(null);
+                    delivered.onSuccess(null);
                 } else {
-                    callback.onFailure(exception);
+                    delivered.onFailure(exception);
                 }
             }
         });
 
     }
 
+    /**
+     * Logs in before a deadline. Both requests of the handshake check the
+     * deadline and use the remaining time as their timeout, cancelling the
+     * future interrupts the thread running the handshake. Logins with a
+     * deadline are not shared with concurrent logins.
+     *
+     * @param username the username of the user
+     * @param password the password of the user
+     * @param deadline the deadline of the login
+     * @return a future of the response of the authenticated request
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> login(final String username, final String password,
+            Deadline deadline) {
+        return submit(deadline, new Call<HeaderAndBody>() {
+            @Override
+            public HeaderAndBody call(Deadline deadline) {
+                ensureRestored();
+                HeaderAndBody result = runner.onLogin(username, password, deadline);
+                isLoggedIn = true;
+                return result;
+            }
+        });
+    }
+
+    /**
+     * Wipes the session, the cached HA1 values, the cached challenge and
+     * the cookies of this module.
+     */
+    @Override
+    protected void wipeCredentials() {
+        ensureRestored();
+        isLoggedIn = false;
+        runner.wipe();
+        removeCookies();
+    }
+
+    /**
+     * Logs in with the keys "loginName" and "password" before a deadline,
+     * see {@link #login(String, String, Deadline) }.
+     */
+    @Override
+    public AuthenticationFuture<HeaderAndBody> login(Map<String, String> loginData, Deadline deadline) {
+        return login(loginData.get(USERNAME_PARAMETER_NAME), loginData.get(PASSWORD_PARAMETER_NAME), deadline);
+    }
+
+    /**
+     * Logs out before a deadline. The local session is always cleared, the
+     * request to the logout endpoint is only sent while the deadline allows.
+     *
+     * @param deadline the deadline of the logout
+     * @return a future which completes with null once the user is logged out
+     */
+    @Override
+    public AuthenticationFuture<Void> logout(Deadline deadline) {
+        return submit(deadline, new Call<Void>() {
+            @Override
+            public Void call(Deadline deadline) {
+                ensureRestored();
+                isLoggedIn = false;
+                runner.onLogout(deadline);
+                return null;
+            }
+        });
+    }
+
+    /**
+     * Runs the handshake on the calling thread, without the executor.
+     *
+     * @param username the username of the user
+     * @param password the password of the user
+     * @return the response of the authenticated request
+     * @throws RuntimeException the error of the handshake, for instance an
+     *             HttpException
+     */
+    @Override
+    public HeaderAndBody loginSync(String username, String password) {
+        markUsed();
+        ensureRestored();
+        HeaderAndBody result = runner.onLogin(username, password);
+        isLoggedIn = true;
+        return result;
+    }
+
+    /**
+     * Logs out on the calling thread, without the executor.
+     *
+     * @throws RuntimeException the error of the logout request
+     */
+    @Override
+    public void logoutSync() {
+        markUsed();
+        ensureRestored();
+        runner.onLogout();
+        isLoggedIn = false;
+    }
+
+    /**
+     * Enrolling is not supported.
+     *
+     * @throws UnsupportedOperationException always
+     */
+    @Override
+    public HeaderAndBody enrollSync(Map<String, String> userData) {
+        throw new UnsupportedOperationException();
+    }
+
+    /**
+     * @return the counters of this module, for instance how many round trips
+     *         preemptive authentication saved
+     */
+    public DigestStatistics getStatistics() {
+        return runner.getStatistics();
+    }
+
     @Override
     public boolean isLoggedIn() {
+        ensureRestored();
         return isLoggedIn;
     }
 
@@ -160,15 +357,158 @@ public class HttpDigestAuthenticationModule extends AbstractAuthenticationModule
 
     @Override
     public ModuleFields loadModule(URI relativeURI, String httpMethod, byte[] requestBody) {
-        ModuleFields fields = new ModuleFields();
-        fields.addHeader("Authorization", runner.getAuthorizationHeader(relativeURI, httpMethod, requestBody));
+        ensureRestored();
+        return fields(relativeURI, runner.getAuthorizationHeader(relativeURI, httpMethod, requestBody));
+    }
+
+    /**
+     * Like {@link #loadModule(URI, String, byte[]) } for bodies which should
+     * not be buffered. With qop=auth-int the stream is read to its end to
+     * hash it, so the caller has to provide a fresh stream for sending.
+     *
+     * @param relativeURI the request URI
+     * @param httpMethod the HTTP method
+     * @param requestBody the request body, it is not closed
+     * @return the Authorization header for the request
+     * @throws IOException if requestBody can not be read
+     */
+    public ModuleFields loadModule(URI relativeURI, String httpMethod, InputStream requestBody) throws IOException {
+        ensureRestored();
+        return fields(relativeURI, runner.getAuthorizationHeader(relativeURI, httpMethod, requestBody));
+    }
+
+    /**
+     * Like {@link #loadModule(URI, String, byte[]) } for a body in a
+     * (possibly direct or mapped) buffer. The position of requestBody is not
+     * changed.
+     *
+     * @param relativeURI the request URI
+     * @param httpMethod the HTTP method
+     * @param requestBody the request body
+     * @return the Authorization header for the request
+     */
+    public ModuleFields loadModule(URI relativeURI, String httpMethod, ByteBuffer requestBody) {
+        ensureRestored();
+        return fields(relativeURI, runner.getAuthorizationHeader(relativeURI, httpMethod, requestBody));
+    }
+
+    /**
+     * Like {@link #loadModule(URI, String, byte[]) } for uploading a file.
+     * With qop=auth-int the file is hashed through a memory mapping instead
+     * of being read onto the heap.
+     *
+     * @param relativeURI the request URI
+     * @param httpMethod the HTTP method
+     * @param requestBody the file which is sent as body
+     * @return the Authorization header for the request
+     * @throws IOException if requestBody can not be read
+     */
+    public ModuleFields loadModule(URI relativeURI, String httpMethod, File requestBody) throws IOException {
+        ensureRestored();
+        return fields(relativeURI, runner.getAuthorizationHeader(relativeURI, httpMethod, requestBody));
+    }
 
+    private ModuleFields fields(URI relativeURI, String authorization) {
+        markUsed();
+        ModuleFields fields = new ModuleFields();
+        if (authorization != null) {
+            fields.addHeader("Authorization", authorization);
+        }
+        addCookies(relativeURI, fields);
         return fields;
     }
 
+    /**
+     * Inspects the Authentication-Info header of a successful response. If
+     * the server sent a nextnonce it is used for the following requests, so
+     * long lived sessions do not run into stale nonces. The cookies the
+     * response sets are added to the cookies of this module. Pipes do not
+     * pass responses to their modules, call this method from the code which
+     * receives the response.
+     *
+     * @param requestURI the URI which was passed to {@link #loadModule(URI, String, byte[])
+     *            } for the request
+     * @param response the response of the server
+     * @return false if the server sent an rspauth which does not match the
+     *         session, otherwise true
+     */
+    public boolean inspectResponse(URI requestURI, HeaderAndBody response) {
+        ensureRestored();
+        getCookieStore().storeCookies(resolve(requestURI), response);
+        byte[] body = response.getBody() == null ? new byte[0] : response.getBody();
+        return runner.onAuthenticationInfo(requestURI, DigestAuthenticationModuleRunner.getAuthenticationInfo(response),
+                body);
+    }
+
+    /**
+     * A 401 with a stale nonce is answered by switching to the new nonce of
+     * the challenge, other 401 responses by logging in again with the cached
+     * credentials. Other errors are not retried.
+     *
+     * @param exception the error of the failed request
+     * @return true if the request should be retried
+     */
     @Override
     public boolean handleError(HttpException exception) {
-        return isLoggedIn() && runner.retryLogin();
+        return isLoggedIn() && runner.onError(exception);
+    }
+
+    /**
+     * A login in flight and the callbacks waiting for it. Once it completed
+     * no more callbacks can join.
+     */
+    private final class PendingLogin implements Callback<HeaderAndBody> {
+
+        private final String username;
+        private final String password;
+        private final List<Callback<HeaderAndBody>> callbacks = new ArrayList<Callback<HeaderAndBody>>(1);
+        private boolean completed = false;
+
+        PendingLogin(String username, String password) {
+            this.username = username;
+            this.password = password;
+        }
+
+        boolean isFor(String username, String password) {
+            return equal(this.username, username) && equal(this.password, password);
+        }
+
+        /**
+         * @return false if the login already completed
+         */
+        synchronized boolean join(Callback<HeaderAndBody> callback) {
+            if (completed) {
+                return false;
+            }
+            callbacks.add(callback);
+            return true;
+        }
+
+        @Override
+        public void onSuccess(HeaderAndBody data) {
+            for (Callback<HeaderAndBody> callback : complete()) {
+                callback.onSuccess(data);
+            }
+        }
+
+        @Override
+        public void onFailure(Exception e) {
+            for (Callback<HeaderAndBody> callback : complete()) {
+                callback.onFailure(e);
+            }
+        }
+
+        private List<Callback<HeaderAndBody>> complete() {
+            pendingLogin.compareAndSet(this, null);
+            synchronized (this) {
+                completed = true;
+                return callbacks;
+            }
+        }
+
+        private boolean equal(String first, String second) {
+            return first == null ? second == null : first.equals(second);
+        }
     }
 
 }